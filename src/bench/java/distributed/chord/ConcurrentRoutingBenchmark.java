@@ -0,0 +1,177 @@
+package distributed.chord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import distributed.utils.Entry;
+import distributed.utils.RingId;
+
+/**
+ * Measures lookups on a FingerTable while other threads keep changing it,
+ * the way message handlers route while FixFingers and Stabilizer publish new
+ * snapshots, and checks every snapshot a lookup used for a half-built
+ * routing state. Writers point random rows at random peers and replace the
+ * successor list, each change one update of the table. A snapshot is
+ * consistent when:
+ * - the peer a lookup returns is the one the snapshot's own fingers give:
+ *   the row 0 finger if the key lies between this node and it, else the
+ *   finger of the highest row lying strictly between this node and the key,
+ *   else the row 0 finger;
+ * - the successor is the first entry of the successor list;
+ * - every finger carries the start of its row.
+ *
+ * Reports lookups/s over all readers, updates/s over all writers and the
+ * number of inconsistent snapshots seen, which must be 0.
+ *
+ * Usage: ConcurrentRoutingBenchmark [seconds] [readers ...], default 3 and
+ * 1 2 4 8; every reader count runs with 0, 1 and 2 writers.
+ */
+public class ConcurrentRoutingBenchmark {
+
+    private static final int PEERS = 256;
+
+    private static final int KEYS = 1 << 16;
+
+    private static final int[] WRITERS = { 0, 1, 2 };
+
+    private static volatile int sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        List<Integer> readerCounts = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            readerCounts.add(Integer.parseInt(args[i]));
+        }
+        if (readerCounts.isEmpty()) {
+            readerCounts.addAll(List.of(1, 2, 4, 8));
+        }
+
+        String[] addresses = new String[PEERS];
+        for (int i = 0; i < PEERS; i++) {
+            addresses[i] = "10.0." + (i / 250) + "." + (i % 250 + 1);
+        }
+        long[] keys = new long[KEYS];
+        Random random = new Random(42);
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = random.nextLong() & RingId.MASK;
+        }
+
+        System.out.println("java " + System.getProperty("java.version") + ", "
+                + Runtime.getRuntime().availableProcessors() + " cpus, " + seconds + " s per run");
+        System.out.println(String.format("%-8s %-8s %12s %12s %12s", "readers", "writers", "lookups/s",
+                "updates/s", "torn"));
+        for (int readers : readerCounts) {
+            for (int writers : WRITERS) {
+                run(readers, writers, seconds, addresses, keys);
+            }
+        }
+    }
+
+    private static void run(int readers, int writers, int seconds, String[] addresses, long[] keys)
+            throws InterruptedException {
+        FingerTable table = new FingerTable("10.1.0.1", 5001, RingId.of("10.1.0.1:5001"), entry -> -1);
+        for (int row = 0; row < table.size(); row++) {
+            table.updateFinger(row, addresses[row % addresses.length], 5001);
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicBoolean measuring = new AtomicBoolean();
+        LongAdder lookups = new LongAdder();
+        LongAdder updates = new LongAdder();
+        LongAdder torn = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        for (int r = 0; r < readers; r++) {
+            int seed = r;
+            threads.add(new Thread(() -> {
+                int folded = 0;
+                int i = seed * 7919;
+                while (running.get()) {
+                    long key = keys[i++ & (KEYS - 1)];
+                    FingerTable.Routing snapshot = table.snapshot();
+                    Entry next = snapshot.lookup(key);
+                    folded += next.getPort();
+                    boolean consistent = next == expected(snapshot, key)
+                            && ((i & 63) != 0 || isConsistent(snapshot));
+                    if (measuring.get()) {
+                        lookups.increment();
+                        if (!consistent) {
+                            torn.increment();
+                        }
+                    }
+                }
+                sink += folded;
+            }, "reader-" + r));
+        }
+        for (int w = 0; w < writers; w++) {
+            Random random = new Random(w);
+            threads.add(new Thread(() -> {
+                while (running.get()) {
+                    if (random.nextInt(8) == 0) {
+                        int first = random.nextInt(addresses.length);
+                        table.updateSuccessorList(-1,
+                                new String[] { addresses[first], addresses[(first + 1) % addresses.length] },
+                                new int[] { 5001, 5001 }, new long[] { -1, -1 });
+                    } else {
+                        table.updateFinger(random.nextInt(table.size()),
+                                addresses[random.nextInt(addresses.length)], 5001);
+                    }
+                    if (measuring.get()) {
+                        updates.increment();
+                    }
+                }
+            }, "writer-" + w));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        TimeUnit.SECONDS.sleep(1);
+        long start = System.nanoTime();
+        measuring.set(true);
+        TimeUnit.SECONDS.sleep(seconds);
+        measuring.set(false);
+        long elapsed = System.nanoTime() - start;
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double perSecond = (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        System.out.println(String.format("%-8d %-8d %12.0f %12.0f %12d", readers, writers,
+                lookups.sum() * perSecond, updates.sum() * perSecond, torn.sum()));
+    }
+
+    /* the lookup rule of Routing replayed on the fingers the snapshot exposes */
+    private static Entry expected(FingerTable.Routing snapshot, long key) {
+        long self = snapshot.getSelf().getHashCode();
+        long toKey = (key - self) & RingId.MASK;
+        Entry successor = snapshot.getFinger(0);
+        long toSuccessor = (successor.getHashCode() - self) & RingId.MASK;
+        if (toSuccessor == 0 || (toKey != 0 && toKey <= toSuccessor)) {
+            return successor;
+        }
+        for (int row = RingId.BITS - 1; row > 0; row--) {
+            long toFinger = (snapshot.getFinger(row).getHashCode() - self) & RingId.MASK;
+            if (toFinger != 0 && (toKey == 0 || toFinger < toKey)) {
+                return snapshot.getFinger(row);
+            }
+        }
+        return successor;
+    }
+
+    private static boolean isConsistent(FingerTable.Routing snapshot) {
+        Entry successor = snapshot.getSuccessor();
+        Entry first = snapshot.getSuccessors().get(0);
+        if (!successor.hasAddress(first.getAddress(), first.getPort())) {
+            return false;
+        }
+        for (int row = 0; row < RingId.BITS; row++) {
+            if (snapshot.getFinger(row).getRingPosition() != snapshot.getStart(row)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,130 @@
+package distributed.chord;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import distributed.utils.RingId;
+
+/**
+ * Measures the routing lookups a peer does for every message it forwards, on
+ * a finger table filled the way a settled ring would fill it. Each row points
+ * at the true successor of its start, and the two peers after each finger are
+ * offered as alternates. Also measures the successor list update of a
+ * stabilization round that finds the ring unchanged. Reports ns/op and heap
+ * bytes allocated per op, read from the thread's allocated-bytes counter
+ * (HotSpot only).
+ *
+ * Usage: FingerTableBenchmark [peers] [lookups per measurement], default 1000
+ * and 10000000.
+ */
+public class FingerTableBenchmark {
+
+    private static final int KEYS = 1 << 16;
+
+    /* one lookup; its result is folded into the sink so it cannot be optimized away */
+    private interface Operation {
+        int run(long key);
+    }
+
+    private static volatile int sink;
+
+    public static void main(String[] args) {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000;
+
+        String[] addresses = new String[peers];
+        long[] ids = new long[peers];
+        for (int i = 0; i < peers; i++) {
+            addresses[i] = "10.0." + (i / 250) + "." + (i % 250 + 1);
+            ids[i] = RingId.of(addresses[i] + ":5001");
+        }
+        Integer[] byId = new Integer[peers];
+        for (int i = 0; i < peers; i++) {
+            byId[i] = i;
+        }
+        Arrays.sort(byId, (a, b) -> Long.compare(ids[a], ids[b]));
+
+        // an unmeasured peer has no round trip, the others get a fixed one
+        FingerTable table = new FingerTable(addresses[0], 5001, ids[0],
+                entry -> entry.getAddress().hashCode() % 3 == 0 ? -1 : entry.getAddress().length() * 1000L);
+        table.updatePredecessor(addresses[byId[(position(byId, 0) + peers - 1) % peers]], 5001);
+        table.updateSuccessor(addresses[successorIndex(byId, ids, (ids[0] + 1) & RingId.MASK)], 5001);
+        FingerTable.Routing routing = table.snapshot();
+        for (int row = 0; row < RingId.BITS; row++) {
+            int finger = successorIndex(byId, ids, routing.getStart(row));
+            table.updateFinger(row, addresses[finger], 5001);
+            int next = position(byId, finger);
+            String[] following = { addresses[byId[(next + 1) % peers]], addresses[byId[(next + 2) % peers]] };
+            table.addCandidates(following, new int[] { 5001, 5001 });
+        }
+
+        long[] keys = new long[KEYS];
+        Random random = new Random(42);
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = random.nextLong() & RingId.MASK;
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        System.out.println("java " + System.getProperty("java.version") + ", " + peers + " peers, " + lookups
+                + " lookups per measurement");
+        System.out.println(String.format("%-32s %9s %9s", "operation", "ns/op", "B/op"));
+        report(threads, "FingerTable.lookup", lookups, keys, key -> table.lookup(key).getPort());
+        FingerTable.Routing snapshot = table.snapshot();
+        report(threads, "Routing.lookup", lookups, keys, key -> snapshot.lookup(key).getPort());
+        report(threads, "Routing.closestPrecedingFingers 3", lookups, keys,
+                key -> snapshot.closestPrecedingFingers(key, 3).size());
+
+        // the successor reports the same successors every round
+        int successor = position(byId, successorIndex(byId, ids, (ids[0] + 1) & RingId.MASK));
+        String[] successors = { addresses[byId[(successor + 1) % peers]], addresses[byId[(successor + 2) % peers]] };
+        int[] ports = { 5001, 5001 };
+        long[] processes = { -1, -1 };
+        report(threads, "FingerTable.updateSuccessorList", lookups, keys, key -> {
+            table.updateSuccessorList(-1, successors, ports, processes);
+            return 1;
+        });
+    }
+
+    /* warms up with one full run, then measures a second one */
+    private static void report(com.sun.management.ThreadMXBean threads, String name, int lookups, long[] keys,
+            Operation operation) {
+        long thread = Thread.currentThread().getId();
+        double nanos = 0;
+        double bytes = 0;
+        for (int round = 0; round < 2; round++) {
+            int folded = 0;
+            long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                folded += operation.run(keys[i & (KEYS - 1)]);
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+            sink += folded;
+            nanos = (double) elapsed / lookups;
+            bytes = (double) allocated / lookups;
+        }
+        System.out.println(String.format("%-32s %9.1f %9.2f", name, nanos, bytes));
+    }
+
+    /* the peer whose ID is the first at or after the key, wrapping around */
+    private static int successorIndex(Integer[] byId, long[] ids, long key) {
+        for (Integer peer : byId) {
+            if (ids[peer] >= key) {
+                return peer;
+            }
+        }
+        return byId[0];
+    }
+
+    private static int position(Integer[] byId, int peer) {
+        for (int i = 0; i < byId.length; i++) {
+            if (byId[i] == peer) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown peer " + peer);
+    }
+}
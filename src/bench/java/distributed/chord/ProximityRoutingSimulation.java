@@ -0,0 +1,148 @@
+package distributed.chord;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import distributed.utils.Configuration;
+import distributed.utils.RingId;
+
+/**
+ * Compares the latency of lookups routed through the exact finger of each
+ * row with lookups routed through the nearest of the row's candidates, as
+ * Routing.closestPrecedingFinger picks them. Peers sit at random points of a
+ * square whose diagonal is a 200 ms round trip, and every link's one-way
+ * latency is half the round trip between its ends. Each peer gets a settled
+ * finger table: every row points at the true successor of its start, and in
+ * the candidate tables the successor list of every finger is offered as
+ * alternates, the way FixFingers probes them. A lookup starts at a random
+ * peer and is forwarded until it reaches the key's owner; the report is the
+ * mean hop count and the mean and 99th percentile latency summed over the
+ * hops.
+ *
+ * Usage: ProximityRoutingSimulation [peers] [lookups], default 1000 and
+ * 100000. -Dchord.fingerCandidates and -Dchord.successorListSize set the
+ * candidates kept per row and the successors a finger reports.
+ */
+public class ProximityRoutingSimulation {
+
+    private static final int PORT = 5001;
+
+    /* a round trip across the diagonal of the square */
+    private static final double DIAGONAL_MILLIS = 200;
+
+    public static void main(String[] args) {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+
+        Random random = new Random(42);
+        String[] addresses = new String[peers];
+        long[] ids = new long[peers];
+        double[] x = new double[peers];
+        double[] y = new double[peers];
+        Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < peers; i++) {
+            addresses[i] = "10.0." + (i / 250) + "." + (i % 250 + 1);
+            ids[i] = RingId.of(addresses[i] + ":" + PORT);
+            x[i] = random.nextDouble();
+            y[i] = random.nextDouble();
+            index.put(addresses[i], i);
+        }
+        Integer[] byId = new Integer[peers];
+        for (int i = 0; i < peers; i++) {
+            byId[i] = i;
+        }
+        Arrays.sort(byId, (a, b) -> Long.compare(ids[a], ids[b]));
+        long[] sorted = new long[peers];
+        int[] position = new int[peers];
+        for (int i = 0; i < peers; i++) {
+            sorted[i] = ids[byId[i]];
+            position[byId[i]] = i;
+        }
+
+        long[][] roundTrip = new long[peers][peers];
+        for (int a = 0; a < peers; a++) {
+            for (int b = 0; b < peers; b++) {
+                double distance = Math.hypot(x[a] - x[b], y[a] - y[b]) / Math.sqrt(2);
+                roundTrip[a][b] = (long) (distance * DIAGONAL_MILLIS * 1_000_000);
+            }
+        }
+
+        FingerTable.Routing[] exact = new FingerTable.Routing[peers];
+        FingerTable.Routing[] nearest = new FingerTable.Routing[peers];
+        for (int peer = 0; peer < peers; peer++) {
+            int self = peer;
+            FingerTable plain = new FingerTable(addresses[peer], PORT, ids[peer], entry -> -1);
+            FingerTable measured = new FingerTable(addresses[peer], PORT, ids[peer],
+                    entry -> roundTrip[self][index.get(entry.getAddress())]);
+            FingerTable.Routing empty = plain.snapshot();
+            for (int row = 0; row < RingId.BITS; row++) {
+                int finger = byId[successorPosition(sorted, empty.getStart(row))];
+                plain.updateFinger(row, addresses[finger], PORT);
+                measured.updateFinger(row, addresses[finger], PORT);
+            }
+            for (int row = 0; row < RingId.BITS; row++) {
+                int next = position[index.get(measured.getFinger(row).getAddress())];
+                String[] successors = new String[Math.min(Configuration.SUCCESSOR_LIST_SIZE, peers - 1)];
+                int[] ports = new int[successors.length];
+                for (int i = 0; i < successors.length; i++) {
+                    successors[i] = addresses[byId[(next + 1 + i) % peers]];
+                    ports[i] = PORT;
+                }
+                measured.addCandidates(successors, ports);
+            }
+            exact[peer] = plain.snapshot();
+            nearest[peer] = measured.snapshot();
+        }
+
+        int[] origins = new int[lookups];
+        long[] keys = new long[lookups];
+        int[] owners = new int[lookups];
+        for (int i = 0; i < lookups; i++) {
+            origins[i] = random.nextInt(peers);
+            keys[i] = random.nextLong() & RingId.MASK;
+            owners[i] = byId[successorPosition(sorted, keys[i])];
+        }
+
+        System.out.println(peers + " peers, " + lookups + " lookups, " + Configuration.FINGER_CANDIDATES
+                + " candidates per row, successor lists of " + Configuration.SUCCESSOR_LIST_SIZE);
+        System.out.println(String.format("%-9s %9s %12s %12s", "routing", "hops", "mean ms", "p99 ms"));
+        report("exact", exact, index, roundTrip, origins, keys, owners);
+        report("nearest", nearest, index, roundTrip, origins, keys, owners);
+    }
+
+    private static void report(String name, FingerTable.Routing[] tables, Map<String, Integer> index,
+            long[][] roundTrip, int[] origins, long[] keys, int[] owners) {
+        long hops = 0;
+        long[] latencies = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            int current = origins[i];
+            long latency = 0;
+            // each peer forwards towards the key until the lookup reaches its owner
+            for (int hop = 0; current != owners[i]; hop++) {
+                if (hop > 2 * RingId.BITS) {
+                    throw new IllegalStateException("Lookup of " + keys[i] + " does not reach its owner");
+                }
+                int next = index.get(tables[current].lookup(keys[i]).getAddress());
+                latency += roundTrip[current][next] / 2;
+                hops++;
+                current = next;
+            }
+            latencies[i] = latency;
+        }
+        Arrays.sort(latencies);
+        double mean = Arrays.stream(latencies).average().orElse(0);
+        System.out.println(String.format("%-9s %9.2f %12.1f %12.1f", name, (double) hops / keys.length,
+                mean / 1_000_000, latencies[(int) (latencies.length * 0.99)] / 1_000_000.0));
+    }
+
+    /* the position of the first peer at or after the key, wrapping around */
+    private static int successorPosition(long[] sorted, long key) {
+        int found = Arrays.binarySearch(sorted, key);
+        if (found < 0) {
+            found = -found - 1;
+        }
+        return found == sorted.length ? 0 : found;
+    }
+}
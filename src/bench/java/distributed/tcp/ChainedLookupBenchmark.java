@@ -0,0 +1,133 @@
+package distributed.tcp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import distributed.chord.Node;
+import distributed.utils.Configuration;
+import distributed.wireformats.Event;
+import distributed.wireformats.FindSuccessorTypes;
+import distributed.wireformats.IdentifiedSuccessor;
+import distributed.wireformats.RequestSuccessor;
+
+/**
+ * Measures the latency of a lookup routed recursively across a chain of
+ * peers, with every hop sent over a ConnectionPool connection and again over
+ * a new connection opened and closed for that hop, as before the pool. The
+ * peers run in this JVM on loopback; each one forwards the lookup to the
+ * next and relays the answer back, and the last one answers with its own
+ * address. Lookups are sent one at a time so the latencies do not queue
+ * behind each other. Reports lookups/s and the mean, 50th and 99th
+ * percentile latency.
+ *
+ * Usage: ChainedLookupBenchmark [hops] [lookups], default 8 and 2000. The
+ * transport and thread mode follow chord.transport and chord.threads.
+ */
+public class ChainedLookupBenchmark {
+
+    private static final int WARMUP_LOOKUPS = 500;
+
+    public static void main(String[] args) throws Exception {
+        int hops = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        System.out.println("java " + System.getProperty("java.version") + ", " + Configuration.TRANSPORT
+                + " transport, " + Configuration.THREADS + " threads, " + hops + " hops, " + lookups + " lookups");
+        System.out.println(String.format("%-12s %12s %9s %9s %9s", "hop", "lookups/s", "mean ms", "p50 ms",
+                "p99 ms"));
+        run("pooled", true, hops, lookups);
+        run("new socket", false, hops, lookups);
+        System.exit(0);
+    }
+
+    private static void run(String name, boolean pooled, int hops, int lookups) throws Exception {
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        ServerSocketChannel[] channels = new ServerSocketChannel[hops + 1];
+        int[] ports = new int[hops + 1];
+        for (int i = 0; i <= hops; i++) {
+            channels[i] = ServerSocketChannel.open();
+            channels[i].bind(new InetSocketAddress(host, 0), 1024);
+            ports[i] = channels[i].socket().getLocalPort();
+        }
+        for (int i = 0; i <= hops; i++) {
+            Node node = new Hop(host, ports[i], i < hops ? ports[i + 1] : -1, pooled);
+            Thread server = new Thread(Configuration.useSelectorTransport() ? new NIOServer(node, channels[i])
+                    : new TCPServer(node, channels[i].socket()));
+            server.setDaemon(true);
+            server.start();
+        }
+
+        Node client = (event, connection) -> {
+        };
+        TCPConnection first = TCPConnection.connect(client, host, ports[0]);
+        first.start();
+        long[] latencies = new long[lookups];
+        for (int i = 0; i < WARMUP_LOOKUPS; i++) {
+            lookup(first, host, i);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            latencies[i] = lookup(first, host, i);
+        }
+        long elapsed = System.nanoTime() - start;
+        // the chain stays up until the JVM exits, closing it would only log the servers' accept errors
+        first.close();
+
+        Arrays.sort(latencies);
+        System.out.println(String.format("%-12s %12d %9.2f %9.2f %9.2f", name,
+                lookups * TimeUnit.SECONDS.toNanos(1) / elapsed,
+                Arrays.stream(latencies).average().orElse(0) / 1e6, latencies[lookups / 2] / 1e6,
+                latencies[(int) (lookups * 0.99)] / 1e6));
+    }
+
+    /* one lookup through the whole chain, in nanoseconds */
+    private static long lookup(TCPConnection first, String host, long key) throws Exception {
+        long sent = System.nanoTime();
+        first.request(new RequestSuccessor(FindSuccessorTypes.FILE_DOWNLOAD, "bench-" + key, key, host,
+                first.getSocket().getLocalPort())).get(Configuration.RPC_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        return System.nanoTime() - sent;
+    }
+
+    /* a peer of the chain: forwards every lookup to the next one, the last answers it */
+    private static final class Hop implements Node {
+        private final String host;
+        private final int port;
+        private final int next;
+        private final boolean pooled;
+        private final ConnectionPool pool;
+
+        Hop(String host, int port, int next, boolean pooled) {
+            this.host = host;
+            this.port = port;
+            this.next = next;
+            this.pooled = pooled;
+            this.pool = new ConnectionPool(this, Configuration.POOL_IDLE_SECONDS);
+        }
+
+        public void handleIncomingEvent(Event event, TCPConnection connection) {
+        }
+
+        public CompletableFuture<? extends Event> handleIncomingRequest(Event event, TCPConnection connection) {
+            RequestSuccessor lookup = (RequestSuccessor) event;
+            if (next < 0) {
+                return CompletableFuture.completedFuture(new IdentifiedSuccessor(host, port, lookup.getPurpose(),
+                        lookup.getPayload(), 1, new long[] { lookup.getLookupKey() }));
+            }
+            try {
+                if (pooled) {
+                    return pool.getConnection(host, next).request(lookup);
+                }
+                TCPConnection fresh = TCPConnection.connect(this, host, next);
+                fresh.start();
+                return fresh.request(lookup).whenComplete((answer, error) -> fresh.close());
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+    }
+}
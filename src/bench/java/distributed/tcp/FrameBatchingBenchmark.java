@@ -0,0 +1,164 @@
+package distributed.tcp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import distributed.chord.Node;
+import distributed.utils.Configuration;
+
+/**
+ * Measures how many small frames one connection carries per second with
+ * TCPSender gathering queued frames into one socket write, and with every
+ * frame written on its own. Batching is turned off by sizing the batch
+ * buffer, chord.maxBatchBytes, to exactly one frame, so each frame still goes
+ * through the same buffer and write path. The batch size is fixed when
+ * TCPSender is loaded, so every run is a child JVM.
+ *
+ * In the child, producer threads queue frames on one connection as fast as
+ * they can, the way handlers answering many requests share a connection, and
+ * a plain socket on the other end reads and counts them. A run ends when the
+ * last frame has been read.
+ *
+ * Usage: FrameBatchingBenchmark [frames] [payload bytes] [producers]
+ * [transport ...], default 2000000 64 4 threads nio.
+ */
+public class FrameBatchingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("child")) {
+            runChild(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int payload = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int producers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        List<String> transports = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            transports.add(args[i]);
+        }
+        if (transports.isEmpty()) {
+            transports.add("threads");
+            transports.add("nio");
+        }
+
+        System.out.println("java " + System.getProperty("java.version") + ", " + frames + " frames of " + payload
+                + " bytes from " + producers + " producers");
+        System.out.println(String.format("%-10s %-10s %12s %10s", "transport", "batching", "frames/s", "MB/s"));
+        for (String transport : transports) {
+            for (boolean batching : new boolean[] { true, false }) {
+                List<String> command = new ArrayList<>();
+                command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add("-Dchord.transport=" + transport);
+                if (!batching) {
+                    command.add("-Dchord.maxBatchBytes=" + (Frame.HEADER_BYTES + payload));
+                }
+                for (String name : System.getProperties().stringPropertyNames()) {
+                    if (name.startsWith("chord.") && !name.equals("chord.transport")
+                            && !name.equals("chord.maxBatchBytes")) {
+                        command.add("-D" + name + "=" + System.getProperty(name));
+                    }
+                }
+                command.add(FrameBatchingBenchmark.class.getName());
+                command.add("child");
+                command.add(String.valueOf(frames));
+                command.add(String.valueOf(payload));
+                command.add(String.valueOf(producers));
+                Process child = new ProcessBuilder(command).redirectErrorStream(true).start();
+                BufferedReader output = new BufferedReader(new InputStreamReader(child.getInputStream()));
+                String result = null;
+                String line;
+                while ((line = output.readLine()) != null) {
+                    if (line.startsWith("done ")) {
+                        result = line;
+                    }
+                }
+                child.waitFor();
+                if (result == null) {
+                    System.out.println(String.format("%-10s %-10s child failed", transport, batching ? "on" : "off"));
+                    continue;
+                }
+                long rate = Long.parseLong(result.split(" ")[1]);
+                System.out.println(String.format("%-10s %-10s %12d %10.1f", transport, batching ? "on" : "off", rate,
+                        rate * (double) (Frame.HEADER_BYTES + payload) / (1 << 20)));
+            }
+        }
+    }
+
+    /* a warm-up run of a tenth of the frames, then the measured one, each on a new connection */
+    private static void runChild(int frames, int payload, int producers) throws Exception {
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        try (ServerSocket server = new ServerSocket()) {
+            server.bind(new InetSocketAddress(host, 0));
+            send(server, host, Math.max(producers, frames / 10), payload, producers);
+            long elapsed = send(server, host, frames, payload, producers);
+            System.out.println("done " + (frames * TimeUnit.SECONDS.toNanos(1) / elapsed));
+        }
+        System.exit(0);
+    }
+
+    /* queues the frames from the producers and returns the nanoseconds until the last one was read */
+    private static long send(ServerSocket server, String host, int frames, int payload, int producers)
+            throws Exception {
+        Node node = (event, connection) -> {
+        };
+        TCPConnection connection = TCPConnection.connect(node, host, server.getLocalPort());
+        Socket accepted = server.accept();
+        CountDownLatch read = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(accepted.getInputStream(), Configuration.MAX_BATCH_BYTES))) {
+                byte[] body = new byte[payload];
+                for (int i = 0; i < frames; i++) {
+                    int length = in.readInt();
+                    in.readInt();
+                    in.readFully(body, 0, length);
+                }
+                read.countDown();
+            } catch (IOException e) {
+                System.out.println("error " + e.getMessage());
+            }
+        });
+        reader.start();
+        connection.start();
+
+        byte[] data = new byte[payload];
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            int share = frames / producers + (p < frames % producers ? 1 : 0);
+            Thread producer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < share; i++) {
+                        connection.getTCPSenderThread().sendData(data);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads.add(producer);
+            producer.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        read.await();
+        long elapsed = System.nanoTime() - start;
+        connection.close();
+        accepted.close();
+        return elapsed;
+    }
+}
@@ -0,0 +1,398 @@
+package distributed.tcp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import distributed.chord.Node;
+import distributed.utils.Configuration;
+import distributed.wireformats.Event;
+import distributed.wireformats.FindSuccessorTypes;
+import distributed.wireformats.IdentifiedSuccessor;
+import distributed.wireformats.RequestSuccessor;
+
+/**
+ * Compares the memory footprint, lookup throughput and lookup latency of a
+ * peer under each transport and thread mode while a fixed number of lookups
+ * are in flight.
+ *
+ * The peer under test runs in a child JVM and answers every RequestSuccessor
+ * after blocking for a while, standing in for the file reads and nested
+ * connects a real handler blocks on. A second child JVM on the nio transport
+ * keeps one lookup in flight on each of its connections to the peer, so the
+ * number of connections is the number of lookups in flight. The peer's
+ * resident set size, thread count and nio selector threads are sampled from
+ * /proc, so this runs on Linux only. Latency is the time from sending a
+ * lookup to its answer, as seen by the client.
+ *
+ * Usage: LookupLoadBenchmark lookups-in-flight block-millis seconds
+ * [transport/threads ...], e.g. 10000 50 20 threads/platform threads/virtual.
+ * chord.* system properties other than the transport and thread mode are
+ * passed on to the peer under test. Virtual threads need a Java 21 runtime.
+ */
+public class LookupLoadBenchmark {
+
+    private static final long WARMUP_SECONDS = 5;
+
+    // how long the client waits for every connection to be answered once
+    private static final long SETTLE_SECONDS = 60;
+
+    // latency histogram buckets, 100 us wide up to the settle timeout
+    private static final long BUCKET_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final int BUCKETS = (int) (TimeUnit.SECONDS.toNanos(SETTLE_SECONDS) / BUCKET_NANOS);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("server")) {
+            runServer(Integer.parseInt(args[1]));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("client")) {
+            runClient(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+        if (args.length < 3) {
+            System.out.println("Usage: LookupLoadBenchmark lookups-in-flight block-millis seconds"
+                    + " [transport/threads ...]");
+            System.exit(1);
+        }
+        int inFlight = Integer.parseInt(args[0]);
+        int blockMillis = Integer.parseInt(args[1]);
+        int seconds = Integer.parseInt(args[2]);
+        List<String> modes = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            modes.add(args[i]);
+        }
+        if (modes.isEmpty()) {
+            modes.add("threads/platform");
+            modes.add("threads/virtual");
+            modes.add("nio/platform");
+            modes.add("nio/virtual");
+        }
+
+        System.out.println("java " + System.getProperty("java.version") + ", " + inFlight
+                + " lookups in flight, handlers block " + blockMillis + " ms, measured over " + seconds + " s");
+        System.out.println(String.format("%-18s %9s %12s %10s %9s %9s %12s %10s %10s", "mode", "settle s",
+                "lookups/s", "failed", "p50 ms", "p99 ms", "peak RSS MB", "threads", "selectors"));
+        for (String mode : modes) {
+            String[] parts = mode.split("/");
+            runMode(parts[0], parts[1], inFlight, blockMillis, seconds);
+        }
+    }
+
+    /*
+     * starts the peer under test and the client in child JVMs and samples the
+     * peer while the client measures
+     */
+    private static void runMode(String transport, String threads, int inFlight, int blockMillis, int seconds)
+            throws IOException, InterruptedException {
+        List<String> serverCommand = javaCommand();
+        serverCommand.add("-Dchord.transport=" + transport);
+        serverCommand.add("-Dchord.threads=" + threads);
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("chord.") && !name.equals("chord.transport") && !name.equals("chord.threads")) {
+                serverCommand.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        serverCommand.add(LookupLoadBenchmark.class.getName());
+        serverCommand.add("server");
+        serverCommand.add(String.valueOf(blockMillis));
+        Process server = new ProcessBuilder(serverCommand).redirectErrorStream(true).start();
+        Process client = null;
+        try {
+            BufferedReader serverOutput = new BufferedReader(new InputStreamReader(server.getInputStream()));
+            String line = serverOutput.readLine();
+            while (line != null && !line.startsWith("port ")) {
+                // e.g. JVM notices printed before the peer is up
+                line = serverOutput.readLine();
+            }
+            if (line == null) {
+                System.out.println(String.format("%-18s peer did not start: %s", transport + "/" + threads, line));
+                return;
+            }
+            int port = Integer.parseInt(line.substring("port ".length()));
+            drain(serverOutput);
+
+            List<String> clientCommand = javaCommand();
+            clientCommand.add("-Dchord.transport=nio");
+            clientCommand.add(LookupLoadBenchmark.class.getName());
+            clientCommand.add("client");
+            clientCommand.add(String.valueOf(port));
+            clientCommand.add(String.valueOf(inFlight));
+            clientCommand.add(String.valueOf(seconds));
+            client = new ProcessBuilder(clientCommand).redirectErrorStream(true).start();
+            BufferedReader clientOutput = new BufferedReader(new InputStreamReader(client.getInputStream()));
+
+            Path status = Paths.get("/proc", String.valueOf(server.pid()), "status");
+            long peakRssKb = 0;
+            long peakThreads = 0;
+            long selectorThreads = 0;
+            String result = null;
+            while ((line = clientOutput.readLine()) != null) {
+                if (line.equals("measuring")) {
+                    // sample the peer once a second until the client reports
+                    Sampler sampler = new Sampler(status);
+                    sampler.start();
+                    result = clientOutput.readLine();
+                    sampler.finish();
+                    peakRssKb = sampler.peakRssKb;
+                    peakThreads = sampler.peakThreads;
+                    selectorThreads = sampler.selectorThreads;
+                    break;
+                }
+                if (line.startsWith("error")) {
+                    result = line;
+                    break;
+                }
+            }
+            if (result == null || !result.startsWith("done ")) {
+                System.out.println(String.format("%-18s client failed: %s", transport + "/" + threads, result));
+                return;
+            }
+            String[] numbers = result.split(" ");
+            System.out.println(String.format("%-18s %9s %12s %10s %9s %9s %12d %10d %10d",
+                    transport + "/" + threads, numbers[3], numbers[1], numbers[2], numbers[4], numbers[5],
+                    peakRssKb / 1024, peakThreads, selectorThreads));
+        } finally {
+            if (client != null) {
+                client.destroyForcibly().waitFor();
+            }
+            server.destroyForcibly().waitFor();
+        }
+    }
+
+    private static List<String> javaCommand() {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        return command;
+    }
+
+    /* keeps a child's output pipe from filling up and blocking it */
+    private static void drain(BufferedReader output) {
+        Thread thread = new Thread(() -> {
+            try {
+                while (output.readLine() != null) {
+                    // discarded
+                }
+            } catch (IOException e) {
+                // child exited
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * samples VmRSS and Threads of a process from its /proc status file, and
+     * counts its nio selector threads by name
+     */
+    private static class Sampler extends Thread {
+        private final Path status;
+        private final AtomicBoolean running = new AtomicBoolean(true);
+        volatile long peakRssKb;
+        volatile long peakThreads;
+        volatile long selectorThreads;
+
+        Sampler(Path status) {
+            this.status = status;
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (running.get()) {
+                try {
+                    for (String line : Files.readAllLines(status)) {
+                        if (line.startsWith("VmRSS:")) {
+                            peakRssKb = Math.max(peakRssKb, Long.parseLong(line.replaceAll("[^0-9]", "")));
+                        } else if (line.startsWith("Threads:")) {
+                            peakThreads = Math.max(peakThreads, Long.parseLong(line.replaceAll("[^0-9]", "")));
+                        }
+                    }
+                    selectorThreads = Math.max(selectorThreads, countSelectorThreads());
+                    Thread.sleep(1000);
+                } catch (IOException e) {
+                    // the peer is gone
+                    return;
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private long countSelectorThreads() throws IOException {
+            long count = 0;
+            try (DirectoryStream<Path> tasks = Files.newDirectoryStream(status.resolveSibling("task"))) {
+                for (Path task : tasks) {
+                    try {
+                        if (new String(Files.readAllBytes(task.resolve("comm"))).startsWith("nio-loop-")) {
+                            count++;
+                        }
+                    } catch (IOException e) {
+                        // the thread exited
+                    }
+                }
+            }
+            return count;
+        }
+
+        void finish() throws InterruptedException {
+            running.set(false);
+            interrupt();
+            join();
+        }
+    }
+
+    /*
+     * the peer under test: answers every lookup with its own address after
+     * blocking, on the transport and thread mode set for this JVM
+     */
+    private static void runServer(int blockMillis) throws IOException {
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        // a deep accept backlog, the client opens all of its connections at once
+        serverChannel.bind(new InetSocketAddress(host, 0), 4096);
+        int port = serverChannel.socket().getLocalPort();
+
+        Node node = new Node() {
+            public void handleIncomingEvent(Event event, TCPConnection connection) {
+            }
+
+            public CompletableFuture<? extends Event> handleIncomingRequest(Event event,
+                    TCPConnection connection) {
+                RequestSuccessor lookup = (RequestSuccessor) event;
+                try {
+                    Thread.sleep(blockMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return CompletableFuture.completedFuture(new IdentifiedSuccessor(host, port,
+                        lookup.getPurpose(), lookup.getPayload(), 1, new long[] { lookup.getLookupKey() }));
+            }
+        };
+        if (Configuration.useSelectorTransport()) {
+            new Thread(new NIOServer(node, serverChannel)).start();
+        } else {
+            new Thread(new TCPServer(node, serverChannel.socket())).start();
+        }
+        System.out.println("port " + port);
+        System.out.println(ExecutionMode.isVirtual() ? "virtual threads" : "platform threads");
+    }
+
+    /*
+     * opens one connection per lookup in flight, keeps a lookup outstanding on
+     * each and counts the answers that arrive while measuring; measuring starts
+     * once the peer has answered on every connection, so a peer still
+     * accepting connections is not measured. Latencies of answers that arrive
+     * while measuring go into a histogram
+     */
+    private static void runClient(int port, int connections, int seconds) throws InterruptedException {
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        Node node = (event, connection) -> {
+        };
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong answered = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        AtomicBoolean measuring = new AtomicBoolean();
+        AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+        CountDownLatch answeredOnce = new CountDownLatch(connections);
+        List<TCPConnection> opened = new ArrayList<>();
+        try {
+            for (int i = 0; i < connections; i++) {
+                TCPConnection connection = TCPConnection.connect(node, host, port);
+                connection.start();
+                opened.add(connection);
+            }
+        } catch (IOException e) {
+            System.out.println("error after " + opened.size() + " connections: " + e.getMessage());
+            System.exit(1);
+        }
+        for (int i = 0; i < opened.size(); i++) {
+            lookup(opened.get(i), i, running, answered, failed, answeredOnce, measuring, latencies);
+        }
+
+        long settleStart = System.nanoTime();
+        String settled = answeredOnce.await(SETTLE_SECONDS, TimeUnit.SECONDS)
+                ? String.valueOf(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - settleStart))
+                : ">" + SETTLE_SECONDS;
+        TimeUnit.SECONDS.sleep(WARMUP_SECONDS);
+        System.out.println("measuring");
+        long answeredBefore = answered.get();
+        long failedBefore = failed.get();
+        long start = System.nanoTime();
+        measuring.set(true);
+        TimeUnit.SECONDS.sleep(seconds);
+        measuring.set(false);
+        long elapsed = System.nanoTime() - start;
+        long lookups = answered.get() - answeredBefore;
+        running.set(false);
+        System.out.println("done " + (lookups * TimeUnit.SECONDS.toNanos(1) / elapsed) + " "
+                + (failed.get() - failedBefore) + " " + settled + " " + percentile(latencies, 0.50) + " "
+                + percentile(latencies, 0.99));
+        System.exit(0);
+    }
+
+    /* the upper edge of the bucket holding the given share of latencies, in ms */
+    private static String percentile(AtomicLongArray latencies, double share) {
+        long total = 0;
+        for (int i = 0; i < latencies.length(); i++) {
+            total += latencies.get(i);
+        }
+        if (total == 0) {
+            return "-";
+        }
+        long seen = 0;
+        int bucket = 0;
+        while (bucket < latencies.length() - 1) {
+            seen += latencies.get(bucket);
+            if (seen >= share * total) {
+                break;
+            }
+            bucket++;
+        }
+        return String.format("%.1f", (bucket + 1) * BUCKET_NANOS / 1e6);
+    }
+
+    /*
+     * sends a lookup and, once it is answered, the next one on the same
+     * connection; the first answer on a connection counts down the latch
+     */
+    private static void lookup(TCPConnection connection, long key, AtomicBoolean running, AtomicLong answered,
+            AtomicLong failed, CountDownLatch answeredOnce, AtomicBoolean measuring, AtomicLongArray latencies) {
+        long sent = System.nanoTime();
+        RequestSuccessor request = new RequestSuccessor(FindSuccessorTypes.FILE_DOWNLOAD, "bench-" + key, key,
+                connection.getSocket().getLocalAddress().getHostAddress(), connection.getSocket().getLocalPort());
+        connection.request(request).whenComplete((response, error) -> {
+            if (error == null) {
+                answered.incrementAndGet();
+                if (measuring.get()) {
+                    latencies.incrementAndGet((int) Math.min((System.nanoTime() - sent) / BUCKET_NANOS, BUCKETS - 1));
+                }
+                if (answeredOnce != null) {
+                    answeredOnce.countDown();
+                }
+            } else {
+                failed.incrementAndGet();
+            }
+            if (running.get() && connection.isOpen()) {
+                lookup(connection, key, running, answered, failed, error == null ? null : answeredOnce, measuring,
+                        latencies);
+            }
+        });
+    }
+}
@@ -0,0 +1,94 @@
+package distributed.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+/**
+ * Measures how evenly each ID hash spreads file names over the peers of a
+ * ring. Every peer owns the keys from its predecessor's ID up to its own, and
+ * the report is the most loaded peer's key count divided by the mean,
+ * averaged over several rings. hashCode is the Math.abs(String.hashCode())
+ * the IDs used before RingId. Peers either share 127.0.0.1 with random ports,
+ * as on a single test machine, or have random addresses on port 5001.
+ *
+ * Usage: RingIdDistributionBenchmark [keys] [rings], default 100000 and 20.
+ */
+public class RingIdDistributionBenchmark {
+
+    private static final int[] PEERS = { 16, 64, 256 };
+
+    public static void main(String[] args) {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int rings = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        String[] names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "files/" + (i / 1000) + "/document-" + i + ".txt";
+        }
+        ToLongFunction<String> hashCode = name -> Math.abs(name.hashCode());
+        ToLongFunction<String> sha1 = name -> RingId.sha1(name.getBytes(StandardCharsets.UTF_8)) & RingId.MASK;
+        ToLongFunction<String> murmur3 = name -> RingId.murmur3(name.getBytes(StandardCharsets.UTF_8))
+                & RingId.MASK;
+
+        System.out.println(keys + " keys, max/mean keys per peer averaged over " + rings + " rings");
+        System.out.println(String.format("%-26s %9s %9s %9s", "peers", "hashCode", "sha1", "murmur3"));
+        for (boolean sameHost : new boolean[] { true, false }) {
+            for (int peers : PEERS) {
+                StringBuilder row = new StringBuilder(String.format("%-26s",
+                        peers + (sameHost ? " on 127.0.0.1:<port>" : " on <ip>:5001")));
+                for (ToLongFunction<String> hash : Arrays.asList(hashCode, sha1, murmur3)) {
+                    long[] keyIds = new long[keys];
+                    for (int i = 0; i < keys; i++) {
+                        keyIds[i] = hash.applyAsLong(names[i]);
+                    }
+                    Random random = new Random(42);
+                    double ratio = 0;
+                    for (int ring = 0; ring < rings; ring++) {
+                        String[] addresses = addresses(random, peers, sameHost);
+                        long[] peerIds = new long[peers];
+                        for (int i = 0; i < peers; i++) {
+                            peerIds[i] = hash.applyAsLong(addresses[i]);
+                        }
+                        ratio += maxOverMean(peerIds, keyIds);
+                    }
+                    row.append(String.format(" %9.1f", ratio / rings));
+                }
+                System.out.println(row);
+            }
+        }
+    }
+
+    /* distinct peer addresses, all on one host or each on its own */
+    private static String[] addresses(Random random, int peers, boolean sameHost) {
+        Set<String> unique = new HashSet<>();
+        while (unique.size() < peers) {
+            unique.add(sameHost ? "127.0.0.1:" + (1024 + random.nextInt(64_000))
+                    : "10." + random.nextInt(256) + "." + random.nextInt(256) + "." + (1 + random.nextInt(254))
+                            + ":5001");
+        }
+        return unique.toArray(new String[0]);
+    }
+
+    /* each key goes to the first peer at or after it, wrapping around to the lowest */
+    static double maxOverMean(long[] peerIds, long[] keyIds) {
+        long[] sorted = peerIds.clone();
+        Arrays.sort(sorted);
+        int[] load = new int[sorted.length];
+        for (long key : keyIds) {
+            int index = Arrays.binarySearch(sorted, key);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            load[index == sorted.length ? 0 : index]++;
+        }
+        int max = 0;
+        for (int keys : load) {
+            max = Math.max(max, keys);
+        }
+        return max / ((double) keyIds.length / sorted.length);
+    }
+}
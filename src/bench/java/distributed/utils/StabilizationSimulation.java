@@ -0,0 +1,482 @@
+package distributed.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Simulates stabilization on a ring with a discrete-event clock, to compare
+ * the adaptive interval of Stabilizer with fixed ones and with no
+ * stabilization at all. Each peer follows the rules of Peer: the join
+ * handshake, stabilize/notify, when a notice is accepted, and the wake-ups
+ * of Stabilizer.speedUp. Every message takes the same one-way latency, and
+ * finger tables and failures are not simulated.
+ *
+ * Two things are measured for every policy:
+ * - The stabilization message rate of a settled ring.
+ * - The time a settled ring needs to converge after a burst of joins,
+ *   counted from the end of the last join handshake, and the stabilization
+ *   messages sent until then. A ring has converged when every peer's
+ *   successor and predecessor are the true ones.
+ *
+ * Usage: StabilizationSimulation [peers] [joins] [trials] [latency ms],
+ * default 500 100 10 1. The joins arrive uniformly within one second.
+ */
+public class StabilizationSimulation {
+
+    private static final long MICROS_PER_MILLI = 1000;
+    private static final long STEADY_WARMUP_MICROS = 120_000_000L;
+    private static final long STEADY_WINDOW_MICROS = 120_000_000L;
+    private static final long JOIN_BURST_MICROS = 1_000_000L;
+    private static final long GIVE_UP_MICROS = 300_000_000L;
+
+    /* how often a peer stabilizes; a fixed policy ignores notifications */
+    private static final class Policy {
+        final String name;
+        final long minMicros;
+        final long maxMicros;
+        final boolean adaptive;
+
+        Policy(String name, long minMillis, long maxMillis, boolean adaptive) {
+            this.name = name;
+            this.minMicros = minMillis * MICROS_PER_MILLI;
+            this.maxMicros = maxMillis * MICROS_PER_MILLI;
+            this.adaptive = adaptive;
+        }
+
+        boolean stabilizes() {
+            return minMicros > 0;
+        }
+    }
+
+    private static final class Node {
+        final long id;
+        Node successor;
+        Node predecessor;
+        Node[] successors;
+        int version;
+        int lastSeen;
+        long interval;
+        boolean started;
+        boolean waiting;
+        boolean churn;
+        long wakeToken;
+        boolean correct;
+
+        Node(long id) {
+            this.id = id;
+        }
+    }
+
+    private static final class Scheduled implements Comparable<Scheduled> {
+        final long time;
+        final long order;
+        final Runnable action;
+
+        Scheduled(long time, long order, Runnable action) {
+            this.time = time;
+            this.order = order;
+            this.action = action;
+        }
+
+        public int compareTo(Scheduled other) {
+            return time != other.time ? Long.compare(time, other.time) : Long.compare(order, other.order);
+        }
+    }
+
+    private final Policy policy;
+    private final long latency;
+    private final Random random;
+    private final PriorityQueue<Scheduled> queue = new PriorityQueue<>();
+    private final TreeMap<Long, Node> ring = new TreeMap<>();
+    private long now;
+    private long order;
+    private long stabilizeMessages;
+    private int wrong;
+    private int pendingJoinMessages;
+
+    private StabilizationSimulation(Policy policy, long latencyMicros, long seed) {
+        this.policy = policy;
+        this.latency = latencyMicros;
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int joins = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int trials = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        long latency = (args.length > 3 ? Long.parseLong(args[3]) : 1) * MICROS_PER_MILLI;
+
+        long min = Configuration.STABILIZE_MIN_MILLIS;
+        long max = Configuration.STABILIZE_MAX_MILLIS;
+        Policy[] policies = {
+                new Policy("adaptive " + min + "-" + max + " ms", min, max, true),
+                new Policy("fixed " + min + " ms", min, min, false),
+                new Policy("fixed 1000 ms", 1000, 1000, false),
+                new Policy("fixed " + max + " ms", max, max, false),
+                new Policy("none", 0, 0, false),
+        };
+
+        System.out.println(peers + " peers, " + joins + " joins within 1 s, " + trials + " trials, "
+                + latency / MICROS_PER_MILLI + " ms per message");
+        System.out.println(String.format("%-22s %12s %15s %15s %14s", "policy", "steady msg/s",
+                "converge p50 ms", "converge max ms", "msgs to conv."));
+        for (Policy policy : policies) {
+            double steadyRate = new StabilizationSimulation(policy, latency, 1).steadyRate(peers);
+            double[] seconds = new double[trials];
+            long[] messages = new long[trials];
+            int stuck = 0;
+            for (int trial = 0; trial < trials; trial++) {
+                StabilizationSimulation simulation = new StabilizationSimulation(policy, latency, 100 + trial);
+                long converged = simulation.convergeAfterJoins(peers, joins);
+                if (converged < 0) {
+                    stuck = Math.max(stuck, simulation.wrong);
+                    seconds[trial] = Double.POSITIVE_INFINITY;
+                } else {
+                    seconds[trial] = converged / 1e3;
+                }
+                messages[trial] = simulation.stabilizeMessages;
+            }
+            Arrays.sort(seconds);
+            Arrays.sort(messages);
+            String median = format(seconds[trials / 2]);
+            String worst = format(seconds[trials - 1]);
+            if (stuck > 0) {
+                worst += " (" + stuck + " wrong)";
+            }
+            System.out.println(String.format("%-22s %12.1f %15s %15s %14d", policy.name, steadyRate, median, worst,
+                    messages[trials / 2]));
+        }
+    }
+
+    private static String format(double millis) {
+        return Double.isInfinite(millis) ? ">" + GIVE_UP_MICROS / MICROS_PER_MILLI : String.format("%.0f", millis);
+    }
+
+    /* stabilization messages per second of a settled ring whose peers just started */
+    private double steadyRate(int peers) {
+        List<Node> nodes = settledRing(peers);
+        for (Node node : nodes) {
+            startStabilizer(node, policy.minMicros);
+        }
+        runUntil(STEADY_WARMUP_MICROS);
+        long before = stabilizeMessages;
+        runUntil(STEADY_WARMUP_MICROS + STEADY_WINDOW_MICROS);
+        return (stabilizeMessages - before) * 1e6 / STEADY_WINDOW_MICROS;
+    }
+
+    /*
+     * time from the end of the last join handshake until the ring is correct
+     * again, or -1 if it is not within the limit; the peers have been running
+     * long enough that adaptive ones wait the longest interval
+     */
+    private long convergeAfterJoins(int peers, int joins) {
+        List<Node> nodes = settledRing(peers);
+        for (Node node : nodes) {
+            startStabilizer(node, policy.maxMicros);
+        }
+        Set<Long> taken = new HashSet<>(ring.keySet());
+        for (int i = 0; i < joins; i++) {
+            Node joining = new Node(uniqueId(taken));
+            schedule((long) (random.nextDouble() * JOIN_BURST_MICROS), () -> join(joining));
+            pendingJoinMessages += 3;
+        }
+        while (pendingJoinMessages > 0) {
+            step();
+        }
+        long start = now;
+        stabilizeMessages = 0;
+        while (wrong > 0) {
+            if (queue.isEmpty() || queue.peek().time > start + GIVE_UP_MICROS) {
+                return -1;
+            }
+            step();
+        }
+        return now - start;
+    }
+
+    private long uniqueId(Set<Long> taken) {
+        while (true) {
+            long id = RingId.of("10." + random.nextInt(256) + "." + random.nextInt(256) + "."
+                    + random.nextInt(256) + ":" + (5000 + random.nextInt(100)));
+            if (taken.add(id)) {
+                return id;
+            }
+        }
+    }
+
+    /* a ring in which every peer already has the right neighbors */
+    private List<Node> settledRing(int peers) {
+        Set<Long> taken = new HashSet<>();
+        for (int i = 0; i < peers; i++) {
+            Node node = new Node(uniqueId(taken));
+            ring.put(node.id, node);
+        }
+        List<Node> nodes = new ArrayList<>(ring.values());
+        for (Node node : nodes) {
+            node.successor = trueSuccessor(node);
+            node.predecessor = truePredecessor(node);
+            node.correct = true;
+        }
+        for (Node node : nodes) {
+            Node[] successors = new Node[Configuration.SUCCESSOR_LIST_SIZE];
+            Node next = node;
+            for (int i = 0; i < successors.length; i++) {
+                next = next.successor;
+                successors[i] = next;
+            }
+            node.successors = successors;
+        }
+        return nodes;
+    }
+
+    private void runUntil(long time) {
+        while (!queue.isEmpty() && queue.peek().time <= time) {
+            step();
+        }
+        now = time;
+    }
+
+    private void step() {
+        Scheduled next = queue.poll();
+        now = next.time;
+        next.action.run();
+    }
+
+    private void schedule(long delay, Runnable action) {
+        queue.add(new Scheduled(now + delay, order++, action));
+    }
+
+    private void sendStabilize(Runnable delivery) {
+        stabilizeMessages++;
+        schedule(latency, delivery);
+    }
+
+    private void sendJoin(Runnable delivery) {
+        schedule(latency, delivery);
+    }
+
+    /*
+     * the joining peer finds its successor by a lookup that follows the
+     * current successor pointers (taken to be instant, fingers are not
+     * simulated), asks it for its predecessor and successor
+     * list, then notifies both neighbors (PeerUtilities.joinNetwork and
+     * Peer.receivePredecessor)
+     */
+    private void join(Node joining) {
+        List<Node> members = new ArrayList<>(ring.values());
+        Node hop = members.get(random.nextInt(members.size()));
+        while (!isInRing(joining.id, hop.id, hop.successor.id)) {
+            hop = hop.successor;
+        }
+        Node successor = hop.successor;
+        ring.put(joining.id, joining);
+        joining.successor = successor;
+        joining.predecessor = joining;
+        joining.successors = new Node[] { successor };
+        joining.correct = true;
+        recheck(joining);
+        recheck(trueSuccessor(joining));
+        recheck(truePredecessor(joining));
+
+        sendJoin(() -> {
+            Node predecessor = successor.predecessor;
+            Node[] reported = successor.successors.clone();
+            sendJoin(() -> {
+                pendingJoinMessages--;
+                joining.predecessor = predecessor;
+                joining.successors = followedBy(successor, reported);
+                changed(joining);
+                speedUp(joining);
+                sendJoin(() -> {
+                    pendingJoinMessages--;
+                    joinNoticed(predecessor, joining);
+                });
+                sendJoin(() -> {
+                    pendingJoinMessages--;
+                    notified(successor, joining);
+                });
+                startStabilizer(joining, 0);
+            });
+        });
+    }
+
+    /* Stabilizer.run: the first round starts after the given delay */
+    private void startStabilizer(Node node, long firstDelay) {
+        if (!policy.stabilizes() || node.started) {
+            return;
+        }
+        node.started = true;
+        node.interval = policy.minMicros;
+        if (firstDelay == 0) {
+            startRound(node);
+        } else {
+            node.interval = firstDelay;
+            waitFor(node, (long) (random.nextDouble() * firstDelay));
+        }
+    }
+
+    /* Peer.stabilize */
+    private void startRound(Node node) {
+        node.waiting = false;
+        Node successor = node.successor;
+        if (successor == node) {
+            if (node.predecessor != node) {
+                Node predecessor = node.predecessor;
+                setSuccessor(node, predecessor);
+                sendStabilize(() -> notified(predecessor, node));
+            }
+            endRound(node);
+            return;
+        }
+        sendStabilize(() -> {
+            Node predecessor = successor.predecessor;
+            Node[] reported = successor.successors.clone();
+            sendStabilize(() -> {
+                checkSuccessor(node, successor, predecessor, reported);
+                endRound(node);
+            });
+        });
+    }
+
+    /* Peer.checkSuccessor */
+    private void checkSuccessor(Node node, Node successor, Node predecessor, Node[] reported) {
+        if (node.successor != successor) {
+            return;
+        }
+        Node[] list = followedBy(successor, reported);
+        if (!Arrays.equals(list, node.successors)) {
+            node.successors = list;
+            changed(node);
+        }
+        if (predecessor == node) {
+            return;
+        }
+        if (predecessor != successor && isInRing(predecessor.id, node.id, successor.id)) {
+            setSuccessor(node, predecessor);
+            sendStabilize(() -> notified(predecessor, node));
+        } else {
+            sendStabilize(() -> notified(successor, node));
+        }
+    }
+
+    /* the wait at the end of Stabilizer.run's loop */
+    private void endRound(Node node) {
+        boolean changed = node.version != node.lastSeen;
+        node.lastSeen = node.version;
+        if (!policy.adaptive) {
+            node.interval = policy.minMicros;
+        } else if (changed || node.churn) {
+            node.interval = policy.minMicros;
+        } else {
+            node.interval = Math.min(policy.maxMicros, node.interval * 2);
+        }
+        node.churn = false;
+        waitFor(node, node.interval);
+    }
+
+    private void waitFor(Node node, long delay) {
+        node.waiting = true;
+        long token = ++node.wakeToken;
+        schedule(delay, () -> {
+            if (node.waiting && node.wakeToken == token) {
+                startRound(node);
+            }
+        });
+    }
+
+    /* Stabilizer.speedUp, called by Peer.neighborsChanged */
+    private void speedUp(Node node) {
+        if (!policy.adaptive || !node.started) {
+            return;
+        }
+        node.churn = true;
+        if (node.waiting) {
+            node.wakeToken++;
+            startRound(node);
+        }
+    }
+
+    /* Peer.updateSuccessor for a NotifyYourPredecessor that is not an exit */
+    private void joinNoticed(Node node, Node joining) {
+        if (node.successor != node && !isInRing(joining.id, node.id, node.successor.id)) {
+            return;
+        }
+        setSuccessor(node, joining);
+        speedUp(node);
+    }
+
+    /* Peer.updatePredecessor for a NotifyYourSuccessor that is not an exit */
+    private void notified(Node node, Node notifier) {
+        Node current = node.predecessor;
+        if (current == notifier) {
+            return;
+        }
+        if (current != node && !isInRing(notifier.id, current.id, node.id)) {
+            return;
+        }
+        node.predecessor = notifier;
+        changed(node);
+        speedUp(node);
+    }
+
+    private void setSuccessor(Node node, Node successor) {
+        node.successor = successor;
+        node.successors = followedBy(successor, node.successors);
+        changed(node);
+    }
+
+    /* FingerTable.Routing.followedBy: the successor, then the others, without repeats */
+    private static Node[] followedBy(Node successor, Node[] others) {
+        List<Node> list = new ArrayList<>();
+        list.add(successor);
+        for (Node other : others) {
+            if (list.size() == Configuration.SUCCESSOR_LIST_SIZE) {
+                break;
+            }
+            if (!list.contains(other)) {
+                list.add(other);
+            }
+        }
+        return list.toArray(new Node[0]);
+    }
+
+    private void changed(Node node) {
+        node.version++;
+        recheck(node);
+    }
+
+    /* keeps the count of peers with a wrong successor or predecessor current */
+    private void recheck(Node node) {
+        boolean correct = node.successor == trueSuccessor(node) && node.predecessor == truePredecessor(node);
+        if (correct != node.correct) {
+            wrong += correct ? -1 : 1;
+            node.correct = correct;
+        }
+    }
+
+    private Node trueSuccessor(Node node) {
+        Map.Entry<Long, Node> next = ring.higherEntry(node.id);
+        return next != null ? next.getValue() : ring.firstEntry().getValue();
+    }
+
+    private Node truePredecessor(Node node) {
+        Map.Entry<Long, Node> previous = ring.lowerEntry(node.id);
+        return previous != null ? previous.getValue() : ring.lastEntry().getValue();
+    }
+
+    /* FingerTable.isInRing */
+    private static boolean isInRing(long a, long start, long end) {
+        if (start < end) {
+            return a > start && a <= end;
+        } else {
+            return a > start || a <= end;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package distributed.utils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures how evenly keys spread over machines when each machine runs
+ * several virtual nodes. A machine gets a random address and starts
+ * round(virtualNodes * capacity) nodes on the ports after 5001, the way Peer
+ * does with chord.port set, and owns the keys of all of them. The report is
+ * the highest load per unit of capacity divided by the mean, averaged over
+ * several runs. The second table gives half the machines capacity 2.
+ *
+ * Usage: VirtualNodeLoadSimulation [keys] [runs], default 200000 and 10.
+ */
+public class VirtualNodeLoadSimulation {
+
+    private static final int[] MACHINES = { 16, 64 };
+
+    private static final int[] VIRTUAL_NODES = { 1, 4, 16, 64, 128 };
+
+    private static final int PORT = 5001;
+
+    public static void main(String[] args) {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        long[] keyIds = new long[keys];
+        for (int i = 0; i < keys; i++) {
+            keyIds[i] = RingId.of("files/" + (i / 1000) + "/document-" + i + ".txt");
+        }
+
+        System.out.println(keys + " keys, max/mean load per unit of capacity averaged over " + runs + " runs");
+        for (boolean mixed : new boolean[] { false, true }) {
+            System.out.println(mixed ? "half the machines at capacity 2" : "every machine at capacity 1");
+            StringBuilder header = new StringBuilder(String.format("%-9s", "machines"));
+            for (int v : VIRTUAL_NODES) {
+                header.append(String.format(" %7s", "v=" + v));
+            }
+            System.out.println(header);
+            for (int machines : MACHINES) {
+                StringBuilder row = new StringBuilder(String.format("%-9d", machines));
+                for (int v : VIRTUAL_NODES) {
+                    Random random = new Random(42);
+                    double ratio = 0;
+                    for (int run = 0; run < runs; run++) {
+                        ratio += run(random, machines, v, mixed, keyIds);
+                    }
+                    row.append(String.format(" %7.2f", ratio / runs));
+                }
+                System.out.println(row);
+            }
+        }
+    }
+
+    private static double run(Random random, int machines, int virtualNodes, boolean mixed, long[] keyIds) {
+        double[] capacity = new double[machines];
+        int nodes = 0;
+        for (int m = 0; m < machines; m++) {
+            capacity[m] = mixed && m % 2 == 1 ? 2 : 1;
+            nodes += Math.max(1, (int) Math.round(virtualNodes * capacity[m]));
+        }
+
+        // each node's ID, paired with its machine so both sort together
+        long[] ids = new long[nodes];
+        int[] owners = new int[nodes];
+        Set<String> hosts = new HashSet<>();
+        int node = 0;
+        for (int m = 0; m < machines; m++) {
+            String host;
+            do {
+                host = "10." + random.nextInt(256) + "." + random.nextInt(256) + "." + (1 + random.nextInt(254));
+            } while (!hosts.add(host));
+            int count = Math.max(1, (int) Math.round(virtualNodes * capacity[m]));
+            for (int i = 0; i < count; i++) {
+                ids[node] = RingId.of(host + ":" + (PORT + i));
+                owners[node++] = m;
+            }
+        }
+        Integer[] order = new Integer[nodes];
+        for (int i = 0; i < nodes; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(ids[a], ids[b]));
+        long[] sorted = new long[nodes];
+        for (int i = 0; i < nodes; i++) {
+            sorted[i] = ids[order[i]];
+        }
+
+        // each key goes to the first node at or after it, wrapping around to the lowest
+        int[] load = new int[machines];
+        for (long key : keyIds) {
+            int index = Arrays.binarySearch(sorted, key);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            load[owners[order[index == nodes ? 0 : index]]]++;
+        }
+
+        double totalCapacity = 0;
+        double max = 0;
+        for (int m = 0; m < machines; m++) {
+            totalCapacity += capacity[m];
+            max = Math.max(max, load[m] / capacity[m]);
+        }
+        return max / (keyIds.length / totalCapacity);
+    }
+}
@@ -0,0 +1,119 @@
+package distributed.wireformats;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures the time and heap allocation of encoding and decoding one message
+ * of every type. getBytes is what a connection sends, encode writes into a
+ * reused buffer, and decode is what a receiver does with an incoming frame.
+ * Allocation is read from the thread's allocated-bytes counter, which needs a
+ * HotSpot JVM.
+ *
+ * Usage: CodecBenchmark [operations per measurement], default 2000000.
+ */
+public class CodecBenchmark {
+
+    private static final String ADDRESS = "192.168.1.17";
+    private static final String FILE_NAME = "photos/2024/IMG_0042.jpg";
+    private static final int PORT = 5001;
+    private static final long[] HOPS = { 4611686018427387904L, 6917529027641081856L, 8070450532247928832L };
+
+    /* one operation; its result is folded into the sink so it cannot be optimized away */
+    private interface Operation {
+        int run() throws IOException;
+    }
+
+    private static volatile int sink;
+
+    public static void main(String[] args) throws IOException {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+
+        System.out.println("java " + System.getProperty("java.version") + ", " + operations
+                + " operations per measurement");
+        System.out.println(String.format("%-22s %6s | %9s %9s | %9s %9s | %9s %9s", "message", "bytes",
+                "getBytes", "B/op", "encode", "B/op", "decode", "B/op"));
+        for (Map.Entry<String, Event> sample : samples().entrySet()) {
+            Event event = sample.getValue();
+            byte[] marshalled = event.getBytes();
+            ByteBuffer scratch = ByteBuffer.allocate(marshalled.length);
+            ByteBuffer frame = ByteBuffer.wrap(marshalled);
+            WireFormatGenerator generator = WireFormatGenerator.getInstance();
+
+            double[] getBytes = measure(threads, operations, () -> event.getBytes().length);
+            double[] encode = measure(threads, operations, () -> {
+                scratch.clear();
+                event.encode(scratch);
+                return scratch.position();
+            });
+            double[] decode = measure(threads, operations, () -> {
+                frame.clear();
+                return generator.createMessage(frame).getType();
+            });
+            System.out.println(String.format("%-22s %6d | %9.1f %9.1f | %9.1f %9.1f | %9.1f %9.1f", sample.getKey(),
+                    marshalled.length, getBytes[0], getBytes[1], encode[0], encode[1], decode[0], decode[1]));
+        }
+    }
+
+    /*
+     * runs the operation once to warm up and once to measure, returning ns/op
+     * and allocated bytes/op of the measured run
+     */
+    private static double[] measure(com.sun.management.ThreadMXBean threads, int operations, Operation operation)
+            throws IOException {
+        long thread = Thread.currentThread().getId();
+        double[] result = new double[2];
+        for (int round = 0; round < 2; round++) {
+            int folded = 0;
+            long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                folded += operation.run();
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+            sink += folded;
+            result[0] = (double) elapsed / operations;
+            result[1] = (double) allocated / operations;
+        }
+        return result;
+    }
+
+    private static Map<String, Event> samples() {
+        Map<String, Event> samples = new LinkedHashMap<>();
+        samples.put("Register", new Register(Protocol.REGISTER_REQUEST, ADDRESS, PORT, "peer-17", HOPS[0]));
+        samples.put("RegisterResponse", new RegisterResponse((byte) 1, "Registration request successful."));
+        samples.put("ComputeNodesList", new ComputeNodesList(3,
+                Arrays.asList(ADDRESS + ":5001", ADDRESS + ":5002", ADDRESS + ":5003"), 4, 63));
+        samples.put("SetupChord", new SetupChord(ADDRESS, PORT));
+        samples.put("RequestSuccessor", new RequestSuccessor(FindSuccessorTypes.FILE_UPLOAD, FILE_NAME, HOPS[1],
+                ADDRESS, PORT));
+        samples.put("IdentifiedSuccessor", new IdentifiedSuccessor(ADDRESS, PORT, FindSuccessorTypes.FILE_UPLOAD,
+                FILE_NAME, HOPS.length, HOPS));
+        samples.put("NotifyYourSuccessor", new NotifyYourSuccessor(ADDRESS, PORT, false));
+        samples.put("NotifyYourPredecessor", new NotifyYourPredecessor(ADDRESS, PORT, false));
+        samples.put("GetPredecessor", new GetPredecessor(ADDRESS, PORT));
+        samples.put("GetPredecessorResp", new GetPredecessorResponse(ADDRESS, PORT, 17L,
+                new String[] { ADDRESS, ADDRESS, ADDRESS }, new int[] { 5002, 5003, 5004 },
+                new long[] { 18L, 19L, 20L }));
+        samples.put("FileChunk 4 KiB", new FileChunk(TransferTypes.STORE, FILE_NAME, 1 << 20, 0, new byte[4096]));
+        samples.put("FileTransferResponse", new FileTransferResponse((byte) 1, "File stored."));
+        samples.put("DownloadRequest", new DownloadRequest(FILE_NAME, HOPS.length, HOPS, 0));
+        samples.put("ChunkAck", new ChunkAck(TransferTypes.STORE, FILE_NAME, 4096));
+        samples.put("FileNotFound", new FileNotFound(FILE_NAME, "File not found."));
+        samples.put("Collision", new Collision());
+        samples.put("FindSuccessors", new FindSuccessors(FindSuccessorTypes.FIX_FINGERS, HOPS, 1));
+        samples.put("SuccessorsFound", new SuccessorsFound(new String[] { ADDRESS, ADDRESS },
+                new int[] { 5002, 5003 }, new long[][] { { HOPS[0], HOPS[1] }, { HOPS[2] } }));
+        samples.put("FindClosestPeers", new FindClosestPeers(HOPS[2], 3));
+        samples.put("ClosestPeers", new ClosestPeers(false, new String[] { ADDRESS, ADDRESS, ADDRESS },
+                new int[] { 5002, 5003, 5004 }));
+        return samples;
+    }
+}
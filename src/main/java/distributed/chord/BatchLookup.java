@@ -0,0 +1,154 @@
+package distributed.chord;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import distributed.tcp.ConnectionPool;
+import distributed.tcp.TCPConnection;
+import distributed.utils.Entry;
+import distributed.wireformats.FindSuccessors;
+import distributed.wireformats.SuccessorsFound;
+
+/*
+ * resolves many keys to their successors in one pass: keys this peer is
+ * responsible for are answered here, the rest are split by the finger they
+ * are routed to and sent on as one FindSuccessors per finger
+ */
+class BatchLookup {
+
+    // a batch still travelling after this many hops is given up, e.g. while fingers loop
+    private static final int MAX_HOPS = 64;
+
+    private final Peer peer;
+    private final FingerTable fingerTable;
+    private final ConnectionPool connectionPool;
+
+    BatchLookup(Peer peer, FingerTable fingerTable, ConnectionPool connectionPool) {
+        this.peer = peer;
+        this.fingerTable = fingerTable;
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * Finds the successor of every key, answering locally where possible.
+     *
+     * @param purpose   The lookup purpose, one of FindSuccessorTypes.
+     * @param keys      The keys to resolve.
+     * @param hopsCount The hops the batch has taken so far.
+     * @return A future for the keys grouped by the peer responsible for them.
+     */
+    CompletableFuture<SuccessorsFound> resolve(int purpose, long[] keys, int hopsCount) {
+        FingerTable.Routing routing = fingerTable.snapshot();
+        Entry self = routing.getSelf();
+        long predecessorID = routing.getPredecessor().getHashCode();
+
+        Map<String, Group> found = new LinkedHashMap<>();
+        Map<String, Group> forwards = new LinkedHashMap<>();
+        for (long key : keys) {
+            if (fingerTable.isWithinRing(key, predecessorID, self.getHashCode())) {
+                group(found, self).add(key);
+                continue;
+            }
+            Entry next = routing.lookup(key);
+            // no closer peer known, e.g. after every successor failed
+            group(next.hasAddress(self.getAddress(), self.getPort()) ? found : forwards, next).add(key);
+        }
+
+        if (forwards.isEmpty()) {
+            return CompletableFuture.completedFuture(toMessage(found));
+        }
+        if (hopsCount >= MAX_HOPS) {
+            return CompletableFuture.failedFuture(
+                    new IOException("Batch lookup gave up after " + hopsCount + " hops"));
+        }
+
+        List<CompletableFuture<SuccessorsFound>> pending = new ArrayList<>(forwards.size());
+        for (Group group : forwards.values()) {
+            pending.add(forward(purpose, group.keys(), group.peer, hopsCount + 1));
+        }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            for (CompletableFuture<SuccessorsFound> answer : pending) {
+                SuccessorsFound message = answer.join();
+                for (int i = 0; i < message.getPeerCount(); i++) {
+                    Entry owner = new Entry(-1, message.getIPAddress(i), message.getPort(i));
+                    Group group = group(found, owner);
+                    for (long key : message.getKeys(i)) {
+                        group.add(key);
+                    }
+                }
+            }
+            return toMessage(found);
+        });
+    }
+
+    /*
+     * sends a group on to its next hop; an unreachable hop is dropped from the
+     * table and the group is routed again from here
+     */
+    private CompletableFuture<SuccessorsFound> forward(int purpose, long[] keys, Entry next, int hopsCount) {
+        TCPConnection connection;
+        try {
+            connection = connectionPool.getConnection(next.getAddress(), next.getPort());
+        } catch (IOException e) {
+            if (!peer.dropUnreachablePeer(next)) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return resolve(purpose, keys, hopsCount);
+        }
+        return connection.request(new FindSuccessors(purpose, keys, hopsCount)).handle((response, error) -> {
+            if (error == null) {
+                return CompletableFuture.completedFuture((SuccessorsFound) response);
+            }
+            // a connection closed under the request means the peer itself went away
+            if (!connection.isOpen() && peer.dropUnreachablePeer(next)) {
+                return resolve(purpose, keys, hopsCount);
+            }
+            return CompletableFuture.<SuccessorsFound>failedFuture(error);
+        }).thenCompose(result -> result);
+    }
+
+    private static Group group(Map<String, Group> groups, Entry peer) {
+        return groups.computeIfAbsent(peer.getEntryString(), address -> new Group(peer));
+    }
+
+    private static SuccessorsFound toMessage(Map<String, Group> found) {
+        String[] addresses = new String[found.size()];
+        int[] ports = new int[found.size()];
+        long[][] keys = new long[found.size()][];
+        int i = 0;
+        for (Group group : found.values()) {
+            addresses[i] = group.peer.getAddress();
+            ports[i] = group.peer.getPort();
+            keys[i] = group.keys();
+            i++;
+        }
+        return new SuccessorsFound(addresses, ports, keys);
+    }
+
+    /* the keys headed to, or owned by, one peer */
+    private static final class Group {
+        final Entry peer;
+        private long[] keys = new long[8];
+        private int size;
+
+        Group(Entry peer) {
+            this.peer = peer;
+        }
+
+        void add(long key) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            keys[size++] = key;
+        }
+
+        long[] keys() {
+            return Arrays.copyOf(keys, size);
+        }
+    }
+}
@@ -1,7 +1,8 @@
 package distributed.chord;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -9,8 +10,11 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
 
+import distributed.tcp.NIOServer;
 import distributed.tcp.TCPConnection;
 import distributed.tcp.TCPServer;
+import distributed.utils.Configuration;
+import distributed.utils.RingId;
 import distributed.wireformats.Collision;
 import distributed.wireformats.Event;
 import distributed.wireformats.Protocol;
@@ -24,6 +28,14 @@ public class Discovery implements Node {
 
     private Map<String, TCPConnection> connections = new HashMap<>();
 
+    // handlers for incoming events, by message type
+    private final EventDispatcher dispatcher = new EventDispatcher();
+
+    private Discovery() {
+        dispatcher.onEvent(Protocol.REGISTER_REQUEST, this::handleRegistrationEvent);
+        dispatcher.onEvent(Protocol.DEREGISTER_REQUEST, this::handleDeregistrationEvent);
+    }
+
     public static void main(String[] args) {
         // Check if the port number is provided as a command-line argument
         if (args.length < 1) {
@@ -36,13 +48,18 @@ public class Discovery implements Node {
          * defining serverSocket in try-with-resources statement ensures
          * that the serverSocket is closed after the block ends
          */
-        try (ServerSocket serverSocket = new ServerSocket(Integer.valueOf(args[0]))) {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(Integer.valueOf(args[0])));
             /*
              * start the server thread after initializing the server socket
              * invoke start function to start a new thread execution(invoking run() is not
              * the right way)
              */
-            (new Thread(new TCPServer(registry, serverSocket))).start();
+            if (Configuration.useSelectorTransport()) {
+                (new Thread(new NIOServer(registry, serverChannel))).start();
+            } else {
+                (new Thread(new TCPServer(registry, serverChannel.socket()))).start();
+            }
 
             // Take commands from console
             registry.takeCommands();
@@ -75,15 +92,7 @@ public class Discovery implements Node {
     }
 
     public void handleIncomingEvent(Event event, TCPConnection connection) {
-        switch (event.getType()) {
-            case Protocol.REGISTER_REQUEST:
-                handleRegistrationEvent((Register) event, connection);
-                break;
-
-            case Protocol.DEREGISTER_REQUEST:
-                handleDeregistrationEvent((Register) event, connection);
-                break;
-        }
+        dispatcher.dispatch(event, connection);
     }
 
     private synchronized void handleRegistrationEvent(Register registerEvent, TCPConnection connection) {
@@ -91,6 +100,13 @@ public class Discovery implements Node {
         String nodes = registerEvent.getConnectionReadable();
         String ipAddress = connection.getSocket().getInetAddress().getHostAddress();
 
+        TCPConnection registered = connections.get(nodes);
+        if (registered != null && !registered.isOpen()) {
+            // the peer crashed and came back on the same address, e.g. with chord.port set
+            System.out.println("Replacing the closed registration of " + nodes);
+            connections.remove(nodes);
+        }
+
         if (connections.containsKey(nodes)) {
             try {
                 connection.getTCPSenderThread().sendData((new Collision()).getBytes());
@@ -195,7 +211,7 @@ public class Discovery implements Node {
     }
 
     private boolean validatePeerID(Register registerEvent) {
-        return Math.abs(registerEvent.getConnectionReadable().hashCode()) == registerEvent.getPeerID();
+        return RingId.of(registerEvent.getConnectionReadable()) == registerEvent.getPeerID();
 
     }
 
@@ -204,7 +220,7 @@ public class Discovery implements Node {
             System.out.println(
                     "No connections in the registry.");
         } else {
-            connections.forEach((key, value) -> System.out.println(Math.abs(key.hashCode()) + " " + key));
+            connections.forEach((key, value) -> System.out.println(RingId.of(key) + " " + key));
         }
     }
 
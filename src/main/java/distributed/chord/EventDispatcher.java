@@ -0,0 +1,136 @@
+package distributed.chord;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import distributed.tcp.TCPConnection;
+import distributed.wireformats.Event;
+import distributed.wireformats.EventDecoder;
+import distributed.wireformats.WireFormatGenerator;
+
+/**
+ * Routes incoming events to the handlers a node registered for their type.
+ * Handlers are kept in arrays indexed by message type, so dispatching is one
+ * array load instead of a switch over every type the node knows.
+ */
+public class EventDispatcher {
+
+    /**
+     * Handles a one-way event of one type.
+     */
+    @FunctionalInterface
+    public interface EventHandler<E extends Event> {
+        void handle(E event, TCPConnection connection);
+    }
+
+    /**
+     * Answers a request of one type with the event sent back as the response.
+     */
+    @FunctionalInterface
+    public interface RequestHandler<E extends Event> {
+        CompletableFuture<? extends Event> handle(E event, TCPConnection connection);
+    }
+
+    /* replaced as a whole on registration, so dispatching reads them without locking */
+    private volatile EventHandler<Event>[] eventHandlers = newEventTable(0);
+    private volatile RequestHandler<Event>[] requestHandlers = newRequestTable(0);
+
+    // events dropped because the node registered no handler for their type
+    private final AtomicLong unhandledEvents = new AtomicLong();
+
+    /**
+     * Registers the handler for one-way events of a type.
+     *
+     * @param type    The message type.
+     * @param handler Handles events of that type.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <E extends Event> void onEvent(int type, EventHandler<E> handler) {
+        EventHandler<Event>[] updated = Arrays.copyOf(eventHandlers, Math.max(eventHandlers.length, type + 1));
+        updated[type] = (EventHandler<Event>) handler;
+        eventHandlers = updated;
+    }
+
+    /**
+     * Registers the handler for requests of a type.
+     *
+     * @param type    The message type.
+     * @param handler Answers requests of that type.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <E extends Event> void onRequest(int type, RequestHandler<E> handler) {
+        RequestHandler<Event>[] updated = Arrays.copyOf(requestHandlers,
+                Math.max(requestHandlers.length, type + 1));
+        updated[type] = (RequestHandler<Event>) handler;
+        requestHandlers = updated;
+    }
+
+    /**
+     * Adds a custom message type: registers its decoder with the
+     * WireFormatGenerator and its handler with this dispatcher.
+     *
+     * @param type    The message type, not used by any other message.
+     * @param decoder Builds the event from a received frame.
+     * @param handler Handles events of that type.
+     */
+    public <E extends Event> void register(int type, EventDecoder decoder, EventHandler<E> handler) {
+        WireFormatGenerator.getInstance().registerDecoder(type, decoder);
+        onEvent(type, handler);
+    }
+
+    /**
+     * Passes an event to the handler registered for its type.
+     *
+     * @param event      The event to handle.
+     * @param connection The TCP connection the event arrived on.
+     */
+    public void dispatch(Event event, TCPConnection connection) {
+        int type = event.getType();
+        EventHandler<Event>[] table = eventHandlers;
+        if (type < 0 || type >= table.length || table[type] == null) {
+            unhandledEvents.incrementAndGet();
+            System.out.println("No handler for message type " + type);
+            return;
+        }
+        table[type].handle(event, connection);
+    }
+
+    /**
+     * Passes a request to the request handler registered for its type. A type
+     * with only an event handler is handled as an event and answered with an
+     * empty response.
+     *
+     * @param event      The request to handle.
+     * @param connection The TCP connection the request arrived on.
+     * @return A future for the response event.
+     */
+    public CompletableFuture<? extends Event> dispatchRequest(Event event, TCPConnection connection) {
+        int type = event.getType();
+        RequestHandler<Event>[] table = requestHandlers;
+        if (type >= 0 && type < table.length && table[type] != null) {
+            return table[type].handle(event, connection);
+        }
+        dispatch(event, connection);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Returns how many events arrived without a handler for their type.
+     *
+     * @return The number of dropped events.
+     */
+    public long getUnhandledEventCount() {
+        return unhandledEvents.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static EventHandler<Event>[] newEventTable(int size) {
+        return (EventHandler<Event>[]) new EventHandler<?>[size];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static RequestHandler<Event>[] newRequestTable(int size) {
+        return (RequestHandler<Event>[]) new RequestHandler<?>[size];
+    }
+}
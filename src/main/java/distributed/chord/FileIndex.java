@@ -0,0 +1,151 @@
+package distributed.chord;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/*
+ * the files one virtual node is responsible for, with their keys; every put
+ * and remove is recorded in the IndexLog of the storage directory, so the
+ * index survives a restart, while a file handed over between virtual nodes
+ * of one process stays on record and is not logged again
+ *
+ * the files are also kept in key order, so the files in a range of the ring,
+ * e.g. the keys a new predecessor takes over, are found without reading the
+ * rest of the index
+ */
+public class FileIndex {
+
+    private final Map<String, Long> files = new ConcurrentHashMap<>();
+    /* the same files by key, then name; changed together with files, under the log's lock */
+    private final NavigableSet<StoredFile> byKey = new ConcurrentSkipListSet<>();
+    private final IndexLog log;
+
+    /* a file's place on the ring; a null name sorts after every file with the same key */
+    private static final class StoredFile implements Comparable<StoredFile> {
+        final long key;
+        final String name;
+
+        StoredFile(long key, String name) {
+            this.key = key;
+            this.name = name;
+        }
+
+        @Override
+        public int compareTo(StoredFile other) {
+            int byKey = Long.compare(key, other.key);
+            if (byKey != 0 || name == other.name) {
+                return byKey;
+            }
+            if (name == null || other.name == null) {
+                return name == null ? 1 : -1;
+            }
+            return name.compareTo(other.name);
+        }
+    }
+
+    FileIndex(IndexLog log) {
+        this.log = log;
+    }
+
+    public void put(String fileName, long fileKey) {
+        synchronized (log) {
+            add(fileName, fileKey);
+            log.recordPut(fileName, fileKey);
+        }
+    }
+
+    public void remove(String fileName) {
+        synchronized (log) {
+            if (drop(fileName) != null) {
+                log.recordRemove(fileName);
+            }
+        }
+    }
+
+    /* takes over a file that is already on record, e.g. after a restart */
+    void adopt(String fileName, long fileKey) {
+        synchronized (log) {
+            add(fileName, fileKey);
+        }
+    }
+
+    /* moves a file to another virtual node of this process */
+    void handOver(String fileName, FileIndex other) {
+        synchronized (log) {
+            Long fileKey = drop(fileName);
+            if (fileKey != null) {
+                other.add(fileName, fileKey);
+            }
+        }
+    }
+
+    private void add(String fileName, long fileKey) {
+        Long previous = files.put(fileName, fileKey);
+        if (previous != null) {
+            byKey.remove(new StoredFile(previous, fileName));
+        }
+        byKey.add(new StoredFile(fileKey, fileName));
+    }
+
+    private Long drop(String fileName) {
+        Long fileKey = files.remove(fileName);
+        if (fileKey != null) {
+            byKey.remove(new StoredFile(fileKey, fileName));
+        }
+        return fileKey;
+    }
+
+    /**
+     * Returns the files whose keys lie in (from, to] on the ring, in ring
+     * order; the whole ring if from equals to, as in FingerTable.isWithinRing.
+     * Only the files in the range are read.
+     *
+     * @param from The end of the range before it, e.g. the old predecessor.
+     * @param to   The last key in the range, e.g. the new predecessor.
+     * @return The files by name, with their keys.
+     */
+    public List<Map.Entry<String, Long>> between(long from, long to) {
+        StoredFile start = new StoredFile(from, null);
+        StoredFile end = new StoredFile(to, null);
+        List<Map.Entry<String, Long>> found = new ArrayList<>();
+        if (from < to) {
+            collect(byKey.subSet(start, false, end, true), found);
+        } else {
+            // the range reaches over the top of the ring
+            collect(byKey.tailSet(start, false), found);
+            collect(byKey.headSet(end, true), found);
+        }
+        return found;
+    }
+
+    private static void collect(Set<StoredFile> range, List<Map.Entry<String, Long>> found) {
+        for (StoredFile file : range) {
+            found.add(new AbstractMap.SimpleImmutableEntry<>(file.name, file.key));
+        }
+    }
+
+    /**
+     * Returns a live view of the files; removing from it is not supported,
+     * use remove() so the change is recorded.
+     *
+     * @return The files by name, with their keys.
+     */
+    public Set<Map.Entry<String, Long>> entrySet() {
+        return Collections.unmodifiableMap(files).entrySet();
+    }
+
+    public boolean contains(String fileName) {
+        return files.containsKey(fileName);
+    }
+
+    public int size() {
+        return files.size();
+    }
+}
@@ -0,0 +1,171 @@
+package distributed.chord;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import distributed.wireformats.FileChunk;
+
+/**
+ * Writes the chunks of an incoming file into a ".part" file next to its
+ * destination and moves it into place once every byte has arrived. A partial
+ * file left behind by a dropped connection is picked up again by the next
+ * transfer of the same file. A second sender of a file already being received
+ * writes into a ".part" file of its own, which is deleted if it never
+ * completes.
+ */
+public class FileReceiver {
+
+    /* partial files open in this process; virtual nodes share one storage directory */
+    private static final Set<Path> OPEN = ConcurrentHashMap.newKeySet();
+
+    private final Path target;
+    private final Path partFile;
+    private final long totalSize;
+    private final FileChannel channel;
+    private long received;
+    private boolean released;
+
+    /**
+     * Opens, or reopens, the partial file for a transfer.
+     *
+     * @param target    Where the finished file is placed.
+     * @param totalSize The size of the complete file.
+     * @param sender    Names the sender's own partial file if another sender's
+     *                  transfer of the file is open.
+     * @throws IOException If the partial file cannot be opened.
+     */
+    public FileReceiver(Path target, long totalSize, String sender) throws IOException {
+        this.target = target;
+        Path shared = partFile(target);
+        this.partFile = OPEN.add(shared) ? shared
+                : target.resolveSibling(target.getFileName() + "." + sender.replaceAll("[^A-Za-z0-9.]", "_")
+                        + ".part");
+        if (partFile != shared && !OPEN.add(partFile)) {
+            throw new IOException("Already receiving " + target.getFileName() + " from " + sender);
+        }
+        this.totalSize = totalSize;
+        try {
+            Files.createDirectories(target.getParent());
+            this.channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            OPEN.remove(partFile);
+            throw e;
+        }
+        this.received = channel.size();
+        if (received > totalSize) {
+            /* left over from a different version of the file */
+            channel.truncate(0);
+            received = 0;
+        }
+    }
+
+    /**
+     * Returns how many bytes a partial download of the given file already has,
+     * so the download can be resumed from there.
+     *
+     * @param target Where the finished file is placed.
+     * @return The size of the partial file, or 0 if there is none.
+     */
+    public static long partialSize(Path target) {
+        try {
+            return Files.size(partFile(target));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Tells whether a transfer of the given file is being received in this
+     * process.
+     *
+     * @param target Where the finished file is placed.
+     * @return true if a partial file for it is open.
+     */
+    public static boolean isReceiving(Path target) {
+        return OPEN.contains(partFile(target));
+    }
+
+    private static Path partFile(Path target) {
+        return target.resolveSibling(target.getFileName() + ".part");
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Writes a chunk at its offset. Chunks that would leave a gap in the file
+     * are dropped; the returned count tells the sender where the file ends.
+     *
+     * @param chunk The chunk to write.
+     * @return The number of bytes received so far.
+     * @throws IOException If the chunk cannot be written.
+     */
+    public synchronized long write(FileChunk chunk) throws IOException {
+        long offset = chunk.getOffset();
+        if (offset > received) {
+            return received;
+        }
+        ByteBuffer data = ByteBuffer.wrap(chunk.getData());
+        while (data.hasRemaining()) {
+            channel.write(data, offset + data.position());
+        }
+        received = Math.max(received, offset + chunk.getData().length);
+        return received;
+    }
+
+    public synchronized boolean isComplete() {
+        return received >= totalSize;
+    }
+
+    /**
+     * Flushes the partial file to disk and renames it to its final name.
+     *
+     * @throws IOException If the file cannot be flushed or moved.
+     */
+    public synchronized void complete() throws IOException {
+        try {
+            channel.force(true);
+            channel.close();
+            Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Closes the partial file, keeping what has been written so a later
+     * transfer can resume. A sender's own partial file is deleted, no later
+     * transfer would pick it up.
+     */
+    public synchronized void close() {
+        if (released) {
+            return;
+        }
+        try {
+            channel.close();
+            if (!partFile.equals(partFile(target))) {
+                Files.deleteIfExists(partFile);
+            }
+        } catch (IOException e) {
+            System.out.println("Error closing partial file " + partFile + ": " + e.getMessage());
+        } finally {
+            release();
+        }
+    }
+
+    /* once only, the path may be claimed again by then */
+    private void release() {
+        if (!released) {
+            released = true;
+            OPEN.remove(partFile);
+        }
+    }
+}
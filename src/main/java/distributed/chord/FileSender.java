@@ -0,0 +1,158 @@
+package distributed.chord;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+import distributed.tcp.TCPConnection;
+import distributed.utils.Configuration;
+import distributed.wireformats.FileChunk;
+
+/**
+ * Streams one file to a peer as a sequence of FileChunk messages whose bodies
+ * are copied straight from the file to the socket. At most
+ * CHUNK_WINDOW chunks are unacknowledged at any time, so the memory a transfer
+ * needs does not depend on the size of the file.
+ */
+public class FileSender implements Runnable {
+
+    /* start offset telling the sender to ask the receiver where to resume */
+    public static final long RESUME_FROM_RECEIVER = -1;
+
+    /* a transfer is abandoned when the receiver stays silent for this long */
+    private static final long ACK_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final TCPConnection connection;
+    private final FileChannel fileChannel;
+    private final int purpose;
+    private final String fileName;
+    private final long totalSize;
+
+    /* guarded by this */
+    private boolean started;
+    private long sent;
+    private long acknowledged;
+    private long lastAckTime;
+
+    /**
+     * Opens the file to be sent. The file stays open until the transfer ends, so
+     * the caller may delete it once the sender has been created.
+     *
+     * @param connection  The connection to the receiving peer.
+     * @param file        The file to send.
+     * @param purpose     A TransferTypes value telling the receiver where to
+     *                    store the file.
+     * @param startOffset Where to start sending, or RESUME_FROM_RECEIVER.
+     * @throws IOException If the file cannot be opened.
+     */
+    public FileSender(TCPConnection connection, Path file, int purpose, long startOffset) throws IOException {
+        this.connection = connection;
+        this.fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+        this.purpose = purpose;
+        this.fileName = file.getFileName().toString();
+        this.totalSize = fileChannel.size();
+        this.lastAckTime = System.currentTimeMillis();
+        if (startOffset != RESUME_FROM_RECEIVER) {
+            this.started = true;
+            this.sent = Math.min(startOffset, totalSize);
+            this.acknowledged = this.sent;
+        }
+    }
+
+    public int getPurpose() {
+        return purpose;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void run() {
+        try {
+            if (!isStarted()) {
+                /* an empty chunk at offset 0 asks the receiver how much it already has */
+                FileChunk probe = new FileChunk(purpose, fileName, totalSize, 0, new byte[0]);
+                connection.getTCPSenderThread().sendData(probe.getBytes());
+                await(() -> started);
+            }
+
+            long window = (long) Configuration.CHUNK_SIZE * Configuration.CHUNK_WINDOW;
+            while (true) {
+                long offset;
+                synchronized (this) {
+                    await(() -> sent >= totalSize || sent - acknowledged < window);
+                    if (sent >= totalSize) {
+                        break;
+                    }
+                    offset = sent;
+                }
+                int length = (int) Math.min(Configuration.CHUNK_SIZE, totalSize - offset);
+                FileChunk chunk = new FileChunk(purpose, fileName, totalSize, offset, length);
+                /* only the header is built here, the body goes from file to socket */
+                connection.getTCPSenderThread().sendFileRegion(chunk.getHeaderBytes(), fileChannel, offset,
+                        length);
+                synchronized (this) {
+                    sent = offset + length;
+                }
+            }
+
+            await(() -> acknowledged >= totalSize);
+            System.out.println("Finished sending " + fileName + " (" + totalSize + " bytes) to "
+                    + connection.getSocket().getRemoteSocketAddress());
+        } catch (IOException | InterruptedException | TimeoutException e) {
+            System.out.println("Error occurred while sending file " + fileName + ": " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                System.out.println("Error closing file " + fileName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Records an acknowledgement from the receiver. The first one after the
+     * opening empty chunk is the offset to resume from.
+     *
+     * @param offset The number of bytes the receiver has written.
+     */
+    public synchronized void acknowledge(long offset) {
+        if (!started) {
+            started = true;
+            sent = Math.min(offset, totalSize);
+        }
+        acknowledged = Math.max(acknowledged, offset);
+        lastAckTime = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * Tells whether the receiver acknowledged the whole file. A receiver
+     * acknowledges the last chunk only once the file is on disk, so a
+     * delivered file may be deleted here.
+     *
+     * @return True once every byte has been acknowledged.
+     */
+    public synchronized boolean isDelivered() {
+        return started && acknowledged >= totalSize;
+    }
+
+    private synchronized boolean isStarted() {
+        return started;
+    }
+
+    private synchronized void await(BooleanSupplier condition) throws InterruptedException, TimeoutException {
+        while (!condition.getAsBoolean()) {
+            long remaining = lastAckTime + ACK_TIMEOUT_MILLIS - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new TimeoutException("No acknowledgement received for " + fileName);
+            }
+            wait(remaining);
+        }
+    }
+}
@@ -1,70 +1,505 @@
 package distributed.chord;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToLongFunction;
+import java.util.function.UnaryOperator;
 
+import distributed.utils.Configuration;
 import distributed.utils.Entry;
+import distributed.utils.RingId;
+
+/*
+ * finger i covers the ring from starts[i] = self + 2^i; the node ID of its
+ * peer is kept next to it, so routing compares longs and never touches the
+ * entry until the chosen finger is returned
+ *
+ * all routing state lives in one immutable Routing snapshot: readers take the
+ * current snapshot and never lock, writers copy it, change the copy and swap
+ * it in, so a lookup never sees a half-updated table
+ *
+ * besides the exact finger, each row keeps a few other peers found inside its
+ * interval [starts[i], starts[i + 1]); any of them precedes the same keys, so
+ * routing takes the one with the lowest measured round trip without adding
+ * hops
+ */
+public class FingerTable {
 
-import java.util.List;
-import java.util.ArrayList;
+    private static final int FT_ROWS = RingId.BITS;
 
-public class FingerTable {
+    private static final long RING_MASK = RingId.MASK;
+
+    private final String selfAddress;
+
+    private final int selfPort;
+
+    private final AtomicReference<Routing> routing;
+
+    /* measured round trip to a peer in nanoseconds, -1 if unknown */
+    private final ToLongFunction<Entry> proximity;
+
+    /**
+     * One consistent view of the fingers, predecessor and successor list.
+     * Never modified once published.
+     */
+    public static final class Routing {
+
+        private final long selfPeerID;
+
+        private final Entry self;
+
+        private final long[] starts;
+
+        private final long[] nodeIds;
+
+        private final Entry[] nodes;
+
+        /* for simplicity, keeping predecessor start value -1 */
+        private Entry predecessor;
+
+        private Entry successor;
+
+        /*
+         * the next peers around the ring, nearest first, starting with the
+         * successor; replaced as a whole, never changed in place
+         */
+        private Entry[] successors;
+
+        /* other peers inside each row's interval; a row is replaced, never changed in place */
+        private Entry[][] alternates;
+
+        private final ToLongFunction<Entry> proximity;
+
+        /* a table whose fingers, predecessor and successor are all this node */
+        private Routing(long selfPeerID, String selfAddress, int selfPort, ToLongFunction<Entry> proximity) {
+            this.selfPeerID = selfPeerID;
+            this.proximity = proximity;
+            this.alternates = new Entry[FT_ROWS][0];
+            this.starts = new long[FT_ROWS];
+            this.nodeIds = new long[FT_ROWS];
+            this.nodes = new Entry[FT_ROWS];
+            for (int i = 0; i < FT_ROWS; i++) {
+                starts[i] = calculateRingPosition(i, selfPeerID);
+                setRow(i, selfAddress, selfPort, selfPeerID);
+            }
+            this.predecessor = new Entry(-1, selfAddress, selfPort, selfPeerID);
+            this.successor = new Entry(starts[0], selfAddress, selfPort, selfPeerID);
+            this.self = successor;
+            this.successors = new Entry[] { successor };
+        }
+
+        /* a copy to be changed before it is published */
+        private Routing(Routing current) {
+            this.selfPeerID = current.selfPeerID;
+            this.self = current.self;
+            this.starts = current.starts;
+            this.nodeIds = current.nodeIds.clone();
+            this.nodes = current.nodes.clone();
+            this.predecessor = current.predecessor;
+            this.successor = current.successor;
+            this.successors = current.successors;
+            this.alternates = current.alternates;
+            this.proximity = current.proximity;
+        }
+
+        private void setRow(int index, String ipAddress, int port, long peerID) {
+            nodes[index] = new Entry(starts[index], ipAddress, port, peerID);
+            nodeIds[index] = peerID;
+        }
+
+        /* points a row at a known peer, reusing its ID */
+        private void setRow(int index, Entry peer) {
+            setRow(index, peer.getAddress(), peer.getPort(), peer.getHashCode());
+        }
+
+        private Routing withSuccessor(String ipAddress, int port) {
+            Routing updated = new Routing(this);
+            updated.successor = new Entry(starts[0], ipAddress, port);
+            updated.successors = followedBy(updated.successor, successors);
+            updated.updateTableWithPeer(updated.successor);
+            return updated;
+        }
+
+        /* the successor, in its process, followed by the successors it reported */
+        private Routing withSuccessorList(long process, Entry[] reported) {
+            Entry[] list = followedBy(successor.inProcess(process), reported);
+            if (sameEntries(list, successors)) {
+                return this;
+            }
+            Routing updated = new Routing(this);
+            updated.successors = list;
+            return updated;
+        }
+
+        private static boolean sameEntries(Entry[] first, Entry[] second) {
+            if (first.length != second.length) {
+                return false;
+            }
+            for (int i = 0; i < first.length; i++) {
+                if (!first[i].hasAddress(second[i].getAddress(), second[i].getPort())
+                        || first[i].getProcess() != second[i].getProcess()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /*
+         * forgets a peer that could not be reached: the next entry of the
+         * successor list takes over from it, fingers that pointed to it move
+         * to the peer after it, and a failed predecessor is cleared so the
+         * next peer to notify this node takes its place
+         */
+        private Routing withoutPeer(String ipAddress, int port) {
+            if (!canRemove(ipAddress, port)) {
+                return this;
+            }
+            Routing updated = new Routing(this);
+            List<Entry> remaining = new ArrayList<>();
+            Entry replacement = null;
+            boolean found = false;
+            for (Entry entry : successors) {
+                if (entry.hasAddress(ipAddress, port)) {
+                    found = true;
+                } else {
+                    remaining.add(entry);
+                    if (found && replacement == null) {
+                        replacement = entry;
+                    }
+                }
+            }
+            if (remaining.isEmpty()) {
+                remaining.add(self);
+            }
+            updated.successors = remaining.toArray(new Entry[0]);
+            Entry first = remaining.get(0);
+            updated.successor = new Entry(starts[0], first.getAddress(), first.getPort(), first.getHashCode());
+            if (predecessor.hasAddress(ipAddress, port)) {
+                updated.predecessor = new Entry(-1, self.getAddress(), self.getPort(), self.getHashCode());
+            }
+            for (int i = FT_ROWS - 1; i >= 0; i--) {
+                if (nodes[i].hasAddress(ipAddress, port)) {
+                    Entry next = replacement != null ? replacement
+                            : i + 1 < FT_ROWS ? updated.nodes[i + 1] : updated.successor;
+                    updated.setRow(i, next);
+                }
+            }
+            Entry[][] rows = alternates.clone();
+            for (int i = 0; i < FT_ROWS; i++) {
+                rows[i] = Arrays.stream(rows[i]).filter(entry -> !entry.hasAddress(ipAddress, port))
+                        .toArray(Entry[]::new);
+            }
+            updated.alternates = rows;
+            return updated;
+        }
 
-    private List<Entry> table = new ArrayList<>();
+        /*
+         * records peers heard of as alternatives for the rows whose interval
+         * they fall in; a full row gives up its slowest peer, one never
+         * measured counting as slowest, only for a newcomer measured to be
+         * faster, so unmeasured peers heard of every round do not keep
+         * replacing each other and publishing new snapshots
+         */
+        private Routing withCandidates(Entry[] peers) {
+            Entry[][] rows = alternates;
+            for (Entry peer : peers) {
+                int row = rowOf(peer.getHashCode());
+                if (row < 0 || nodes[row].hasAddress(peer.getAddress(), peer.getPort())
+                        || contains(Arrays.asList(rows[row]), peer)) {
+                    continue;
+                }
+                Entry[] current = rows[row];
+                Entry[] changed = null;
+                if (current.length < Configuration.FINGER_CANDIDATES - 1) {
+                    changed = Arrays.copyOf(current, current.length + 1);
+                    changed[current.length] = new Entry(starts[row], peer.getAddress(), peer.getPort(),
+                            peer.getHashCode());
+                } else if (current.length > 0) {
+                    int slowest = 0;
+                    for (int i = 1; i < current.length; i++) {
+                        if (slower(current[i], current[slowest])) {
+                            slowest = i;
+                        }
+                    }
+                    if (slower(current[slowest], peer)) {
+                        changed = current.clone();
+                        changed[slowest] = new Entry(starts[row], peer.getAddress(), peer.getPort(),
+                                peer.getHashCode());
+                    }
+                }
+                if (changed != null) {
+                    if (rows == alternates) {
+                        rows = alternates.clone();
+                    }
+                    rows[row] = changed;
+                }
+            }
+            if (rows == alternates) {
+                return this;
+            }
+            Routing updated = new Routing(this);
+            updated.alternates = rows;
+            return updated;
+        }
+
+        /* the row whose interval holds the peer, i.e. floor(log2(peer - self)); -1 for this node */
+        private int rowOf(long peerID) {
+            long distance = (peerID - selfPeerID) & RING_MASK;
+            return distance == 0 ? -1 : 63 - Long.numberOfLeadingZeros(distance);
+        }
 
-    private int selfPeerID;
+        private boolean slower(Entry first, Entry second) {
+            long firstTrip = proximity.applyAsLong(first);
+            long secondTrip = proximity.applyAsLong(second);
+            if (firstTrip < 0 || secondTrip < 0) {
+                return firstTrip < 0 && secondTrip >= 0;
+            }
+            return firstTrip > secondTrip;
+        }
+
+        private boolean canRemove(String ipAddress, int port) {
+            return !self.hasAddress(ipAddress, port) && knows(ipAddress, port);
+        }
 
-    private String selfAddress;
+        private static boolean contains(List<Entry> list, Entry candidate) {
+            for (Entry entry : list) {
+                if (entry.hasAddress(candidate.getAddress(), candidate.getPort())) {
+                    return true;
+                }
+            }
+            return false;
+        }
 
-    private int selfPort;
+        private boolean knows(String ipAddress, int port) {
+            if (predecessor.hasAddress(ipAddress, port)) {
+                return true;
+            }
+            for (Entry entry : successors) {
+                if (entry.hasAddress(ipAddress, port)) {
+                    return true;
+                }
+            }
+            for (Entry entry : nodes) {
+                if (entry.hasAddress(ipAddress, port)) {
+                    return true;
+                }
+            }
+            for (Entry[] row : alternates) {
+                for (Entry entry : row) {
+                    if (entry.hasAddress(ipAddress, port)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
 
-    private final int FT_ROWS = 32;
+        /*
+         * builds a successor list from its first entry and the peers known to
+         * follow it; entries not lying between the first entry and this node
+         * (e.g. a peer that has since left) are skipped
+         */
+        private Entry[] followedBy(Entry first, Entry[] candidates) {
+            List<Entry> list = new ArrayList<>(Configuration.SUCCESSOR_LIST_SIZE);
+            list.add(first);
+            for (Entry candidate : candidates) {
+                if (list.size() == Configuration.SUCCESSOR_LIST_SIZE) {
+                    break;
+                }
+                long id = candidate.getHashCode();
+                if (id == selfPeerID || !isInRing(id, first.getHashCode(), selfPeerID)
+                        || contains(list, candidate)) {
+                    continue;
+                }
+                list.add(candidate);
+            }
+            return list.toArray(new Entry[0]);
+        }
 
-    /* for simplicity, keeping predecessor start value -1 */
-    private Entry predecessor;
+        private Routing withPredecessor(String ipAddress, int port) {
+            Routing updated = new Routing(this);
+            updated.predecessor = new Entry(-1, ipAddress, port);
+            updated.updateTableWithPeer(updated.predecessor);
+            return updated;
+        }
 
-    private Entry successor;
+        private Routing withFinger(int index, String ipAddress, int port) {
+            if (nodes[index].hasAddress(ipAddress, port)) {
+                return this;
+            }
+            Routing updated = new Routing(this);
+            updated.setRow(index, new Entry(-1, ipAddress, port));
+            return updated;
+        }
 
-    public Map<String, Integer> fileIndex = new HashMap<>();
+        private void updateTableWithPeer(Entry newPeer) {
+            long newPeerID = newPeer.getHashCode();
+            for (int i = 0; i < FT_ROWS; i++) {
+                /*
+                 * this means, if the given peer lies between the start and node id of
+                 * any table entry, we have to update it
+                 */
+                if (newPeerID == starts[i] || isInRing(newPeerID, starts[i], nodeIds[i])) {
+                    setRow(i, newPeer);
+                }
+            }
+        }
 
-    public FingerTable(String selfAddress, int selfPort, int selfPeerID) {
-        this.selfPeerID = selfPeerID;
+        public Entry getSelf() {
+            return self;
+        }
+
+        /* the ring position row index starts at, i.e. self + 2^index */
+        public long getStart(int index) {
+            return starts[index];
+        }
+
+        public Entry getPredecessor() {
+            return predecessor;
+        }
+
+        public Entry getSuccessor() {
+            return successor;
+        }
+
+        public List<Entry> getSuccessors() {
+            return Arrays.asList(successors.clone());
+        }
+
+        public Entry getFinger(int index) {
+            return nodes[index];
+        }
+
+        /* the peers kept for a row besides its exact finger */
+        public List<Entry> getAlternates(int index) {
+            return Arrays.asList(alternates[index].clone());
+        }
+
+        /*
+         * call this function only after checking current node is not the successor
+         * of lookup key k; returns the successor if it holds k, otherwise the
+         * closest finger preceding k
+         */
+        public Entry lookup(long lookupId) {
+            if (isInRing(lookupId, selfPeerID, nodeIds[0])) {
+                return nodes[0];
+            }
+            return closestPrecedingFinger(lookupId);
+        }
+
+        /**
+         * Finds the finger furthest around the ring that still lies strictly
+         * between this node and the key, so a lookup forwarded to it moves as
+         * close to the key as this table allows without passing it. Of the
+         * peers kept for that row, the one with the lowest measured round trip
+         * is taken.
+         *
+         * @param lookupId The key being looked up.
+         * @return The closest preceding finger, or the successor if there is none.
+         */
+        public Entry closestPrecedingFinger(long lookupId) {
+            for (int i = FT_ROWS - 1; i > 0; i--) {
+                if (precedes(nodeIds[i], lookupId)) {
+                    return nearest(i, lookupId);
+                }
+            }
+            return nodes[0];
+        }
+
+        private boolean precedes(long nodeId, long lookupId) {
+            return nodeId != selfPeerID && nodeId != lookupId && isInRing(nodeId, selfPeerID, lookupId);
+        }
+
+        /* the exact finger unless an alternative in its row is measured to be closer */
+        private Entry nearest(int row, long lookupId) {
+            Entry best = nodes[row];
+            long bestTrip = proximity.applyAsLong(best);
+            for (Entry candidate : alternates[row]) {
+                long trip = proximity.applyAsLong(candidate);
+                if (trip >= 0 && (bestTrip < 0 || trip < bestTrip) && precedes(candidate.getHashCode(), lookupId)) {
+                    best = candidate;
+                    bestTrip = trip;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Lists distinct fingers lying strictly between this node and the key,
+         * closest to the key first, for a lookup that wants more than one
+         * peer to try.
+         *
+         * @param lookupId The key being looked up.
+         * @param count    The most fingers to return.
+         * @return The closest preceding fingers, or the successor if there are none.
+         */
+        public List<Entry> closestPrecedingFingers(long lookupId, int count) {
+            List<Entry> fingers = new ArrayList<>(count);
+            for (int i = FT_ROWS - 1; i >= 0 && fingers.size() < count; i--) {
+                long nodeId = nodeIds[i];
+                if (nodeId != selfPeerID && nodeId != lookupId && isInRing(nodeId, selfPeerID, lookupId)
+                        && !contains(fingers, nodes[i])) {
+                    fingers.add(nodes[i]);
+                }
+            }
+            if (fingers.isEmpty()) {
+                fingers.add(nodes[0]);
+            }
+            return fingers;
+        }
+    }
+
+    /**
+     * Creates a table in which every finger is this node.
+     *
+     * @param selfAddress The address of this node.
+     * @param selfPort    The port of this node.
+     * @param selfPeerID  The ID of this node.
+     * @param proximity   The measured round trip to a peer in nanoseconds, or
+     *                    -1 if unknown.
+     */
+    public FingerTable(String selfAddress, int selfPort, long selfPeerID, ToLongFunction<Entry> proximity) {
         this.selfAddress = selfAddress;
         this.selfPort = selfPort;
+        this.proximity = proximity;
+        this.routing = new AtomicReference<>(new Routing(selfPeerID, selfAddress, selfPort, proximity));
     }
 
-    public List<Entry> getTable() {
-        return table;
+    /**
+     * Returns the current routing state. Callers reading more than one field
+     * should read them all from the same snapshot.
+     *
+     * @return The current snapshot.
+     */
+    public Routing snapshot() {
+        return routing.get();
     }
 
-    // public distance(int firstID, int secondID) {
-    // if (firstID <= secondID) {
-    // return secondID - firstID;
-
-    // }
-    // else {
-    // return 32
-    // }
+    /* writers may race, the change is reapplied to whichever snapshot won */
+    private Routing update(UnaryOperator<Routing> change) {
+        return routing.updateAndGet(change);
+    }
 
-    // }
+    public int size() {
+        return FT_ROWS;
+    }
 
-    /* TODO: write a better lookup function */
+    public Entry getFinger(int index) {
+        return routing.get().getFinger(index);
+    }
 
     /* to check if successor in a chord ring */
-    public boolean isSuccessor(int successorKey, int targetKey) {
-        return successorKey == targetKey || isWithinRing(targetKey, this.selfPeerID, successorKey);
+    public boolean isSuccessor(long successorKey, long targetKey) {
+        return successorKey == targetKey || isWithinRing(targetKey, routing.get().selfPeerID, successorKey);
     }
 
-    public boolean isWithinRing(int a, int start, int end) {
-
-        if (start < end) {
-            return a > start && a <= end;
-        } else {
-            return a > start || a <= end;
-        }
+    public boolean isWithinRing(long a, long start, long end) {
+        return isInRing(a, start, end);
     }
 
-    public boolean isWithinRing(long a, long start, long end) {
+    private static boolean isInRing(long a, long start, long end) {
 
         if (start < end) {
             return a > start && a <= end;
@@ -73,125 +508,151 @@ public class FingerTable {
         }
     }
 
-    public void putEntry(int index, Entry entry) {
-        table.add(index, entry);
-    }
-
-    private long calculateRingPosition(int index, int nodeID) {
-        /* calculating nodeID + 2^i */
-        long result = (nodeID + (long) Math.pow(2, index)) % (long) Math.pow(2, FT_ROWS);
-        // int result = (nodeID + (1 << index)) % (1 << FT_ROWS);
-        // System.out.println((1 + (1 << index)) % (1 << FT_ROWS));
-        return result;
+    private static long calculateRingPosition(int index, long nodeID) {
+        /* calculating nodeID + 2^i, wrapped around the 2^63 ring */
+        return (nodeID + (1L << index)) & RING_MASK;
     }
 
     public void initialize() {
-        for (int i = 0; i < FT_ROWS; i++) {
-            Entry entry = new Entry(calculateRingPosition(i, selfPeerID), selfAddress, selfPort);
-            table.add(entry);
-        }
-
-        this.predecessor = new Entry(-1, selfAddress, selfPort);
-        this.successor = new Entry(getSuccessorStart(), selfAddress, selfPort);
-
+        long selfPeerID = routing.get().selfPeerID;
+        routing.set(new Routing(selfPeerID, selfAddress, selfPort, proximity));
     }
 
     public Entry getSuccessor() {
-        return this.successor;
+        return routing.get().getSuccessor();
     }
 
     public Entry getPredecessor() {
-        return predecessor;
+        return routing.get().getPredecessor();
     }
 
     public long getSuccessorStart() {
-        return calculateRingPosition(0, selfPeerID);
+        return routing.get().starts[0];
     }
 
-    public synchronized void updateSuccessor(String ipAddress, int port) {
-        this.successor.updateEntry(ipAddress, port);
-        updateTableWithPeer(this.successor);
-        System.out.println("Successor updated to " + successor.getEntryString());
+    public void updateSuccessor(String ipAddress, int port) {
+        Routing updated = update(current -> current.withSuccessor(ipAddress, port));
+        System.out.println("Successor updated to " + updated.successor.getEntryString());
 
     }
 
-    public synchronized void updatePredecessor(String ipAddress, int port) {
-        this.predecessor.updateEntry(ipAddress, port);
-        updateTableWithPeer(predecessor);
-        System.out.println("Pred updated to " + predecessor.getEntryString());
+    /**
+     * Replaces everything after the successor in the successor list with the
+     * successors the successor reported.
+     *
+     * @param process     The successor's process.
+     * @param ipAddresses The addresses of the successor's successors.
+     * @param ports       Their ports.
+     * @param processes   Their processes, -1 where unknown.
+     */
+    public void updateSuccessorList(long process, String[] ipAddresses, int[] ports, long[] processes) {
+        Entry[] successors = routing.get().successors;
+        Entry[] reported = new Entry[ipAddresses.length];
+        for (int i = 0; i < reported.length; i++) {
+            reported[i] = entryFor(successors, ipAddresses[i], ports[i]).inProcess(processes[i]);
+        }
+        update(current -> current.withSuccessorList(process, reported));
     }
 
-    private void updateTableWithPeer(Entry newPeer) {
-        for (int i = 0; i < FT_ROWS; i++) {
-            /*
-             * this means, if the given peer lies between the start and node id of
-             * any table entry, we have to update it
-             */
-            Entry tempEntry = table.get(i);
-            boolean check = newPeer.getHashCode() == tempEntry.getRingPosition()
-                    || isWithinRing(newPeer.getHashCode(), tempEntry.getRingPosition(),
-                            tempEntry.getHashCode());
-            if (check) {
-                table.get(i).updateEntry(newPeer.getAddress(), newPeer.getPort());
+    /**
+     * Drops a peer found to be unreachable from the successor list and the
+     * fingers, so routing moves on to the next successor at once.
+     *
+     * @param ipAddress The address of the failed peer.
+     * @param port      The port of the failed peer.
+     * @return true if the peer was known and has been removed.
+     */
+    public boolean removePeer(String ipAddress, int port) {
+        if (!routing.get().canRemove(ipAddress, port)) {
+            return false;
+        }
+        Routing updated = update(current -> current.withoutPeer(ipAddress, port));
+        System.out.println("Dropped unreachable peer " + ipAddress + ":" + port + ", successor is now "
+                + updated.successor.getEntryString());
+        return true;
+    }
 
+    /**
+     * Offers peers heard of, e.g. a finger's successor list, as alternatives
+     * for the rows whose interval they fall in.
+     *
+     * @param ipAddresses The addresses of the peers.
+     * @param ports       Their ports.
+     */
+    public void addCandidates(String[] ipAddresses, int[] ports) {
+        if (Configuration.FINGER_CANDIDATES < 2) {
+            return;
+        }
+        Entry[] fingers = routing.get().nodes;
+        Entry[] peers = new Entry[ipAddresses.length];
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = entryFor(fingers, ipAddresses[i], ports[i]);
+        }
+        update(current -> current.withCandidates(peers));
+    }
+
+    /*
+     * an entry for a peer, reusing the ID of a known entry with the same
+     * address; stabilization reports mostly the same peers every round, so
+     * this saves hashing them again
+     */
+    private static Entry entryFor(Entry[] known, String ipAddress, int port) {
+        for (Entry entry : known) {
+            if (entry.hasAddress(ipAddress, port)) {
+                return new Entry(-1, ipAddress, port, entry.getHashCode());
             }
         }
+        return new Entry(-1, ipAddress, port);
+    }
+
+    public void updatePredecessor(String ipAddress, int port) {
+        Routing updated = update(current -> current.withPredecessor(ipAddress, port));
+        System.out.println("Pred updated to " + updated.predecessor.getEntryString());
+    }
+
+    /**
+     * Points one finger at the peer found to succeed its start.
+     *
+     * @param index     The row of the finger.
+     * @param ipAddress The address of the successor of the finger's start.
+     * @param port      The port of the successor of the finger's start.
+     */
+    public void updateFinger(int index, String ipAddress, int port) {
+        update(current -> current.withFinger(index, ipAddress, port));
     }
 
     public void print() {
+        Routing current = routing.get();
         System.out.println("Index   Start   IPAddress   Port");
-        int i = 0;
-        for (Entry entry : table) {
+        for (int i = 0; i < FT_ROWS; i++) {
             System.out.println(
-                    i + " " + entry.getRingPosition() + "  " + entry.getEntryString() + " " + entry.getHashCode());
-            i++;
+                    i + " " + current.starts[i] + "  " + current.nodes[i].getEntryString() + " "
+                            + current.nodeIds[i]);
         }
     }
 
     public void displayTable() {
+        Routing current = routing.get();
         System.out.println("Index   PeerID");
-        int i = 1;
-        for (Entry entry : table) {
-            System.out.println(i + "  " + entry.getHashCode());
-            i++;
+        for (int i = 0; i < FT_ROWS; i++) {
+            System.out.println((i + 1) + "  " + current.nodeIds[i]);
         }
     }
 
     /*
-     * call this function only after checking current node is the successor of
-     * lookup key k
+     * call this function only after checking current node is not the successor
+     * of lookup key k
      */
     public Entry lookup(long lookupId) {
-        // first p >= k
-        // q = FTp[j] ≤ k < FTp[j+1]
-        // q = FTp[1] when p < k < FTp[1]
-        if (isWithinRing(lookupId, selfPeerID, table.get(0).getHashCode())) {
-            return table.get(0);
-        } else {
-
-            for (int i = 0; i < FT_ROWS - 1; i++) {
-                Entry entry = table.get(i);
-                if ((entry.getHashCode() <= lookupId) && (entry.getHashCode() < table.get(i + 1).getHashCode())) {
-                    return entry;
-                }
-
-            }
-            return table.get(table.size() - 1);
-        }
-
+        return routing.get().lookup(lookupId);
     }
 
-    public Map<String, Integer> getFileIndex() {
-        return fileIndex;
+    public Entry closestPrecedingFinger(long lookupId) {
+        return routing.get().closestPrecedingFinger(lookupId);
     }
 
-    public synchronized void updatePeerId(int peerID) {
-        selfPeerID = peerID;
-        for (int i = 0; i < FT_ROWS; i++) {
-            Entry entry = new Entry(calculateRingPosition(i, selfPeerID), selfAddress, selfPort);
-            table.set(i, entry);
-        }
-
+    public void updatePeerId(long peerID) {
+        routing.set(new Routing(peerID, selfAddress, selfPort, proximity));
     }
 
 }
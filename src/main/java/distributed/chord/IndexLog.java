@@ -0,0 +1,240 @@
+package distributed.chord;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import distributed.utils.RingId;
+
+/*
+ * the durable record of every file in a storage directory: a snapshot of
+ * the whole index plus a log of the puts and removes made since; the log is
+ * folded into a new snapshot once it holds more records than the snapshot
+ *
+ * records are flushed to the operating system one by one, so a crashed
+ * process loses nothing; the snapshot is also forced to disk, so a power
+ * loss costs at most the log written since the last one
+ */
+final class IndexLog {
+
+    private static final int SNAPSHOT_MAGIC = 0x43484958;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    // a short log is not worth a snapshot of a large index
+    private static final int MIN_RECORDS_TO_COMPACT = 10_000;
+
+    private final Path snapshotFile;
+    private final Path logFile;
+
+    /* every file on record, whichever virtual node holds it; guarded by this */
+    private final Map<String, Long> files = new HashMap<>();
+
+    private DataOutputStream log;
+    private int records;
+    private boolean damaged;
+
+    private IndexLog(Path directory) {
+        this.snapshotFile = directory.resolve("snapshot");
+        this.logFile = directory.resolve("log");
+    }
+
+    /**
+     * Loads the index kept for a storage directory, or builds it by listing
+     * the directory if there is none or it cannot be read.
+     *
+     * @param storageDirectory The directory holding the files.
+     * @return The index, ready to record changes.
+     * @throws IOException If the index cannot be written.
+     */
+    static IndexLog open(Path storageDirectory) throws IOException {
+        Path directory = storageDirectory.resolveSibling(storageDirectory.getFileName() + ".index");
+        Files.createDirectories(directory);
+        IndexLog index = new IndexLog(directory);
+        index.recover(storageDirectory);
+        return index;
+    }
+
+    private synchronized void recover(Path storageDirectory) throws IOException {
+        long started = System.nanoTime();
+        boolean recorded = Files.exists(snapshotFile) || Files.exists(logFile);
+        boolean complete = recorded && readSnapshot() && replayLog();
+        if (!complete) {
+            files.clear();
+            records = 0;
+            if (Files.isDirectory(storageDirectory)) {
+                scan(storageDirectory);
+            }
+        }
+        if (!complete || records > 0) {
+            // start from a snapshot, which also drops a torn record at the end of the log
+            compact();
+        } else {
+            openLog(false);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        System.out.println((complete ? "Recovered " : recorded ? "Index unreadable, rebuilt " : "Indexed ")
+                + files.size() + " stored files in " + millis + " ms");
+    }
+
+    /*
+     * false if the snapshot cannot be read to its end, whatever the reason;
+     * a missing one is an empty index
+     */
+    private boolean readSnapshot() {
+        if (!Files.exists(snapshotFile)) {
+            return true;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                return false;
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                String fileName = in.readUTF();
+                files.put(fileName, in.readLong());
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("File index snapshot is damaged: " + e);
+            return false;
+        }
+    }
+
+    /*
+     * false if the log holds something other than records, a torn last record
+     * is dropped; records after a damaged one cannot be trusted, so the
+     * directory is listed instead of keeping the records before it
+     */
+    private boolean replayLog() {
+        if (!Files.exists(logFile)) {
+            return true;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            int op;
+            while ((op = in.read()) != -1) {
+                String fileName = in.readUTF();
+                if (op == PUT) {
+                    files.put(fileName, in.readLong());
+                } else if (op == REMOVE) {
+                    files.remove(fileName);
+                } else {
+                    return false;
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            // the process died while writing the last record
+            records++;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("File index log is damaged: " + e);
+            return false;
+        }
+        return true;
+    }
+
+    private void scan(Path storageDirectory) throws IOException {
+        try (DirectoryStream<Path> stored = Files.newDirectoryStream(storageDirectory, Files::isRegularFile)) {
+            for (Path file : stored) {
+                String fileName = file.getFileName().toString();
+                if (!fileName.endsWith(".part")) {
+                    files.put(fileName, RingId.of(fileName));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of every file on record.
+     *
+     * @return The files by name, with their keys.
+     */
+    synchronized Map<String, Long> files() {
+        return new HashMap<>(files);
+    }
+
+    synchronized void recordPut(String fileName, long key) {
+        files.put(fileName, key);
+        append(PUT, fileName, key);
+    }
+
+    synchronized void recordRemove(String fileName) {
+        if (files.remove(fileName) != null) {
+            append(REMOVE, fileName, 0);
+        }
+    }
+
+    private void append(byte op, String fileName, long key) {
+        if (damaged) {
+            return;
+        }
+        try {
+            log.writeByte(op);
+            log.writeUTF(fileName);
+            if (op == PUT) {
+                log.writeLong(key);
+            }
+            log.flush();
+            if (++records >= Math.max(MIN_RECORDS_TO_COMPACT, files.size())) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing the file index, it will be rebuilt on the next start: "
+                    + e.getMessage());
+            damaged = true;
+            try {
+                // without a snapshot the next start lists the directory instead of trusting the log
+                Files.deleteIfExists(snapshotFile);
+                Files.deleteIfExists(logFile);
+            } catch (IOException ignored) {
+                // nothing more can be done about a failing disk here
+            }
+        }
+    }
+
+    /* writes every file on record to a new snapshot and starts an empty log */
+    private void compact() throws IOException {
+        Path written = snapshotFile.resolveSibling("snapshot.tmp");
+        try (FileChannel channel = FileChannel.open(written, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(files.size());
+            for (Map.Entry<String, Long> file : files.entrySet()) {
+                out.writeUTF(file.getKey());
+                out.writeLong(file.getValue());
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(written, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // replaying this log over the new snapshot would be harmless, every record is idempotent
+        openLog(true);
+        records = 0;
+    }
+
+    private void openLog(boolean truncate) throws IOException {
+        if (log != null) {
+            log.close();
+        }
+        log = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(logFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, truncate ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND)));
+    }
+}
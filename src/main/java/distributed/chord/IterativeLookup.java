@@ -0,0 +1,166 @@
+package distributed.chord;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import distributed.tcp.ConnectionPool;
+import distributed.tcp.TCPConnection;
+import distributed.utils.Configuration;
+import distributed.utils.Entry;
+import distributed.wireformats.ClosestPeers;
+import distributed.wireformats.Event;
+import distributed.wireformats.FindClosestPeers;
+import distributed.wireformats.IdentifiedSuccessor;
+import distributed.wireformats.RequestSuccessor;
+
+/*
+ * runs a lookup from the asking peer instead of relaying it: each step asks up
+ * to LOOKUP_ALPHA candidates at once, continues with whichever answers first
+ * and keeps the candidates not yet asked in case every asked peer fails
+ */
+class IterativeLookup {
+
+    // a lookup still going after this many steps is given up, e.g. while fingers loop
+    private static final int MAX_STEPS = 64;
+
+    private final Peer peer;
+    private final FingerTable fingerTable;
+    private final ConnectionPool connectionPool;
+
+    IterativeLookup(Peer peer, FingerTable fingerTable, ConnectionPool connectionPool) {
+        this.peer = peer;
+        this.fingerTable = fingerTable;
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * Finds the successor of the request's key.
+     *
+     * @param request The lookup; the peers that answered are added to its hops.
+     * @return A future for the answer, shaped as if the lookup had been relayed.
+     */
+    CompletableFuture<Event> find(RequestSuccessor request) {
+        long key = request.getLookupKey();
+        FingerTable.Routing routing = fingerTable.snapshot();
+        Entry self = routing.getSelf();
+        if (fingerTable.isWithinRing(key, routing.getPredecessor().getHashCode(), self.getHashCode())) {
+            return CompletableFuture.completedFuture(identified(request, self));
+        }
+        // a key held by the successor is confirmed by asking it, so a failed successor is noticed here
+        return step(request, localCandidates(key), new HashSet<>(), 0);
+    }
+
+    private List<Entry> localCandidates(long key) {
+        return fingerTable.snapshot().closestPrecedingFingers(key, Configuration.LOOKUP_ALPHA);
+    }
+
+    private CompletableFuture<Event> step(RequestSuccessor request, List<Entry> candidates, Set<String> asked,
+            int steps) {
+        List<Entry> fresh = new ArrayList<>(candidates.size());
+        Set<String> listed = new HashSet<>();
+        for (Entry candidate : candidates) {
+            String address = candidate.getEntryString();
+            if (!candidate.hasAddress(peer.getIPAddress(), peer.getPort()) && !asked.contains(address)
+                    && listed.add(address)) {
+                fresh.add(candidate);
+            }
+        }
+        if (fresh.isEmpty()) {
+            return CompletableFuture.failedFuture(
+                    new IOException("No peer left to ask for key " + request.getLookupKey()));
+        }
+        if (steps >= MAX_STEPS) {
+            return CompletableFuture.failedFuture(
+                    new IOException("Lookup for key " + request.getLookupKey() + " gave up after " + steps + " steps"));
+        }
+
+        int probes = Math.min(Configuration.LOOKUP_ALPHA, fresh.size());
+        List<Entry> fallbacks = new ArrayList<>(fresh.subList(probes, fresh.size()));
+        List<CompletableFuture<Answer>> answers = new ArrayList<>(probes);
+        for (Entry candidate : fresh.subList(0, probes)) {
+            asked.add(candidate.getEntryString());
+            answers.add(ask(candidate, request.getLookupKey()).thenApply(message -> new Answer(candidate, message)));
+        }
+
+        return firstSuccessful(answers).handle((answer, error) -> {
+            if (error != null) {
+                /*
+                 * every peer asked in this step failed: go on with the ones not
+                 * asked yet, or with the table the failed peers were dropped from
+                 */
+                return step(request, fallbacks.isEmpty() ? localCandidates(request.getLookupKey()) : fallbacks,
+                        asked, steps + 1);
+            }
+            request.addPeerToHops(answer.peer.getHashCode());
+            request.incrementHops();
+            ClosestPeers message = answer.message;
+            if (message.isFound()) {
+                return CompletableFuture.<Event>completedFuture(
+                        identified(request, new Entry(-1, message.getIPAddress(0), message.getPort(0))));
+            }
+            List<Entry> next = new ArrayList<>(message.getPeerCount() + fallbacks.size());
+            for (int i = 0; i < message.getPeerCount(); i++) {
+                next.add(new Entry(-1, message.getIPAddress(i), message.getPort(i)));
+            }
+            next.addAll(fallbacks);
+            return step(request, next, asked, steps + 1);
+        }).thenCompose(result -> result);
+    }
+
+    /* asks one peer; an unreachable peer is dropped from the table if it is in it */
+    private CompletableFuture<ClosestPeers> ask(Entry candidate, long key) {
+        TCPConnection connection;
+        try {
+            connection = connectionPool.getConnection(candidate.getAddress(), candidate.getPort());
+        } catch (IOException e) {
+            peer.dropUnreachablePeer(candidate);
+            return CompletableFuture.failedFuture(e);
+        }
+        return connection.timedRequest(new FindClosestPeers(key, Configuration.LOOKUP_ALPHA)).handle((response, error) -> {
+            if (error != null) {
+                if (!connection.isOpen()) {
+                    peer.dropUnreachablePeer(candidate);
+                }
+                throw new CompletionException(error);
+            }
+            return (ClosestPeers) response;
+        });
+    }
+
+    private static IdentifiedSuccessor identified(RequestSuccessor request, Entry owner) {
+        return new IdentifiedSuccessor(owner.getAddress(), owner.getPort(), request.getPurpose(),
+                request.getPayload(), request.getHopsCount(), request.getHops());
+    }
+
+    /* completes with the first future to succeed, or fails once all of them failed */
+    private static <T> CompletableFuture<T> firstSuccessful(List<CompletableFuture<T>> futures) {
+        CompletableFuture<T> first = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (CompletableFuture<T> future : futures) {
+            future.whenComplete((value, error) -> {
+                if (error == null) {
+                    first.complete(value);
+                } else if (failures.incrementAndGet() == futures.size()) {
+                    first.completeExceptionally(error);
+                }
+            });
+        }
+        return first;
+    }
+
+    private static final class Answer {
+        final Entry peer;
+        final ClosestPeers message;
+
+        Answer(Entry peer, ClosestPeers message) {
+            this.peer = peer;
+            this.message = message;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package distributed.chord;
 
+import java.util.concurrent.CompletableFuture;
+
 import distributed.tcp.TCPConnection;
 import distributed.wireformats.Event;
 
@@ -15,4 +17,18 @@ public interface Node {
      */
     // implicitly public
     void handleIncomingEvent(Event event, TCPConnection connection);
+
+    /**
+     * Handles an event sent with TCPConnection.request. The event the returned
+     * future completes with is sent back as the response. By default the event
+     * is handled like any other and answered with an empty response.
+     *
+     * @param event      The request to handle.
+     * @param connection The TCP connection the request arrived on.
+     * @return A future for the response event.
+     */
+    default CompletableFuture<? extends Event> handleIncomingRequest(Event event, TCPConnection connection) {
+        handleIncomingEvent(event, connection);
+        return CompletableFuture.completedFuture(null);
+    }
 }
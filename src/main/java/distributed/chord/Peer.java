@@ -2,22 +2,40 @@ package distributed.chord;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import distributed.tcp.ConnectionPool;
+import distributed.tcp.NIOServer;
 import distributed.tcp.TCPConnection;
 import distributed.tcp.TCPServer;
+import distributed.utils.Configuration;
 import distributed.utils.Entry;
 import distributed.utils.FixFingers;
+import distributed.utils.RingId;
+import distributed.utils.Stabilizer;
+import distributed.wireformats.ChunkAck;
+import distributed.wireformats.ClosestPeers;
 import distributed.wireformats.DownloadRequest;
-import distributed.wireformats.DownloadResponse;
 import distributed.wireformats.Event;
+import distributed.wireformats.FileChunk;
 import distributed.wireformats.FileNotFound;
-import distributed.wireformats.FileTransfer;
 import distributed.wireformats.FileTransferResponse;
+import distributed.wireformats.FindClosestPeers;
+import distributed.wireformats.FindSuccessors;
 import distributed.wireformats.FindSuccessorTypes;
 import distributed.wireformats.GetPredecessor;
 import distributed.wireformats.GetPredecessorResponse;
@@ -29,6 +47,7 @@ import distributed.wireformats.Register;
 import distributed.wireformats.RegisterResponse;
 import distributed.wireformats.RequestSuccessor;
 import distributed.wireformats.SetupChord;
+import distributed.wireformats.SuccessorsFound;
 
 /**
  * Implementation of the Node interface, represents a messaging node in the
@@ -46,26 +65,47 @@ public class Peer implements Node, Protocol {
      */
     private final Integer nodePort;
     private final String hostName;
-    private Integer peerID;
+    private long peerID;
     private final String hostIP;
     private final String fullAddress;
 
+    /* files of all virtual nodes in this process are kept in /tmp/<storageID> */
+    private final long storageID;
+
+    /* every virtual node in this process, this one included */
+    private List<Peer> virtualNodes = Collections.singletonList(this);
+
     private FingerTable fingerTable;
     private FixFingers fixFingers;
+    private Stabilizer stabilizer;
+    private BatchLookup batchLookup;
+    private IterativeLookup iterativeLookup;
 
     private PeerUtilities utils;
 
+    // long-lived connections to other peers, reused across messages
+    private final ConnectionPool connectionPool;
+
+    // peers that answered recent lookups, asked directly next time
+    private final SuccessorCache successorCache = new SuccessorCache();
+
+    // handlers for incoming events, by message type
+    private final EventDispatcher dispatcher = new EventDispatcher();
+
     // Constants for command strings
 
     // create a TCP connection with the Registry
     private TCPConnection registryConnection;
 
-    private Peer(String hostName, String hostIP, int nodePort, int peerID) {
+    private Peer(String hostName, String hostIP, int nodePort, long peerID, long storageID) {
         this.hostName = hostName;
         this.hostIP = hostIP;
         this.nodePort = nodePort;
         this.peerID = peerID;
+        this.storageID = storageID;
         this.fullAddress = hostIP + ":" + nodePort;
+        this.connectionPool = new ConnectionPool(this, Configuration.POOL_IDLE_SECONDS);
+        registerHandlers();
     }
 
     public static void main(String[] args) {
@@ -73,34 +113,79 @@ public class Peer implements Node, Protocol {
             printUsageAndExit();
         }
         System.out.println("Messaging node live at: " + new Date());
-        try (ServerSocket serverSocket = new ServerSocket(0)) {
-            // assign a random available port
-            int nodePort = serverSocket.getLocalPort();
-
+        List<ServerSocketChannel> serverChannels = new ArrayList<>();
+        try {
             String hostIP = InetAddress.getLocalHost().getHostAddress();
-
-            /* 32-bit integer id for peer */
-            String hostString = hostIP + ":" + String.valueOf(nodePort);
-            int peerID = Math.abs(hostString.hashCode());
-            System.out.println("hashcode of " + hostString + " " + peerID);
+            String hostName = InetAddress.getLocalHost().getHostName();
 
             /*
-             * get local host name and use assigned nodePort to initialize a messaging node
+             * each virtual node listens on a port of its own, so peers keep
+             * telling nodes apart by address; all of them share the event
+             * loops, handler threads and storage directory of this process
              */
-            Peer node = new Peer(
-                    InetAddress.getLocalHost().getHostName(), hostIP, nodePort, peerID);
+            List<Peer> nodes = new ArrayList<>();
+            for (int i = 0; i < Configuration.virtualNodeCount(); i++) {
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannels.add(serverChannel);
+                /*
+                 * a fixed port keeps the peer id, and so its storage directory
+                 * and file index, across restarts; otherwise assign a random
+                 * available port
+                 */
+                serverChannel.bind(new InetSocketAddress(Configuration.PORT == 0 ? 0 : Configuration.PORT + i));
+                int nodePort = serverChannel.socket().getLocalPort();
+
+                /* 63-bit id for peer, see RingId */
+                String hostString = hostIP + ":" + String.valueOf(nodePort);
+                long peerID = RingId.of(hostString);
+                System.out.println("hashcode of " + hostString + " " + peerID);
 
-            /* start a new TCP server thread */
-            (new Thread(new TCPServer(node, serverSocket))).start();
+                /*
+                 * get local host name and use assigned nodePort to initialize a messaging node
+                 */
+                Peer node = new Peer(hostName, hostIP, nodePort, peerID,
+                        nodes.isEmpty() ? peerID : nodes.get(0).storageID);
+                nodes.add(node);
+
+                /* start a new server thread on the transport selected at startup */
+                if (Configuration.useSelectorTransport()) {
+                    (new Thread(new NIOServer(node, serverChannel))).start();
+                } else {
+                    (new Thread(new TCPServer(node, serverChannel.socket()))).start();
+                }
+            }
 
-            // register this node with the registry
-            node.registerNode(args[0], Integer.valueOf(args[1]));
+            List<Peer> group = Collections.unmodifiableList(nodes);
+            IndexLog indexLog = IndexLog.open(group.get(0).getStorageDirectory());
+            /* the copies kept for other peers are shared by every virtual node */
+            IndexLog replicaLog = IndexLog.open(group.get(0).getReplicaDirectory());
+            FileIndex replicas = new FileIndex(replicaLog);
+            for (Map.Entry<String, Long> copy : replicaLog.files().entrySet()) {
+                replicas.adopt(copy.getKey(), copy.getValue());
+            }
+            for (Peer node : group) {
+                node.virtualNodes = group;
+                node.initializeRouting(indexLog, replicas);
+            }
+            adoptStoredFiles(group, indexLog);
+            for (Peer node : group) {
+                // register this node with the registry
+                node.registerNode(args[0], Integer.valueOf(args[1]));
+            }
 
             // facilitate user input in the console
-            node.takeCommands();
+            group.get(0).takeCommands();
         } catch (IOException e) {
             System.out.println("An error occurred: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            for (ServerSocketChannel serverChannel : serverChannels) {
+                try {
+                    serverChannel.close();
+                } catch (IOException e) {
+                    System.out.println("Error closing server channel: " + e.getMessage());
+                }
+            }
         }
     }
 
@@ -113,11 +198,45 @@ public class Peer implements Node, Protocol {
         System.exit(1);
     }
 
+    /*
+     * the routing state must exist before the discovery can answer, its
+     * response starts the maintenance threads
+     */
+    private void initializeRouting(IndexLog indexLog, FileIndex replicas) {
+        fingerTable = new FingerTable(this.hostIP, this.nodePort, peerID,
+                peer -> connectionPool.getRoundTripNanos(peer.getAddress(), peer.getPort()));
+
+        /* initialize finger table */
+        fingerTable.initialize();
+
+        this.utils = new PeerUtilities(this, fingerTable, new FileIndex(indexLog), replicas);
+        this.stabilizer = new Stabilizer(fingerTable, this);
+        this.fixFingers = new FixFingers(fingerTable, this);
+        this.batchLookup = new BatchLookup(this, fingerTable, connectionPool);
+        this.iterativeLookup = new IterativeLookup(this, fingerTable, connectionPool);
+    }
+
+    /*
+     * files kept from an earlier run go to the virtual node whose id follows
+     * their key; once the ring is joined, each node hands the files whose
+     * keys now belong to a new predecessor over as usual
+     */
+    private static void adoptStoredFiles(List<Peer> group, IndexLog indexLog) {
+        for (Map.Entry<String, Long> file : indexLog.files().entrySet()) {
+            Peer owner = group.get(0);
+            for (Peer node : group) {
+                if (((node.peerID - file.getValue()) & RingId.MASK) < ((owner.peerID - file.getValue()) & RingId.MASK)) {
+                    owner = node;
+                }
+            }
+            owner.utils.getFileIndex().adopt(file.getKey(), file.getValue());
+        }
+    }
+
     private void registerNode(String registryHost, Integer registryPort) {
         try {
             // create a socket to the Registry server
-            Socket socketToRegistry = new Socket(registryHost, registryPort);
-            TCPConnection connection = new TCPConnection(this, socketToRegistry);
+            TCPConnection connection = TCPConnection.connect(this, registryHost, registryPort);
 
             Register register = new Register(Protocol.REGISTER_REQUEST,
                     this.hostIP, this.nodePort, this.hostName, this.peerID);
@@ -132,13 +251,6 @@ public class Peer implements Node, Protocol {
             // Set the registry connection for this node
             this.registryConnection = connection;
 
-            fingerTable = new FingerTable(this.hostIP, this.nodePort, peerID);
-
-            /* initialize finger table */
-            fingerTable.initialize();
-
-            this.utils = new PeerUtilities(this, fingerTable);
-
         } catch (IOException | InterruptedException e) {
             System.out.println("Error registering node: " + e.getMessage());
             e.printStackTrace();
@@ -155,20 +267,20 @@ public class Peer implements Node, Protocol {
                 switch (input[0]) {
 
                     case "neighbors":
-                        printNeighbors();
+                        forEachVirtualNode(Peer::printNeighbors);
                         break;
 
                     case "files":
                         // TODO:
-                        printFiles();
+                        forEachVirtualNode(Peer::printFiles);
                         break;
 
                     case "finger-table":
-                        fingerTable.displayTable();
+                        forEachVirtualNode(node -> node.fingerTable.displayTable());
                         break;
 
                     case "fingertable":
-                        fingerTable.print();
+                        forEachVirtualNode(node -> node.fingerTable.print());
                         break;
 
                     case "upload":
@@ -181,7 +293,7 @@ public class Peer implements Node, Protocol {
 
                     case "exit":
                         // TODO:
-                        exitChord();
+                        exitAllVirtualNodes();
                         break;
 
                     default:
@@ -194,79 +306,95 @@ public class Peer implements Node, Protocol {
             e.printStackTrace();
         } finally {
             System.out.println("Deregistering the node and terminating: " + hostName + ":" + nodePort);
-            exitChord();
+            exitAllVirtualNodes();
             System.exit(0);
         }
     }
 
-    public void handleIncomingEvent(Event event, TCPConnection connection) {
-        // System.out.println("Received event: " + event.toString());
-
-        switch (event.getType()) {
-
-            case Protocol.REGISTER_RESPONSE:
-                handleRegisterResponse((RegisterResponse) event);
-                break;
-
-            case Protocol.SETUP_CHORD:
-                handleDiscoveryMessage((SetupChord) event);
-                break;
-
-            case Protocol.REQUEST_SUCCESSOR:
-                handleSuccessorRequest((RequestSuccessor) event, connection);
-                break;
-
-            case Protocol.SUCCESSOR_IDENTIFIED:
-                handleSuccessorResponse((IdentifiedSuccessor) event, connection);
-                break;
-
-            case Protocol.GET_PREDECESSOR:
-                sendPredecessor((GetPredecessor) event, connection);
-                break;
-
-            case Protocol.GET_PREDECESSOR_RESPONSE:
-                receivePredecessor((GetPredecessorResponse) event, connection);
-                break;
-
-            case Protocol.NOTIFY_SUCCESSOR:
-                updatePredecessor((NotifyYourSuccessor) event, connection);
-                break;
-
-            case Protocol.NOTIFY_PREDECESSOR:
-                updateSuccessor((NotifyYourPredecessor) event, connection);
-                break;
-
-            case Protocol.FILE_TRANSFER:
-                utils.sendFileReceived((FileTransfer) event, connection);
-                break;
-
-            case Protocol.FILE_TRANSFER_RESPONSE:
-                utils.handleFileTransferResponse((FileTransferResponse) event, connection);
-                break;
+    /*
+     * every virtual node of this process leaves, handing its files to the
+     * first peer after it that is not leaving too; those heirs are found
+     * before anyone leaves, while the successor pointers can still be followed
+     */
+    private void exitAllVirtualNodes() {
+        List<Entry> heirs = new ArrayList<>(virtualNodes.size());
+        for (Peer node : virtualNodes) {
+            heirs.add(node.firstRemoteSuccessor());
+        }
+        for (int i = 0; i < virtualNodes.size(); i++) {
+            virtualNodes.get(i).exitChord(heirs.get(i));
+        }
+    }
 
-            case Protocol.DOWNLOAD_REQUEST:
-                utils.handleDownloadRequest((DownloadRequest) event, connection);
-                break;
+    private Entry firstRemoteSuccessor() {
+        Entry next = fingerTable.getSuccessor();
+        for (int i = 0; i < virtualNodes.size(); i++) {
+            Peer node = localNode(next.getAddress(), next.getPort());
+            if (node == null) {
+                return next;
+            }
+            next = node.fingerTable.getSuccessor();
+        }
+        // no other process is left in the ring
+        return next;
+    }
 
-            case Protocol.DOWNLOAD_RESPONSE:
-                utils.handleDownloadResponse((DownloadResponse) event, connection);
-                break;
+    /* runs a console command on every virtual node, naming each one if there are several */
+    private void forEachVirtualNode(Consumer<Peer> command) {
+        for (Peer node : virtualNodes) {
+            if (virtualNodes.size() > 1) {
+                System.out.println("virtual node " + node.peerID + " " + node.fullAddress);
+            }
+            command.accept(node);
+        }
+    }
 
-            case Protocol.FILE_NOT_FOUND:
-                utils.handleFileNotFound((FileNotFound) event, connection);
-                break;
+    public void handleIncomingEvent(Event event, TCPConnection connection) {
+        // System.out.println("Received event: " + event.toString());
+        dispatcher.dispatch(event, connection);
+    }
 
-            case Protocol.COLLISION:
-                retryRegistration();
-                break;
+    public CompletableFuture<? extends Event> handleIncomingRequest(Event event, TCPConnection connection) {
+        return dispatcher.dispatchRequest(event, connection);
+    }
 
-        }
+    /*
+     * utils is created once registration is sent, so handlers using it look it
+     * up when they run
+     */
+    private void registerHandlers() {
+        dispatcher.<RegisterResponse>onEvent(Protocol.REGISTER_RESPONSE,
+                (event, connection) -> handleRegisterResponse(event));
+        dispatcher.<SetupChord>onEvent(Protocol.SETUP_CHORD,
+                (event, connection) -> handleDiscoveryMessage(event));
+        dispatcher.onEvent(Protocol.NOTIFY_SUCCESSOR, this::updatePredecessor);
+        dispatcher.onEvent(Protocol.NOTIFY_PREDECESSOR, this::updateSuccessor);
+        dispatcher.<FileChunk>onEvent(Protocol.FILE_CHUNK,
+                (event, connection) -> utils.handleFileChunk(event, connection));
+        dispatcher.<FileTransferResponse>onEvent(Protocol.FILE_TRANSFER_RESPONSE,
+                (event, connection) -> utils.handleFileTransferResponse(event, connection));
+        dispatcher.<DownloadRequest>onEvent(Protocol.DOWNLOAD_REQUEST,
+                (event, connection) -> utils.handleDownloadRequest(event, connection));
+        dispatcher.<ChunkAck>onEvent(Protocol.CHUNK_ACK,
+                (event, connection) -> utils.handleChunkAck(event, connection));
+        dispatcher.<FileNotFound>onEvent(Protocol.FILE_NOT_FOUND,
+                (event, connection) -> utils.handleFileNotFound(event, connection));
+        dispatcher.onEvent(Protocol.COLLISION, (event, connection) -> retryRegistration());
+
+        dispatcher.<RequestSuccessor>onRequest(Protocol.REQUEST_SUCCESSOR,
+                (event, connection) -> handleSuccessorRequest(event));
+        dispatcher.onRequest(Protocol.GET_PREDECESSOR,
+                (event, connection) -> CompletableFuture.completedFuture(getPredecessorResponse()));
+        dispatcher.<FindSuccessors>onRequest(Protocol.FIND_SUCCESSORS,
+                (event, connection) -> batchLookup.resolve(event.getPurpose(), event.getKeys(), event.getHopsCount()));
+        dispatcher.<FindClosestPeers>onRequest(Protocol.FIND_CLOSEST_PEERS,
+                (event, connection) -> CompletableFuture.completedFuture(closestPeers(event)));
     }
 
     private void retryRegistration() {
         try {
             // create a socket to the Registry server
-            this.peerID = Math.abs(this.fullAddress.hashCode());
+            this.peerID = RingId.of(this.fullAddress);
 
             Register register = new Register(Protocol.REGISTER_REQUEST,
                     this.hostIP, this.nodePort, this.hostName, this.peerID);
@@ -284,8 +412,8 @@ public class Peer implements Node, Protocol {
     }
 
     private void handleRegisterResponse(RegisterResponse response) {
-        this.fixFingers = new FixFingers(fingerTable, this);
         this.fixFingers.start();
+        this.stabilizer.start();
         System.out.println("Received registration response from the discovery: " + response.toString());
     }
 
@@ -296,9 +424,6 @@ public class Peer implements Node, Protocol {
          */
         if (!message.getConnectionReadable().equals(fullAddress)) {
             try {
-                Socket socketToPeer = new Socket(message.getIPAddress(), message.getPort());
-                TCPConnection connection = new TCPConnection(this, socketToPeer);
-
                 /* send lookup request of the peer-id to this random peer */
 
                 /*
@@ -306,7 +431,7 @@ public class Peer implements Node, Protocol {
                  * 1. send request successor to random node
                  * 2. random node searches for your immediate predecessor, pings it through
                  * forwarded requests i.e. perform lookup hops with requests
-                 * 3. the predecessor pings you with its successor
+                 * 3. the answer travels back along the hops to you
                  * 4. you update your successor with this info
                  */
 
@@ -314,10 +439,9 @@ public class Peer implements Node, Protocol {
                         this.peerID, this.hostIP, this.nodePort);
                 request.addPeerToHops(this.peerID);
 
-                connection.getTCPSenderThread().sendData(request.getBytes());
-                connection.start();
+                requestSuccessor(message.getIPAddress(), message.getPort(), request);
 
-            } catch (IOException | InterruptedException e) {
+            } catch (IOException e) {
                 System.out.println(e.getMessage());
                 e.printStackTrace();
             }
@@ -325,12 +449,13 @@ public class Peer implements Node, Protocol {
 
     }
 
-    private void exitChord() {
+    private void exitChord(Entry heir) {
         /*
          * while exiting, send all the files you were responsible for to your successor
          */
-        utils.migrateFilesToSuccessor();
+        utils.migrateFilesToSuccessor(heir);
         this.fixFingers.stopRoutine();
+        this.stabilizer.stopRoutine();
 
         Register register = new Register(Protocol.DEREGISTER_REQUEST,
                 this.hostIP, this.nodePort, this.hostName, this.peerID);
@@ -345,10 +470,9 @@ public class Peer implements Node, Protocol {
         try {
             NotifyYourPredecessor notifyPred = new NotifyYourPredecessor(
                     successor.getAddress(), successor.getPort(), true);
-            Socket socketToPred = new Socket(predecessor.getAddress(), predecessor.getPort());
-            TCPConnection connection = new TCPConnection(this, socketToPred);
+            TCPConnection connection = connectionPool.getConnection(predecessor.getAddress(),
+                    predecessor.getPort());
             connection.getTCPSenderThread().sendData(notifyPred.getBytes());
-            connection.start();
         } catch (IOException | InterruptedException e) {
             System.out.println("Error occurred while notifying predecessor about their new successor"
                     + e.getMessage());
@@ -358,10 +482,9 @@ public class Peer implements Node, Protocol {
         try {
             NotifyYourSuccessor notifySucc = new NotifyYourSuccessor(predecessor.getAddress(),
                     predecessor.getPort(), true);
-            Socket socketToSucc = new Socket(successor.getAddress(), successor.getPort());
-            TCPConnection connection = new TCPConnection(this, socketToSucc);
+            TCPConnection connection = connectionPool.getConnection(successor.getAddress(),
+                    successor.getPort());
             connection.getTCPSenderThread().sendData(notifySucc.getBytes());
-            connection.start();
         } catch (IOException | InterruptedException e) {
             System.out.println("Error occurred while notifying predecessor about their new successor"
                     + e.getMessage());
@@ -370,15 +493,101 @@ public class Peer implements Node, Protocol {
 
         try {
             registryConnection.getTCPSenderThread().sendData(register.getBytes());
-            registryConnection.close();
-        } catch (IOException | InterruptedException e) {
+            // the process exits right after this, so wait for the deregistration to be flushed
+            registryConnection.close().get(5, TimeUnit.SECONDS);
+        } catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
             System.out.println(e.getMessage());
             e.printStackTrace();
         }
 
     }
 
-    private void handleSuccessorRequest(RequestSuccessor message, TCPConnection peerConnection) {
+    /**
+     * Sends a successor lookup to the given peer as a request and acts on the
+     * answer once the responsible peer is found. Lookups to the same peer
+     * share its pooled connection and may complete in any order.
+     *
+     * @param host    The address of the peer to ask.
+     * @param port    The port of the peer to ask.
+     * @param request The lookup to send.
+     * @throws IOException If the peer cannot be reached.
+     */
+    public void requestSuccessor(String host, int port, RequestSuccessor request) throws IOException {
+        TCPConnection connection = connectionPool.getConnection(host, port);
+        awaitSuccessor(connection.request(request), request);
+    }
+
+    /**
+     * Starts a successor lookup at the closest preceding finger in this peer's
+     * table, or runs it from here when lookups are iterative. A key whose
+     * responsible peer was found recently is sent straight to that peer.
+     * Unreachable peers are skipped the same way as when relaying.
+     *
+     * @param request The lookup to send.
+     * @throws IOException If no known peer can be reached.
+     */
+    public void requestSuccessor(RequestSuccessor request) throws IOException {
+        long key = request.getLookupKey();
+        Entry cached = successorCache.get(key);
+        CompletableFuture<Event> answer = cached != null ? askCachedSuccessor(request, cached)
+                : lookupSuccessor(request);
+        awaitSuccessor(answer.thenApply(response -> {
+            IdentifiedSuccessor found = (IdentifiedSuccessor) response;
+            successorCache.put(key, new Entry(-1, found.getIPAddress(), found.getPort()));
+            return response;
+        }), request);
+    }
+
+    private CompletableFuture<Event> lookupSuccessor(RequestSuccessor request) throws IOException {
+        if (Configuration.useIterativeLookup()) {
+            return iterativeLookup.find(request);
+        }
+        return forwardSuccessorRequest(request, fingerTable.lookup(request.getLookupKey()));
+    }
+
+    /*
+     * sends a lookup to the peer that answered it last time; that peer answers
+     * itself only while it is still responsible and relays the lookup
+     * otherwise, so an answer naming someone else drops the cached range
+     */
+    private CompletableFuture<Event> askCachedSuccessor(RequestSuccessor request, Entry cached) {
+        TCPConnection connection;
+        try {
+            connection = connectionPool.getConnection(cached.getAddress(), cached.getPort());
+        } catch (IOException e) {
+            successorCache.invalidate(cached);
+            return lookupAfterCacheMiss(request);
+        }
+        return connection.request(request).handle((response, error) -> {
+            if (error != null) {
+                successorCache.invalidate(cached);
+                return lookupAfterCacheMiss(request);
+            }
+            IdentifiedSuccessor found = (IdentifiedSuccessor) response;
+            if (!cached.hasAddress(found.getIPAddress(), found.getPort())) {
+                successorCache.invalidate(cached);
+            }
+            return CompletableFuture.completedFuture(response);
+        }).thenCompose(result -> result);
+    }
+
+    private CompletableFuture<Event> lookupAfterCacheMiss(RequestSuccessor request) {
+        try {
+            return lookupSuccessor(request);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private void awaitSuccessor(CompletableFuture<Event> answer, RequestSuccessor request) {
+        answer.thenAccept(response -> handleSuccessorResponse((IdentifiedSuccessor) response))
+                .exceptionally(e -> {
+                    System.out.println("Lookup for key " + request.getLookupKey() + " failed: " + e.getMessage());
+                    return null;
+                });
+    }
+
+    private CompletableFuture<Event> handleSuccessorRequest(RequestSuccessor message) {
         /* TODO: make sure the finger table is initialized */
 
         /* perform lookup for the given peer id and send it as response */
@@ -388,29 +597,20 @@ public class Peer implements Node, Protocol {
 
         /*
          * first look for the successor of lookup id in peer table
-         * if found, send it back to the original peer
+         * if found, answer with this node's info
          * else
-         * forward the successor request to node with closes succeeding id
+         * forward the successor request to node with closes succeeding id and
+         * relay its answer back
          */
         try {
-            peerConnection.close();
-
             /*
              * key > predecessor
              * key <= self
              */
-            if (fingerTable.isWithinRing(lookupId, this.fingerTable.getPredecessor().getHashCode(), this.peerID)) {
+            FingerTable.Routing routing = fingerTable.snapshot();
+            if (fingerTable.isWithinRing(lookupId, routing.getPredecessor().getHashCode(), this.peerID)) {
                 /* basically sending this node's network info */
-                IdentifiedSuccessor response = new IdentifiedSuccessor(this.hostIP, this.nodePort, message.getPurpose(),
-                        message.getPayload(), message.getHopsCount(),
-                        message.getHopsList());
-
-                Socket socketToSource = new Socket(message.getAddress(),
-                        message.getPort());
-                TCPConnection connectionToSource = new TCPConnection(this, socketToSource);
-
-                connectionToSource.getTCPSenderThread().sendData(response.getBytes());
-                connectionToSource.start();
+                return identifySelf(message);
 
             } else {
 
@@ -420,67 +620,202 @@ public class Peer implements Node, Protocol {
                  */
 
                 // call fingertable lookup function to find the predecessor
-                Entry lookupResult = fingerTable.lookup(lookupId);
-
-                /* get its successor */
-                Socket socketToPred = new Socket(lookupResult.getAddress(),
-                        lookupResult.getPort());
-                TCPConnection connectionToPred = new TCPConnection(this, socketToPred);
-
-                connectionToPred.getTCPSenderThread().sendData(message.getBytes());
-                connectionToPred.start();
+                return forwardSuccessorRequest(message, routing.lookup(lookupId));
 
             }
 
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException e) {
             System.out.println(
                     "Error occured while forwarding request for successor." + "Forward count is " + e.getMessage());
             e.printStackTrace();
-
+            return CompletableFuture.failedFuture(e);
         }
 
     }
 
-    private void handleSuccessorResponse(IdentifiedSuccessor message, TCPConnection connection) {
-        int purpose = message.getPurpose();
-
-        switch (purpose) {
-            case FindSuccessorTypes.JOIN_REQUEST:
-                utils.joinNetwork(message, connection);
-                break;
+    /*
+     * relays a lookup to the chosen finger; if that peer cannot be reached it
+     * is dropped from the table and the lookup goes straight to whoever took
+     * its place, usually the next entry of the successor list
+     */
+    private CompletableFuture<Event> forwardSuccessorRequest(RequestSuccessor message, Entry next)
+            throws IOException {
+        if (next.hasAddress(this.hostIP, this.nodePort)) {
+            // no other peer is known to be closer, e.g. after every successor failed
+            return identifySelf(message);
+        }
+        TCPConnection connection;
+        try {
+            connection = connectionPool.getConnection(next.getAddress(), next.getPort());
+        } catch (IOException e) {
+            if (!dropUnreachablePeer(next)) {
+                throw e;
+            }
+            return forwardSuccessorRequest(message, fingerTable.lookup(message.getLookupKey()));
+        }
+        return connection.request(message).handle((response, error) -> {
+            if (error == null) {
+                return CompletableFuture.completedFuture(response);
+            }
+            // a connection closed under the request means the peer itself went away
+            try {
+                if (!connection.isOpen() && dropUnreachablePeer(next)) {
+                    return forwardSuccessorRequest(message, fingerTable.lookup(message.getLookupKey()));
+                }
+            } catch (IOException e) {
+                return CompletableFuture.<Event>failedFuture(e);
+            }
+            return CompletableFuture.<Event>failedFuture(error);
+        }).thenCompose(result -> result);
+    }
 
-            case FindSuccessorTypes.FILE_UPLOAD:
-                utils.sendFileToPeer(message, connection);
-                break;
+    /**
+     * Finds the successors of many keys with one batched lookup. Keys this
+     * peer is responsible for are answered locally; the rest travel together
+     * as long as they are routed to the same finger.
+     *
+     * @param purpose The lookup purpose, one of FindSuccessorTypes.
+     * @param keys    The keys to resolve.
+     * @return A future for the keys grouped by the peer responsible for them.
+     */
+    public CompletableFuture<SuccessorsFound> findSuccessors(int purpose, long[] keys) {
+        return batchLookup.resolve(purpose, keys, 0);
+    }
 
-            case FindSuccessorTypes.FILE_DOWNLOAD:
-                utils.sendDownloadRequest(message, connection);
-                break;
+    /* one step of someone else's iterative lookup */
+    private ClosestPeers closestPeers(FindClosestPeers message) {
+        long key = message.getLookupKey();
+        FingerTable.Routing routing = fingerTable.snapshot();
+        Entry self = routing.getSelf();
+        Entry successor = routing.getSuccessor();
+        if (fingerTable.isWithinRing(key, routing.getPredecessor().getHashCode(), this.peerID)) {
+            return new ClosestPeers(true, new String[] { self.getAddress() }, new int[] { self.getPort() });
+        }
+        if (fingerTable.isWithinRing(key, this.peerID, successor.getHashCode())) {
+            return new ClosestPeers(true, new String[] { successor.getAddress() },
+                    new int[] { successor.getPort() });
+        }
+        List<Entry> fingers = routing.closestPrecedingFingers(key,
+                Math.max(1, Math.min(message.getCount(), fingerTable.size())));
+        String[] addresses = new String[fingers.size()];
+        int[] ports = new int[fingers.size()];
+        for (int i = 0; i < fingers.size(); i++) {
+            addresses[i] = fingers.get(i).getAddress();
+            ports[i] = fingers.get(i).getPort();
+        }
+        return new ClosestPeers(false, addresses, ports);
+    }
 
-            case FindSuccessorTypes.FIX_FINGERS:
-                utils.handleFixFingers(message, connection);
+    private CompletableFuture<Event> identifySelf(RequestSuccessor message) {
+        IdentifiedSuccessor response = new IdentifiedSuccessor(this.hostIP, this.nodePort, message.getPurpose(),
+                message.getPayload(), message.getHopsCount(),
+                message.getHops());
+        return CompletableFuture.completedFuture(response);
+    }
 
-            default:
-                break;
+    /**
+     * Removes a failed peer from routing. A new successor is told that this
+     * node may now precede it; it takes the notice once it finds the failed
+     * peer unreachable too, and then takes over that peer's keys.
+     *
+     * @param peer The peer that could not be reached.
+     * @return true if the peer was known and has been removed.
+     */
+    public boolean dropUnreachablePeer(Entry peer) {
+        connectionPool.evict(peer.getAddress(), peer.getPort());
+        successorCache.invalidate(peer);
+        // before removal, while the rows still name the failed peer
+        fixFingers.fingerFailed(peer);
+        Entry oldSuccessor = fingerTable.getSuccessor();
+        if (!fingerTable.removePeer(peer.getAddress(), peer.getPort())) {
+            return false;
+        }
+        neighborsChanged();
+        Entry successor = fingerTable.getSuccessor();
+        boolean successorChanged = !successor.hasAddress(oldSuccessor.getAddress(), oldSuccessor.getPort());
+        if (successorChanged && !successor.hasAddress(this.hostIP, this.nodePort)) {
+            try {
+                // not an exit: a wrong failure detection must not override a live predecessor
+                NotifyYourSuccessor notify = new NotifyYourSuccessor(this.hostIP, this.nodePort, false);
+                connectionPool.getConnection(successor.getAddress(), successor.getPort()).getTCPSenderThread()
+                        .sendData(notify.getBytes());
+            } catch (IOException | InterruptedException e) {
+                System.out.println("Error occurred while notifying new successor." + e.getMessage());
+            }
         }
+        return true;
+    }
 
+    /*
+     * runs the action if the peer cannot be connected to, or if it drops the
+     * connection under a request; a request that merely times out is not
+     * enough, the peer may only be busy
+     */
+    private void ifUnreachable(Entry peer, Runnable action) {
+        TCPConnection connection;
+        try {
+            connection = connectionPool.getConnection(peer.getAddress(), peer.getPort());
+        } catch (IOException e) {
+            action.run();
+            return;
+        }
+        connection.timedRequest(new GetPredecessor(this.hostIP, this.nodePort)).whenComplete((response, error) -> {
+            if (error != null && !connection.isOpen()) {
+                action.run();
+            }
+        });
     }
 
-    private void sendPredecessor(GetPredecessor message, TCPConnection connection) {
+    private void handleSuccessorResponse(IdentifiedSuccessor message) {
+        int purpose = message.getPurpose();
+
         try {
-            GetPredecessorResponse response = new GetPredecessorResponse(
-                    fingerTable.getPredecessor().getAddress(),
-                    fingerTable.getPredecessor().getPort());
+            /* the answer was relayed back, talk to the identified peer directly */
+            TCPConnection connection = connectionPool.getConnection(message.getIPAddress(), message.getPort());
 
-            connection.getTCPSenderThread().sendData(response.getBytes());
-        } catch (IOException | InterruptedException e) {
-            System.out.println("Error occurred while sending predecessor." + e.getMessage());
+            switch (purpose) {
+                case FindSuccessorTypes.JOIN_REQUEST:
+                    utils.joinNetwork(message, connection);
+                    break;
+
+                case FindSuccessorTypes.FILE_UPLOAD:
+                    utils.sendFileToPeer(message, connection);
+                    break;
+
+                case FindSuccessorTypes.FILE_DOWNLOAD:
+                    utils.sendDownloadRequest(message, connection);
+                    break;
+
+                default:
+                    break;
+            }
+        } catch (IOException e) {
+            System.out.println("Error occurred while connecting to identified successor: " + e.getMessage());
             e.printStackTrace();
         }
 
     }
 
-    private void receivePredecessor(GetPredecessorResponse message, TCPConnection connection) {
+    /* the predecessor, with this node's successor list piggybacked on it */
+    private GetPredecessorResponse getPredecessorResponse() {
+        FingerTable.Routing routing = fingerTable.snapshot();
+        List<Entry> successors = routing.getSuccessors();
+        String[] successorAddresses = new String[successors.size()];
+        int[] successorPorts = new int[successors.size()];
+        long[] successorProcesses = new long[successors.size()];
+        for (int i = 0; i < successors.size(); i++) {
+            Entry successor = successors.get(i);
+            successorAddresses[i] = successor.getAddress();
+            successorPorts[i] = successor.getPort();
+            // virtual nodes of this process are known for sure
+            successorProcesses[i] = localNode(successor.getAddress(), successor.getPort()) != null ? storageID
+                    : successor.getProcess();
+        }
+        return new GetPredecessorResponse(routing.getPredecessor().getAddress(), routing.getPredecessor().getPort(),
+                storageID, successorAddresses, successorPorts, successorProcesses);
+    }
+
+    void receivePredecessor(GetPredecessorResponse message, TCPConnection connection) {
 
         /*
          * TODO: check if this predecessor response has node values that is itself
@@ -488,6 +823,9 @@ public class Peer implements Node, Protocol {
          */
 
         fingerTable.updatePredecessor(message.getIPAddress(), message.getPort());
+        fingerTable.updateSuccessorList(message.getProcess(), message.getSuccessorAddresses(),
+                message.getSuccessorPorts(), message.getSuccessorProcesses());
+        neighborsChanged();
 
         /*
          * after getting predecessor, notify your successor that you are the new
@@ -497,10 +835,9 @@ public class Peer implements Node, Protocol {
             /* also notify this received predecessor that you are the new successor */
             NotifyYourPredecessor request = new NotifyYourPredecessor(
                     this.hostIP, this.nodePort, false);
-            Socket socketToPredecessor = new Socket(message.getIPAddress(), message.getPort());
-            TCPConnection predConnection = new TCPConnection(this, socketToPredecessor);
+            TCPConnection predConnection = connectionPool.getConnection(message.getIPAddress(),
+                    message.getPort());
             predConnection.getTCPSenderThread().sendData(request.getBytes());
-            predConnection.start();
         } catch (IOException | InterruptedException e) {
             System.out.println("Error occurred while notifying predecessor about this node." + e.getMessage());
             e.printStackTrace();
@@ -518,14 +855,25 @@ public class Peer implements Node, Protocol {
 
     private void updatePredecessor(NotifyYourSuccessor message, TCPConnection connection) {
         Entry oldPredecessor = fingerTable.getPredecessor();
-        fingerTable.updatePredecessor(message.getIPAddress(), message.getPort());
-        try {
-            connection.close();
-
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
-            e.printStackTrace();
+        if (oldPredecessor.hasAddress(message.getIPAddress(), message.getPort())) {
+            // routine stabilization notice from the known predecessor
+            return;
         }
+        if (!message.checkIfExit() && !oldPredecessor.hasAddress(this.hostIP, this.nodePort)) {
+            /*
+             * a stabilization notice only wins if the peer is closer than the
+             * current predecessor; a farther one, as sent after a failover,
+             * only once the current predecessor is unreachable from here too.
+             * Exits are always taken
+             */
+            long notifierID = RingId.of(message.getIPAddress() + ":" + message.getPort());
+            if (!fingerTable.isWithinRing(notifierID, oldPredecessor.getHashCode(), this.peerID)) {
+                ifUnreachable(oldPredecessor, () -> predecessorFailed(oldPredecessor, message));
+                return;
+            }
+        }
+        fingerTable.updatePredecessor(message.getIPAddress(), message.getPort());
+        neighborsChanged();
 
         // TODO: now the successor will migrate files to its new predecessor
         // perform files migration process
@@ -536,37 +884,122 @@ public class Peer implements Node, Protocol {
         }
     }
 
+    /*
+     * the predecessor failed and the notifier took over; it sits behind the
+     * failed peer, so no keys move to it. Dropping the failed peer from
+     * routing also clears it as predecessor
+     */
+    private void predecessorFailed(Entry failed, NotifyYourSuccessor message) {
+        if (!fingerTable.getPredecessor().hasAddress(failed.getAddress(), failed.getPort())) {
+            // the predecessor changed while the probe was out
+            return;
+        }
+        dropUnreachablePeer(failed);
+        fingerTable.updatePredecessor(message.getIPAddress(), message.getPort());
+        neighborsChanged();
+        System.out.println("Predecessor " + failed.getEntryString() + " is unreachable, updated predecessor to "
+                + message.getIPAddress() + ":" + message.getPort());
+    }
+
     private void updateSuccessor(NotifyYourPredecessor message, TCPConnection connection) {
+        Entry oldSuccessor = fingerTable.getSuccessor();
+        if (!message.checkIfExit() && !oldSuccessor.hasAddress(this.hostIP, this.nodePort)
+                && !oldSuccessor.hasAddress(message.getIPAddress(), message.getPort())) {
+            /*
+             * a joining peer only becomes the successor if it lies between this
+             * node and the current successor; a join that resolved a stale
+             * successor would otherwise point this node backwards, a loop
+             * stabilization cannot undo. Exits are always taken
+             */
+            long joinerID = RingId.of(message.getIPAddress() + ":" + message.getPort());
+            if (!fingerTable.isWithinRing(joinerID, this.peerID, oldSuccessor.getHashCode())) {
+                return;
+            }
+        }
         fingerTable.updateSuccessor(message.getIPAddress(), message.getPort());
+        neighborsChanged();
+        System.out.println("Successfully updated self successor with notification from true successor");
+
+    }
+
+    /**
+     * Runs one round of stabilization: asks the successor for its predecessor
+     * and successor list, adopts that predecessor as successor if it joined in
+     * between, and otherwise tells the successor about this node unless it
+     * already knows. An unreachable successor is replaced by the next one.
+     *
+     * @return A future completed once the round is over.
+     */
+    public CompletableFuture<Void> stabilize() {
+        Entry successor = fingerTable.getSuccessor();
+        if (successor.hasAddress(this.hostIP, this.nodePort)) {
+            /* alone, or every successor failed: the predecessor is the only other peer known */
+            Entry predecessor = fingerTable.getPredecessor();
+            if (!predecessor.hasAddress(this.hostIP, this.nodePort)) {
+                fingerTable.updateSuccessor(predecessor.getAddress(), predecessor.getPort());
+                notifySuccessor(predecessor);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        TCPConnection connection;
         try {
-            connection.close();
+            connection = connectionPool.getConnection(successor.getAddress(), successor.getPort());
+        } catch (IOException e) {
+            dropUnreachablePeer(successor);
+            return CompletableFuture.completedFuture(null);
+        }
+        return connection.timedRequest(new GetPredecessor(this.hostIP, this.nodePort)).handle((response, error) -> {
+            if (error == null) {
+                checkSuccessor((GetPredecessorResponse) response, successor);
+            } else if (!connection.isOpen()) {
+                dropUnreachablePeer(successor);
+            }
+            return null;
+        });
+    }
 
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
-            e.printStackTrace();
+    private void checkSuccessor(GetPredecessorResponse response, Entry successor) {
+        if (!fingerTable.getSuccessor().hasAddress(successor.getAddress(), successor.getPort())) {
+            // the successor changed while the request was out, the answer is stale
+            return;
         }
-        System.out.println("Successfully updated self successor with notification from true successor");
+        fingerTable.updateSuccessorList(response.getProcess(), response.getSuccessorAddresses(),
+                response.getSuccessorPorts(), response.getSuccessorProcesses());
+        if (response.getConnectionReadable().equals(fullAddress)) {
+            // the successor already has this node as its predecessor
+            return;
+        }
+        String address = response.getIPAddress();
+        int port = response.getPort();
+        long candidateID = successor.hasAddress(address, port) ? successor.getHashCode()
+                : RingId.of(address + ":" + port);
+        if (candidateID != this.peerID && candidateID != successor.getHashCode()
+                && fingerTable.isWithinRing(candidateID, this.peerID, successor.getHashCode())) {
+            /* a peer joined between this node and the successor */
+            fingerTable.updateSuccessor(address, port);
+            fixFingers.speedUp();
+            notifySuccessor(new Entry(-1, address, port, candidateID));
+        } else {
+            notifySuccessor(successor);
+        }
+    }
 
+    /* a neighbor joined, left or failed: stabilize and refresh the fingers right away */
+    private void neighborsChanged() {
+        stabilizer.speedUp();
+        fixFingers.speedUp();
     }
 
-    private void stabilize() {
-        /*
-         * this function is a routine loop
-         * it will call its successor and get its predecessor -> GetPredecessorRequest
-         * checks the result to see if it is still the successor ->
-         * GetPredecessorResponse
-         * 
-         * if not,
-         * update finger table and successor pointer
-         * now send this new successor again a get pred request to see if it has
-         * recorded me as its predecessor
-         * 
-         * start the notify process
-         * send notifyyourpredecssor to new node
-         * 
-         * 
-         * also perform task migration process when updating predecessor of this node
-         */
+    /* tells a successor this node may be its predecessor */
+    private void notifySuccessor(Entry successor) {
+        try {
+            NotifyYourSuccessor notify = new NotifyYourSuccessor(this.hostIP, this.nodePort, false);
+            connectionPool.getConnection(successor.getAddress(), successor.getPort()).getTCPSenderThread()
+                    .sendData(notify.getBytes());
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Error occurred while notifying successor." + e.getMessage());
+        }
     }
 
     public String getIPAddress() {
@@ -577,7 +1010,7 @@ public class Peer implements Node, Protocol {
         return this.nodePort;
     }
 
-    public int getPeerID() {
+    public long getPeerID() {
         return this.peerID;
     }
 
@@ -585,16 +1018,88 @@ public class Peer implements Node, Protocol {
         return fullAddress;
     }
 
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /* shared by every virtual node of this process, so it tells processes apart */
+    public long getStorageID() {
+        return storageID;
+    }
+
+    /**
+     * Returns the directory holding the files of every virtual node in this
+     * process.
+     *
+     * @return /tmp/&lt;ID of the first virtual node&gt;
+     */
+    public Path getStorageDirectory() {
+        return Paths.get("/tmp", String.valueOf(storageID));
+    }
+
+    /**
+     * Returns the directory holding the copies this process keeps of files
+     * owned by its predecessors.
+     *
+     * @return /tmp/&lt;ID of the first virtual node&gt;.replicas
+     */
+    public Path getReplicaDirectory() {
+        return Paths.get("/tmp", storageID + ".replicas");
+    }
+
+    /**
+     * Takes over the copies of keys this node became responsible for and
+     * copies its files to new replica holders; called when the ring around
+     * it changed.
+     */
+    public void maintainReplicas() {
+        utils.maintainReplicas();
+    }
+
+    PeerUtilities getUtilities() {
+        return utils;
+    }
+
+    /* the virtual node of this process listening on the address, or null if it is elsewhere */
+    Peer localNode(String ipAddress, int port) {
+        for (Peer node : virtualNodes) {
+            if (node.hostIP.equals(ipAddress) && node.nodePort == port) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * the virtual node of this process responsible for the key, or null if
+     * none is; a node still waiting for its predecessor claims every key, so
+     * it only counts when it is the only one
+     */
+    Peer localOwner(long key) {
+        for (Peer node : virtualNodes) {
+            FingerTable.Routing routing = node.fingerTable.snapshot();
+            Entry predecessor = routing.getPredecessor();
+            if (virtualNodes.size() > 1 && predecessor.hasAddress(node.hostIP, node.nodePort)) {
+                continue;
+            }
+            if (node.fingerTable.isWithinRing(key, predecessor.getHashCode(), node.peerID)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
     private void printNeighbors() {
         /*
          * predecessor: <peerID> <ip-address>:<port>
          * successor: <peerID> <ip-address>:<port>
          */
-        System.out.println("predecessor: " + fingerTable.getPredecessor().getHashCode() + " "
-                + fingerTable.getPredecessor().getAddress() + ":" + fingerTable.getPredecessor().getPort());
+        FingerTable.Routing routing = fingerTable.snapshot();
+        System.out.println("predecessor: " + routing.getPredecessor().getHashCode() + " "
+                + routing.getPredecessor().getEntryString());
 
-        System.out.println("successor: " + fingerTable.getSuccessor().getHashCode() + " "
-                + fingerTable.getSuccessor().getAddress() + ":" + fingerTable.getSuccessor().getPort());
+        System.out.println("successor: " + routing.getSuccessor().getHashCode() + " "
+                + routing.getSuccessor().getEntryString());
     }
 
     private void printFiles() {
@@ -602,9 +1107,9 @@ public class Peer implements Node, Protocol {
          * TODO: print the data structure containing file details
          * <file-name> <hash-code>
          */
-        for (Map.Entry<String, Integer> entry : fingerTable.fileIndex.entrySet()) {
+        for (Map.Entry<String, Long> entry : utils.getFileIndex().entrySet()) {
             String fileName = entry.getKey();
-            Integer fileKey = entry.getValue();
+            Long fileKey = entry.getValue();
             System.out.println(fileName + " " + fileKey);
 
         }
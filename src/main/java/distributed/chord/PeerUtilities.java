@@ -6,30 +6,82 @@ import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Iterator;
-
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import distributed.tcp.ExecutionMode;
 import distributed.tcp.TCPConnection;
+import distributed.utils.Configuration;
 import distributed.utils.Entry;
+import distributed.utils.RingId;
+import distributed.wireformats.ChunkAck;
 import distributed.wireformats.DownloadRequest;
-import distributed.wireformats.DownloadResponse;
+import distributed.wireformats.FileChunk;
 import distributed.wireformats.FileNotFound;
-import distributed.wireformats.FileTransfer;
 import distributed.wireformats.FileTransferResponse;
 import distributed.wireformats.FindSuccessorTypes;
 import distributed.wireformats.GetPredecessor;
+import distributed.wireformats.GetPredecessorResponse;
 import distributed.wireformats.IdentifiedSuccessor;
 import distributed.wireformats.Protocol;
 import distributed.wireformats.RequestSuccessor;
+import distributed.wireformats.TransferTypes;
 
 public class PeerUtilities {
 
     private Peer peer;
     private FingerTable fingerTable;
-
-    public PeerUtilities(Peer peer, FingerTable fingerTable) {
+    private final FileIndex fileIndex;
+
+    /* outgoing transfers waiting for acknowledgements, by connection and file */
+    private final Map<String, FileSender> fileSenders = new ConcurrentHashMap<>();
+    /*
+     * incoming transfers by sending connection, purpose and file, so two
+     * peers sending the same file never share a partial file or acks; a
+     * partial file outlives its connection and is resumed by the next sender
+     */
+    private final Map<String, Incoming> fileReceivers = new ConcurrentHashMap<>();
+    /* files being handed over to another peer; guarded by itself */
+    private final Set<String> handingOff = new HashSet<>();
+    /* copies being sent, as <holder>/<name>; kept apart so a leave does not wait for them */
+    private final Set<String> replicating = new HashSet<>();
+    /* the keys last handed to a new predecessor, as {from, to}; null before the first */
+    private volatile long[] handedRange;
+
+    /* copies of other peers' files, shared by every virtual node of this process */
+    private final FileIndex replicas;
+    /* the successors last found to hold copies of this node's files; guarded by this */
+    private List<Entry> replicaHolders = Collections.emptyList();
+    /* the last predecessor other than this node itself; guarded by this */
+    private Entry lastPredecessor;
+    /* one sweep of stale copies at a time, the copies are shared by every virtual node of this process */
+    private static final AtomicBoolean SWEEPING = new AtomicBoolean();
+    /* downloads asked of a replica, by file name, with the owner to fall back to */
+    private final Map<String, Entry> replicaReads = new ConcurrentHashMap<>();
+
+    public PeerUtilities(Peer peer, FingerTable fingerTable, FileIndex fileIndex, FileIndex replicas) {
         this.peer = peer;
         this.fingerTable = fingerTable;
+        this.fileIndex = fileIndex;
+        this.replicas = replicas;
+    }
+
+    public FileIndex getFileIndex() {
+        return fileIndex;
     }
 
     public void handleDownloadRequest(DownloadRequest message, TCPConnection connection) {
@@ -41,19 +93,21 @@ public class PeerUtilities {
             /*
              * first check if the file exists
              * if it doesn't send a file not found event
-             * else send a download response with file as payload
+             * else stream the file in chunks, starting where the requester's
+             * partial copy ends
              */
-            String filePath = "/tmp/" + peer.getPeerID() + "/" + fileName;
-            File file = new File(filePath);
+            File file = peer.getStorageDirectory().resolve(fileName).toFile();
+            if (!file.exists()) {
+                // this peer may hold a copy for the file's owner
+                file = peer.getReplicaDirectory().resolve(fileName).toFile();
+            }
 
             if (file.exists()) {
-                DownloadResponse request = new DownloadResponse(fileName, message.getHopsCount(), message.getHopList(),
-                        Files.readAllBytes(file.toPath()));
-                System.out.println(request.getPayload());
-                connection.getTCPSenderThread().sendData(request.getBytes());
+                startFileTransfer(connection, file.toPath(), TransferTypes.DOWNLOAD, message.getOffset());
             } else {
-                FileNotFound request = new FileNotFound("Response from" + peer.getFullAddress() + " " + peer.getPeerID()
-                        + ".The file " + fileName + " " + fileName.hashCode() + " cannot be found.");
+                FileNotFound request = new FileNotFound(fileName, "Response from" + peer.getFullAddress() + " "
+                        + peer.getPeerID() + ".The file " + fileName + " " + RingId.of(fileName)
+                        + " cannot be found.");
                 connection.getTCPSenderThread().sendData(request.getBytes());
 
             }
@@ -65,59 +119,198 @@ public class PeerUtilities {
         }
     }
 
-    public void handleDownloadResponse(DownloadResponse message, TCPConnection connection) {
+    public void handleFileChunk(FileChunk message, TCPConnection connection) {
+        String key = transferKey(connection, message.getPurpose(), message.getFileName());
         try {
-
-            byte status;
-            String response;
-            System.out.println(
-                    "File received successfully in this consecutive order in hops count: " + message.getHopsCount());
-
-            boolean isSuccessful = writeFileCurrentDirectory(message);
-            if (isSuccessful) {
-                status = Protocol.SUCCESS;
-                response = "File download was successful.";
-            } else {
-                status = Protocol.FAILURE;
-                response = "File download failed.";
+            if (holdsReplica(message)) {
+                // the whole copy is here already, acknowledging it ends the transfer
+                ChunkAck ack = new ChunkAck(message.getPurpose(), message.getFileName(), message.getTotalSize());
+                connection.getTCPSenderThread().sendData(ack.getBytes());
+                return;
+            }
+            Incoming incoming = fileReceivers.get(key);
+            if (incoming == null || incoming.receiver.getTotalSize() != message.getTotalSize()) {
+                if (incoming != null) {
+                    fileReceivers.remove(key, incoming);
+                    incoming.receiver.close();
+                }
+                // frees the partial files of transfers whose connection dropped, so this one can resume them
+                closeAbandonedReceivers();
+                Socket socket = connection.getSocket();
+                incoming = new Incoming(connection, new FileReceiver(transferTarget(message),
+                        message.getTotalSize(), socket.getInetAddress().getHostAddress() + "_" + socket.getPort()));
+                fileReceivers.put(key, incoming);
             }
 
-            FileTransferResponse request = new FileTransferResponse(status, response);
-            connection.getTCPSenderThread().sendData(request.getBytes());
+            FileReceiver receiver = incoming.receiver;
+            long received = receiver.write(message);
+            if (receiver.isComplete()) {
+                fileReceivers.remove(key, incoming);
+                receiver.complete();
+                handleFileReceived(message, connection);
+            }
 
+            // the last acknowledgement goes out once the file is on disk and indexed
+            ChunkAck ack = new ChunkAck(message.getPurpose(), message.getFileName(), received);
+            connection.getTCPSenderThread().sendData(ack.getBytes());
         } catch (IOException | InterruptedException e) {
-            System.out.println(e.getMessage());
+            Incoming incoming = fileReceivers.remove(key);
+            if (incoming != null) {
+                incoming.receiver.close();
+            }
+            System.out.println("Error occurred while receiving file " + message.getFileName() + ": " + e.getMessage());
             e.printStackTrace();
         }
     }
 
-    public boolean writeFileCurrentDirectory(DownloadResponse message) {
-        boolean isSuccessful;
+    /*
+     * a copy is only resent to a holder that lacks it or has another size,
+     * so a holder added again as the successor list changes is not sent
+     * every file in full
+     */
+    private boolean holdsReplica(FileChunk probe) {
+        if (probe.getPurpose() != TransferTypes.REPLICA || probe.getOffset() != 0 || probe.getData().length != 0
+                || FileReceiver.isReceiving(transferTarget(probe))
+                || !replicas.contains(probe.getFileName())) {
+            return false;
+        }
         try {
-            // File currentDirectory = new File(".");
-            File currentDirectory = new File(".");
-            byte[] filePayload = message.getPayload();
-            Files.write(Paths.get(currentDirectory.getAbsolutePath(), message.getFileName()), filePayload);
+            return Files.size(transferTarget(probe)) == probe.getTotalSize();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void handleChunkAck(ChunkAck message, TCPConnection connection) {
+        FileSender sender = fileSenders.get(transferKey(connection, message.getPurpose(), message.getFileName()));
+        if (sender != null) {
+            sender.acknowledge(message.getOffset());
+        }
+    }
+
+    private void handleFileReceived(FileChunk message, TCPConnection connection)
+            throws IOException, InterruptedException {
+        String response;
+        if (message.getPurpose() == TransferTypes.REPLICA) {
+            replicas.put(message.getFileName(), RingId.of(message.getFileName()));
+            System.out.println("Stored replica of " + message.getFileName() + " at: " + transferTarget(message));
+            response = "File replication was successful.";
+        } else if (message.getPurpose() != TransferTypes.DOWNLOAD) {
+            long fileKey = RingId.of(message.getFileName());
+            fileIndex.put(message.getFileName(), fileKey);
+            System.out.println("Successfully uploaded file " + message.getFileName() + " at: "
+                    + transferTarget(message));
+            response = "File upload was successful.";
+            if (message.getPurpose() == TransferTypes.STORE) {
+                passOnMisplacedFile(message.getFileName(), fileKey);
+            }
+            replicate(message.getFileName(), fileKey);
+        } else {
+            replicaReads.remove(message.getFileName());
             System.out.println("Successfully downloaded requested file to current working directory.");
-            System.out.println(message.getHopList());
-            isSuccessful = true;
-            return isSuccessful;
-        } catch (Exception e) {
-            System.out.println("Error occurred while writing file to current working directory: " + e.getMessage());
-            e.printStackTrace();
-            isSuccessful = false;
-            return isSuccessful;
+            response = "File download was successful.";
         }
+        FileTransferResponse request = new FileTransferResponse(Protocol.SUCCESS, response);
+        connection.getTCPSenderThread().sendData(request.getBytes());
     }
 
-    public void handleFileNotFound(FileNotFound message, TCPConnection connection) {
-        System.out.println(message.getMessage());
+    /*
+     * the sender went by an older view of the ring, e.g. it handed a range to
+     * this node just before a closer predecessor joined; the predecessor did
+     * not get this file when it took over its keys, so pass it on
+     */
+    private void passOnMisplacedFile(String fileName, long fileKey) {
+        long[] handed = handedRange;
+        Entry predecessor = fingerTable.getPredecessor();
+        if (handed == null || !fingerTable.isWithinRing(fileKey, handed[0], handed[1])
+                || fingerTable.isWithinRing(fileKey, predecessor.getHashCode(), peer.getPeerID())) {
+            return;
+        }
+        List<Map.Entry<String, Long>> misplaced = Collections.singletonList(
+                new AbstractMap.SimpleImmutableEntry<>(fileName, fileKey));
+        if (!handOverLocally(predecessor, misplaced)) {
+            ExecutionMode.newThread(() -> streamRange(predecessor, misplaced, TransferTypes.STORE)).start();
+        }
+    }
+
+    private Path transferTarget(FileChunk message) {
+        if (message.getPurpose() == TransferTypes.REPLICA) {
+            return peer.getReplicaDirectory().resolve(message.getFileName());
+        }
+        if (message.getPurpose() != TransferTypes.DOWNLOAD) {
+            return peer.getStorageDirectory().resolve(message.getFileName());
+        }
+        return Paths.get(new File(".").getAbsolutePath(), message.getFileName());
+    }
+
+    /**
+     * Starts streaming a file to a peer on its own thread.
+     *
+     * @param connection  The connection to the receiving peer.
+     * @param file        The file to send.
+     * @param purpose     A TransferTypes value.
+     * @param startOffset Where to start, or FileSender.RESUME_FROM_RECEIVER.
+     * @throws IOException If the file cannot be opened.
+     */
+    private void startFileTransfer(TCPConnection connection, Path file, int purpose, long startOffset)
+            throws IOException {
+        FileSender sender = new FileSender(connection, file, purpose, startOffset);
+        ExecutionMode.newThread(() -> runSender(connection, sender)).start();
+    }
+
+    /*
+     * streams files to one peer one after another on a single thread, so a
+     * large batch does not start a transfer per file at once
+     */
+    private void startFileTransfers(TCPConnection connection, List<Path> files, int purpose) {
+        ExecutionMode.newThread(() -> {
+            for (Path file : files) {
+                try {
+                    runSender(connection, new FileSender(connection, file, purpose, FileSender.RESUME_FROM_RECEIVER));
+                } catch (IOException e) {
+                    System.out.println("Error occurred while sending file " + file + " to peer: " + e.getMessage());
+                }
+            }
+        }).start();
+    }
+
+    private void runSender(TCPConnection connection, FileSender sender) {
+        String key = transferKey(connection, sender.getPurpose(), sender.getFileName());
+        fileSenders.put(key, sender);
         try {
-            connection.close();
+            sender.run();
+        } finally {
+            fileSenders.remove(key, sender);
+        }
+    }
 
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
-            e.printStackTrace();
+    private String transferKey(TCPConnection connection, int purpose, String fileName) {
+        return System.identityHashCode(connection) + ":" + purpose + ":" + fileName;
+    }
+
+    private void closeAbandonedReceivers() {
+        for (Map.Entry<String, Incoming> transfer : fileReceivers.entrySet()) {
+            if (!transfer.getValue().connection.isOpen() && fileReceivers.remove(transfer.getKey(),
+                    transfer.getValue())) {
+                transfer.getValue().receiver.close();
+            }
+        }
+    }
+
+    public void handleFileNotFound(FileNotFound message, TCPConnection connection) {
+        Entry owner = replicaReads.remove(message.getFileName());
+        if (owner == null) {
+            System.out.println(message.getMessage());
+            return;
+        }
+        // the copy has not arrived yet or was lost, the owner has the file
+        System.out.println("No copy of " + message.getFileName() + " at the replica, asking its owner "
+                + owner.getEntryString());
+        try {
+            requestDownload(message.getFileName(), 0, new long[0],
+                    peer.getConnectionPool().getConnection(owner.getAddress(), owner.getPort()));
+        } catch (IOException e) {
+            System.out.println("Error connecting to the owner of " + message.getFileName() + ": " + e.getMessage());
         }
     }
 
@@ -126,36 +319,29 @@ public class PeerUtilities {
          * check if you are responsible for the file key
          * if not send find successor request to appropriate predecessor
          */
-        int fileKey = Math.abs(fileName.hashCode());
+        long fileKey = RingId.of(fileName);
 
-        File uploadDirectory = new File("/tmp/" + peer.getPeerID());
+        File uploadDirectory = peer.getStorageDirectory().toFile();
 
         try {
-            if (fingerTable.isWithinRing(fileKey, fingerTable.getPredecessor().getHashCode(), peer.getPeerID())) {
+            /* a file held by any virtual node of this process is already in its storage directory */
+            if (peer.localOwner(fileKey) != null) {
                 if (!uploadDirectory.exists()) {
                     System.out.println("Error occurred while trying to read file, file doesn't exist.");
                     return;
                 }
                 File currentDirectory = new File(".");
-                byte[] filePayload = Files
-                        .readAllBytes(Paths.get("/tmp", String.valueOf(peer.getPeerID()), fileName));
-                Files.write(Paths.get(currentDirectory.getAbsolutePath(), fileName), filePayload);
+                Files.copy(peer.getStorageDirectory().resolve(fileName),
+                        Paths.get(currentDirectory.getAbsolutePath(), fileName), StandardCopyOption.REPLACE_EXISTING);
                 System.out.println("Successfully downloaded requested file to current working directory.");
             } else {
-                Entry lookupResult = fingerTable.lookup(fileKey);
-
                 /* get its successor */
-                Socket socketToPred = new Socket(lookupResult.getAddress(),
-                        lookupResult.getPort());
-                TCPConnection connectionToPred = new TCPConnection(peer, socketToPred);
-
                 RequestSuccessor request = new RequestSuccessor(
                         FindSuccessorTypes.FILE_DOWNLOAD, fileName, fileKey, peer.getIPAddress(), peer.getPort());
                 request.addPeerToHops(peer.getPeerID());
-                connectionToPred.getTCPSenderThread().sendData(request.getBytes());
-                connectionToPred.start();
+                peer.requestSuccessor(request);
             }
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException e) {
             System.out.println("Error occurred while handling file download: " + e.getMessage());
             e.printStackTrace();
         }
@@ -163,9 +349,13 @@ public class PeerUtilities {
 
     public void handleFileUpload(String filePath) {
         File uploadFile = new File(filePath);
+        if (uploadFile.isDirectory()) {
+            handleDirectoryUpload(uploadFile);
+            return;
+        }
 
         String filename = uploadFile.getName();
-        int fileKey = Math.abs(filename.hashCode());
+        long fileKey = RingId.of(filename);
 
         /*
          * Workflow:
@@ -184,34 +374,26 @@ public class PeerUtilities {
              * else
              * forward the successor request to node with closes succeeding id
              */
-            if (fingerTable.isWithinRing(fileKey, fingerTable.getPredecessor().getHashCode(), peer.getPeerID())) {
-                /* this node is the successor of k, so it handles the upload */
+            Peer owner = peer.localOwner(fileKey);
+            if (owner != null) {
+                /* this node, or another virtual node of this process, is the successor of k */
                 File fileToUpload = new File(filePath);
-                writeFile(peer.getPeerID(), fileToUpload.getName(), Files.readAllBytes(fileToUpload.toPath()));
+                owner.getUtilities().writeFile(fileToUpload.toPath());
             } else {
                 /*
                  * now forward the find successor request to closest succeeding id
                  * for this find the closest predecessor and ping to get its successor
                  */
 
-                // call fingertable lookup function to find the predecessor
-
-                Entry lookupResult = fingerTable.lookup(fileKey);
-
-                /* get its successor */
-                Socket socketToPred = new Socket(lookupResult.getAddress(),
-                        lookupResult.getPort());
-                TCPConnection connectionToPred = new TCPConnection(peer, socketToPred);
-
+                /* send the lookup to the closest preceding finger */
                 RequestSuccessor message = new RequestSuccessor(
                         FindSuccessorTypes.FILE_UPLOAD, filePath, fileKey, peer.getIPAddress(), peer.getPort());
                 message.addPeerToHops(peer.getPeerID());
-                connectionToPred.getTCPSenderThread().sendData(message.getBytes());
-                connectionToPred.start();
+                peer.requestSuccessor(message);
 
             }
 
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException e) {
             System.out.println(
                     "Error occurred while handling file upload" + e.getMessage());
             e.printStackTrace();
@@ -219,93 +401,154 @@ public class PeerUtilities {
         }
     }
 
+    /**
+     * Uploads every file in a directory. The keys of all files go out in one
+     * batched lookup instead of one lookup per file, and each responsible peer
+     * then receives its files over a single connection.
+     *
+     * @param directory The directory whose files are uploaded.
+     */
+    public void handleDirectoryUpload(File directory) {
+        File[] files = directory.listFiles(File::isFile);
+        if (files == null || files.length == 0) {
+            System.out.println("No files to upload in " + directory);
+            return;
+        }
+
+        /* files a virtual node of this process is responsible for are stored right away, the rest wait for the lookup */
+        Map<Long, List<Path>> filesByKey = new HashMap<>();
+        for (File file : files) {
+            long fileKey = RingId.of(file.getName());
+            Peer owner = peer.localOwner(fileKey);
+            if (owner != null) {
+                owner.getUtilities().writeFile(file.toPath());
+            } else {
+                filesByKey.computeIfAbsent(fileKey, key -> new ArrayList<>()).add(file.toPath());
+            }
+        }
+        if (filesByKey.isEmpty()) {
+            return;
+        }
+
+        long[] keys = filesByKey.keySet().stream().mapToLong(Long::longValue).toArray();
+        peer.findSuccessors(FindSuccessorTypes.FILE_UPLOAD, keys).thenAccept(found -> {
+            for (int i = 0; i < found.getPeerCount(); i++) {
+                List<Path> batch = new ArrayList<>();
+                for (long key : found.getKeys(i)) {
+                    batch.addAll(filesByKey.get(key));
+                }
+                sendFilesToPeer(found.getIPAddress(i), found.getPort(i), batch);
+            }
+        }).exceptionally(e -> {
+            System.out.println("Error occurred while looking up peers for " + directory + ": " + e.getMessage());
+            return null;
+        });
+    }
+
+    private void sendFilesToPeer(String ipAddress, int port, List<Path> files) {
+        Peer owner = peer.localNode(ipAddress, port);
+        if (owner != null) {
+            // this process holds the files, or no other peer was reachable
+            files.forEach(file -> owner.getUtilities().writeFile(file));
+            return;
+        }
+        try {
+            TCPConnection connection = peer.getConnectionPool().getConnection(ipAddress, port);
+            System.out.println("Uploading " + files.size() + " files to " + ipAddress + ":" + port);
+            startFileTransfers(connection, files, TransferTypes.STORE);
+        } catch (IOException e) {
+            System.out.println("Error occurred while sending files to peer: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
     public void sendFileToPeer(IdentifiedSuccessor message, TCPConnection connection) {
 
         try {
             /*
-             * read the file from the file path in the payload
-             * then send transfer it to the identified peer
+             * stream the file from the file path in the payload
+             * to the identified peer
              */
-            // Socket socket = new Socket(message.getIPAddress(),
-            // message.getPort());
-            // TCPConnection connection = new TCPConnection(peer, socket);
-
-            /* payload of message contains file path */
             File fileToUpload = new File(message.getPayload());
-            FileTransfer request = new FileTransfer(fileToUpload.getName(),
-                    Files.readAllBytes(fileToUpload.toPath()));
-            connection.getTCPSenderThread().sendData(request.getBytes());
-            // connection.start();
-        } catch (IOException | InterruptedException e) {
+            startFileTransfer(connection, fileToUpload.toPath(), TransferTypes.STORE,
+                    FileSender.RESUME_FROM_RECEIVER);
+        } catch (IOException e) {
             System.out.println("Error occurred while sending file to peer: " + e.getMessage());
             e.printStackTrace();
         }
 
     }
 
-    public void sendFileReceived(FileTransfer message, TCPConnection connection) {
-        /* deserialize the file and put it in the //tmp/peerid directory */
-        byte status;
-        String response;
-        boolean isSuccessful;
-        try {
+    public void sendDownloadRequest(IdentifiedSuccessor message, TCPConnection connectionToPeer) {
+        System.out.println("Found " + message.getPayload() + " at " + message.getConnectionReadable()
+                + " in hops count: " + message.getHopsCount() + " " + Arrays.toString(message.getHops()));
+        if (Configuration.REPLICATION_FACTOR <= 1) {
+            requestDownload(message.getPayload(), message.getHopsCount(), message.getHops(), connectionToPeer);
+            return;
+        }
 
-            isSuccessful = writeFile(peer.getPeerID(), message.getFileName(), message.getFilePayload());
+        /*
+         * spread reads over the owner and the successors holding copies of its
+         * files; the owner's successor list comes with its predecessor
+         */
+        Entry owner = new Entry(-1, message.getIPAddress(), message.getPort());
+        connectionToPeer.timedRequest(new GetPredecessor(peer.getIPAddress(), peer.getPort()))
+                .thenAccept(response -> requestFromAnyHolder(message, owner, connectionToPeer,
+                        (GetPredecessorResponse) response))
+                .exceptionally(e -> {
+                    requestDownload(message.getPayload(), message.getHopsCount(), message.getHops(),
+                            connectionToPeer);
+                    return null;
+                });
+    }
 
-            if (isSuccessful) {
-                status = Protocol.SUCCESS;
-                response = "File upload was successful.";
-            } else {
-                status = Protocol.FAILURE;
-                response = "File upload failed.";
-            }
+    private void requestFromAnyHolder(IdentifiedSuccessor message, Entry owner, TCPConnection ownerConnection,
+            GetPredecessorResponse answer) {
+        List<Entry> holders = new ArrayList<>();
+        holders.add(owner);
+        holders.addAll(replicaHolders(answer.getProcess(), successorsOf(answer)));
 
-            FileTransferResponse request = new FileTransferResponse(status, response);
-            connection.getTCPSenderThread().sendData(request.getBytes());
-        } catch (IOException | InterruptedException e) {
-            System.out.println(e.getMessage());
-            e.printStackTrace();
+        Entry holder = holders.get(ThreadLocalRandom.current().nextInt(holders.size()));
+        TCPConnection connection = ownerConnection;
+        if (holder != owner) {
+            try {
+                connection = peer.getConnectionPool().getConnection(holder.getAddress(), holder.getPort());
+                replicaReads.put(message.getPayload(), owner);
+                System.out.println("Reading " + message.getPayload() + " from the copy at " + holder.getEntryString());
+            } catch (IOException e) {
+                System.out.println("Could not reach the copy at " + holder.getEntryString() + ": " + e.getMessage());
+            }
         }
-
+        requestDownload(message.getPayload(), message.getHopsCount(), message.getHops(), connection);
     }
 
-    public void sendDownloadRequest(IdentifiedSuccessor message, TCPConnection connectionToPeer) {
-
+    private void requestDownload(String fileName, int hopsCount, long[] hops, TCPConnection connection) {
         try {
-            // Socket socket = new Socket(message.getIPAddress(),
-            // message.getPort());
-            // TCPConnection connectionToPeer = new TCPConnection(peer, socket);
-
-            DownloadRequest request = new DownloadRequest(message.getPayload(), message.getHopsCount(),
-                    message.getHopList());
-            connectionToPeer.getTCPSenderThread().sendData(request.getBytes());
+            /* resume from a partial copy left by an interrupted download */
+            long offset = FileReceiver.partialSize(Paths.get(new File(".").getAbsolutePath(), fileName));
+            DownloadRequest request = new DownloadRequest(fileName, hopsCount, hops, offset);
+            connection.getTCPSenderThread().sendData(request.getBytes());
         } catch (IOException | InterruptedException e) {
             System.out.println("Error sending download request: " + e.getMessage());
             e.printStackTrace();
         }
-
     }
 
     /* call this function when current peer is the successor of the filekey */
-    public boolean writeFile(int nodeID, String fileName, byte[] filePayload) {
-        /* TODO: you are sending files through sockets */
-        /* create /tmp/<peerID> if it doesn't exist */
+    public boolean writeFile(Path sourceFile) {
+        /* create the storage directory if it doesn't exist */
 
-        String uploadPath = "/tmp/" + nodeID;
-        File uploadDirectory = new File(uploadPath);
+        File uploadDirectory = peer.getStorageDirectory().toFile();
 
         if (!uploadDirectory.exists()) {
             System.out.println("Upload directory doesn't exist. Creating...");
             uploadDirectory.mkdirs();
         }
 
+        String fileName = sourceFile.getFileName().toString();
         try {
-            Path filePath = Paths.get("/tmp", String.valueOf(nodeID), fileName);
-            if (!Files.exists(filePath)) {
-                // Create a new file
-                Files.createFile(filePath);
-            }
-            Files.write(filePath, filePayload);
+            Path filePath = peer.getStorageDirectory().resolve(fileName);
+            Files.copy(sourceFile, filePath, StandardCopyOption.REPLACE_EXISTING);
             System.out.println("Successfully uploaded file " + fileName + " at: " + filePath.toAbsolutePath());
         } catch (IOException e) {
             System.out.println("Error occurred while trying to upload file: " +
@@ -314,7 +557,9 @@ public class PeerUtilities {
             return false;
         }
 
-        fingerTable.fileIndex.put(fileName, Math.abs(fileName.hashCode()));
+        long fileKey = RingId.of(fileName);
+        fileIndex.put(fileName, fileKey);
+        replicate(fileName, fileKey);
 
         return true;
 
@@ -322,12 +567,6 @@ public class PeerUtilities {
 
     public void handleFileTransferResponse(FileTransferResponse message, TCPConnection connection) {
         System.out.println("Received file transfer response from the peer: " + message.toString());
-        try {
-            connection.close();
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
-            e.printStackTrace();
-        }
     }
 
     public void joinNetwork(IdentifiedSuccessor message,
@@ -343,158 +582,368 @@ public class PeerUtilities {
         // query pred of this successor and make it your predecessor
         // also notify your successor you are its pred
 
-        try {
-
-            // Socket socketToSuccessor = new Socket(message.getIPAddress(),
-            // message.getPort());
-            // TCPConnection successorConnection = new TCPConnection(peer,
-            // socketToSuccessor);
-
-            GetPredecessor request = new GetPredecessor(peer.getIPAddress(), peer.getPort());
+        GetPredecessor request = new GetPredecessor(peer.getIPAddress(), peer.getPort());
 
-            connection.getTCPSenderThread().sendData(request.getBytes());
-            // successorConnection.start();
-        } catch (IOException | InterruptedException e) {
-            System.out.println("Error occurred while requesting predecessor info." + e.getMessage());
-            e.printStackTrace();
-        }
+        connection.request(request)
+                .thenAccept(response -> peer.receivePredecessor((GetPredecessorResponse) response, connection))
+                .exceptionally(e -> {
+                    System.out.println("Error occurred while requesting predecessor info." + e.getMessage());
+                    return null;
+                });
     }
 
     public void migrateFilesToPredecessor(Entry oldPredecessor) {
         /*
          * send those files whose file key is within ring of old predecessor and current
-         * predecessor key values
+         * predecessor key values; the index is ordered by key, so only that range is read
          */
         Entry predecessor = fingerTable.getPredecessor();
-        Iterator<Map.Entry<String, Integer>> iterator = fingerTable.getFileIndex().entrySet().iterator();
-
-        while (iterator.hasNext()) {
-            // for (Map.Entry<String, Integer> index :
-            // fingerTable.getFileIndex().entrySet()) {
-            Map.Entry<String, Integer> index = iterator.next();
-            String fileName = index.getKey();
-            Integer fileKey = index.getValue();
-            String filePath = "/tmp/" + peer.getPeerID() + "/" + fileName;
+        handedRange = new long[] { oldPredecessor.getHashCode(), predecessor.getHashCode() };
+        List<Map.Entry<String, Long>> moving = fileIndex.between(oldPredecessor.getHashCode(),
+                predecessor.getHashCode());
+        if (moving.isEmpty() || handOverLocally(predecessor, moving)) {
+            return;
+        }
+        // the handoff waits for acknowledgements, so it must not hold up the handler of this event
+        ExecutionMode.newThread(() -> streamRange(predecessor, moving, TransferTypes.STORE)).start();
+    }
 
-            File fileToUpload = new File(filePath);
-            try {
+    /**
+     * Sends every file this node holds to the peer taking over its keys when
+     * it leaves, and waits until the peer has stored them.
+     *
+     * @param successor The first peer after this node that stays in the ring;
+     *                  if it runs in this process, the ring is ending and the
+     *                  files stay where they are.
+     */
+    public void migrateFilesToSuccessor(Entry successor) {
+        if (peer.localNode(successor.getAddress(), successor.getPort()) != null) {
+            return;
+        }
+        awaitHandoffs();
+        streamRange(successor, new ArrayList<>(fileIndex.entrySet()), TransferTypes.LEAVE);
+    }
 
-                if (fingerTable.isWithinRing(fileKey, oldPredecessor.getHashCode(),
-                        predecessor.getHashCode())) {
-                    Socket socket = new Socket(predecessor.getAddress(),
-                            predecessor.getPort());
-                    TCPConnection connection = new TCPConnection(peer, socket);
-                    connection.start();
-                    boolean isSuccessful = migrateFile(connection, fileToUpload);
-                    if (isSuccessful) {
-                        iterator.remove();
-                        // fingerTable.fileIndex.remove(index.getKey());
-                        fileToUpload.delete();
-
-                        System.out.println("Removed file " + fileName + " after migration to "
-                                + fingerTable.getPredecessor().getEntryString());
+    /*
+     * streams a range of files to the peer now responsible for them over the
+     * pooled connection to it, HANDOFF_FILES at a time; a file is only dropped
+     * here once the receiver acknowledged its last chunk, which it does after
+     * the file is on disk and in its index, so a crash on either side leaves
+     * at least one copy and a file that could not be sent stays here; REPLICA
+     * transfers send copies the same way and keep the files
+     */
+    private void streamRange(Entry target, List<Map.Entry<String, Long>> files, int purpose) {
+        if (files.isEmpty()) {
+            return;
+        }
+        TCPConnection connection;
+        try {
+            connection = peer.getConnectionPool().getConnection(target.getAddress(), target.getPort());
+        } catch (IOException e) {
+            System.out.println("Could not send files to " + target.getEntryString() + ": " + e.getMessage());
+            return;
+        }
+        Semaphore inFlight = new Semaphore(Configuration.HANDOFF_FILES);
+        AtomicInteger delivered = new AtomicInteger();
+        int started = 0;
+        for (Map.Entry<String, Long> file : files) {
+            String fileName = file.getKey();
+            // a file is handed to one peer at a time, a copy goes once to each holder
+            boolean copy = purpose == TransferTypes.REPLICA;
+            Set<String> inProgress = copy ? replicating : handingOff;
+            String sending = copy ? target.getEntryString() + "/" + fileName : fileName;
+            synchronized (inProgress) {
+                if (!inProgress.add(sending)) {
+                    // an earlier transfer is still sending it
+                    continue;
+                }
+            }
+            inFlight.acquireUninterruptibly();
+            started++;
+            ExecutionMode.newThread(() -> {
+                try {
+                    if (streamFile(connection, fileName, purpose)) {
+                        delivered.incrementAndGet();
                     }
-
+                } finally {
+                    synchronized (inProgress) {
+                        inProgress.remove(sending);
+                        inProgress.notifyAll();
+                    }
+                    inFlight.release();
                 }
+            }).start();
+        }
+        inFlight.acquireUninterruptibly(Configuration.HANDOFF_FILES);
+        System.out.println((purpose == TransferTypes.REPLICA ? "Replicated " : "Handed ") + delivered.get() + " of "
+                + started + " files to " + target.getEntryString());
+    }
 
-            } catch (Exception e) {
-                System.out.println("Error occured while sending files to predecessor: " + e.getMessage());
-                e.printStackTrace();
+    private boolean streamFile(TCPConnection connection, String fileName, int purpose) {
+        Path file = peer.getStorageDirectory().resolve(fileName);
+        try {
+            FileSender sender = new FileSender(connection, file, purpose, FileSender.RESUME_FROM_RECEIVER);
+            runSender(connection, sender);
+            if (!sender.isDelivered()) {
+                return false;
             }
-
+            if (purpose == TransferTypes.REPLICA) {
+                return true;
+            }
+            // recorded first: a crash in between leaves a stray file, not a missing one
+            fileIndex.remove(fileName);
+            Files.deleteIfExists(file);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error occurred while sending file " + fileName + ": " + e.getMessage());
+            return false;
         }
-
     }
 
-    public void migrateFilesToSuccessor() {
-        /*
-         * send those files whose file key is within ring of old predecessor and current
-         * predecessor key values
-         */
-        Iterator<Map.Entry<String, Integer>> iterator = fingerTable.getFileIndex().entrySet().iterator();
+    /* sends a copy of a file this node just stored to each peer holding its replicas */
+    private void replicate(String fileName, long fileKey) {
+        if (Configuration.REPLICATION_FACTOR <= 1) {
+            return;
+        }
+        List<Entry> holders = findReplicaHolders();
+        if (holders.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<String, Long>> file = Collections.singletonList(
+                new AbstractMap.SimpleImmutableEntry<>(fileName, fileKey));
+        ExecutionMode.newThread(() -> {
+            for (Entry holder : holders) {
+                streamRange(holder, file, TransferTypes.REPLICA);
+            }
+        }).start();
+    }
 
-        Entry successor = fingerTable.getSuccessor();
-        while (iterator.hasNext()) {
+    /* the holders of this node's copies; virtual nodes of this process are known even before they report */
+    private List<Entry> findReplicaHolders() {
+        List<Entry> successors = new ArrayList<>();
+        for (Entry successor : fingerTable.snapshot().getSuccessors()) {
+            successors.add(peer.localNode(successor.getAddress(), successor.getPort()) != null
+                    ? successor.inProcess(peer.getStorageID())
+                    : successor);
+        }
+        return replicaHolders(peer.getStorageID(), successors);
+    }
 
-            // for (Map.Entry<String, Integer> index :
-            // fingerTable.getFileIndex().entrySet()) {
-            Map.Entry<String, Integer> index = iterator.next();
+    /*
+     * the first REPLICATION_FACTOR - 1 successors of an owner that run in a
+     * process other than the owner's and each other's; virtual nodes of one
+     * process share a storage directory, so two of them would hold one copy.
+     * A successor of unknown process counts as a process of its own. Owners,
+     * readers and holders all pick holders this way
+     */
+    private static List<Entry> replicaHolders(long ownerProcess, List<Entry> successors) {
+        List<Entry> holders = new ArrayList<>();
+        Set<Long> processes = new HashSet<>();
+        processes.add(ownerProcess);
+        for (Entry successor : successors) {
+            if (holders.size() >= Configuration.REPLICATION_FACTOR - 1) {
+                break;
+            }
+            long process = successor.getProcess();
+            if ((process < 0 || processes.add(process)) && holders.stream()
+                    .noneMatch(holder -> holder.hasAddress(successor.getAddress(), successor.getPort()))) {
+                holders.add(successor);
+            }
+        }
+        return holders;
+    }
 
-            String fileName = index.getKey();
-            String filePath = "/tmp/" + peer.getPeerID() + "/" + fileName;
+    private static List<Entry> successorsOf(GetPredecessorResponse answer) {
+        List<Entry> successors = new ArrayList<>();
+        for (int i = 0; i < answer.getSuccessorAddresses().length; i++) {
+            successors.add(new Entry(-1, answer.getSuccessorAddresses()[i], answer.getSuccessorPorts()[i])
+                    .inProcess(answer.getSuccessorProcesses()[i]));
+        }
+        return successors;
+    }
 
-            File fileToUpload = new File(filePath);
-            try {
-                Socket socket = new Socket(successor.getAddress(),
-                        successor.getPort());
-                TCPConnection connection = new TCPConnection(peer, socket);
-                connection.start();
-                boolean isSuccessful = migrateFile(connection, fileToUpload);
-                if (isSuccessful) {
-                    iterator.remove();
-
-                    // fingerTable.fileIndex.remove(index.getKey());
-                    fileToUpload.delete();
-                    System.out.println("Removed file " + fileName + " after migration to "
-                            + fingerTable.getPredecessor().getEntryString());
-                }
+    /**
+     * Keeps the copies of this node's files in place after the ring changed:
+     * copies of the keys a failed predecessor owned become this node's files,
+     * a successor that newly became a holder gets a copy of every file, and
+     * copies this process no longer holds for their owner are dropped.
+     */
+    public void maintainReplicas() {
+        if (Configuration.REPLICATION_FACTOR <= 1) {
+            return;
+        }
+        List<Map.Entry<String, Long>> promoted = promoteReplicas();
 
-            } catch (Exception e) {
-                System.out.println("Error while migrating files to successor." + e.getMessage());
-                e.printStackTrace();
+        List<Entry> holders = findReplicaHolders();
+        List<Entry> known;
+        synchronized (this) {
+            known = replicaHolders;
+            replicaHolders = holders;
+        }
+        for (Entry holder : holders) {
+            boolean isNew = known.stream().noneMatch(k -> k.hasAddress(holder.getAddress(), holder.getPort()));
+            List<Map.Entry<String, Long>> files = isNew ? new ArrayList<>(fileIndex.entrySet()) : promoted;
+            if (!files.isEmpty()) {
+                ExecutionMode.newThread(() -> streamRange(holder, files, TransferTypes.REPLICA)).start();
             }
+        }
+        sweepReplicas();
+    }
 
+    /*
+     * looks up the owner of every copy and asks it for its successor list;
+     * copies of owners whose holders no longer include this process are
+     * deleted. A copy stays whenever its owner cannot be asked, runs in this
+     * process (promotion takes care of those), or does not confirm owning
+     * the key, so a ring still settling never loses a copy
+     */
+    private void sweepReplicas() {
+        List<Map.Entry<String, Long>> copies = new ArrayList<>(replicas.entrySet());
+        if (copies.isEmpty() || !SWEEPING.compareAndSet(false, true)) {
+            return;
+        }
+        Map<Long, List<String>> namesByKey = new HashMap<>();
+        for (Map.Entry<String, Long> copy : copies) {
+            namesByKey.computeIfAbsent(copy.getValue(), key -> new ArrayList<>()).add(copy.getKey());
         }
+        long[] keys = namesByKey.keySet().stream().mapToLong(Long::longValue).toArray();
+        peer.findSuccessors(FindSuccessorTypes.FILE_DOWNLOAD, keys).thenCompose(found -> {
+            List<CompletableFuture<Void>> checks = new ArrayList<>();
+            for (int i = 0; i < found.getPeerCount(); i++) {
+                checks.add(sweepCopiesOf(found.getIPAddress(i), found.getPort(i), found.getKeys(i), namesByKey));
+            }
+            return CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0]));
+        }).whenComplete((done, e) -> SWEEPING.set(false));
     }
 
-    public boolean migrateFile(TCPConnection connection, File fileToUpload) {
-        boolean isSuccessful;
+    private CompletableFuture<Void> sweepCopiesOf(String address, int port, long[] keys,
+            Map<Long, List<String>> namesByKey) {
+        if (peer.localNode(address, port) != null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        TCPConnection connection;
         try {
-            /*
-             * read the file from the file path in the payload
-             * then send transfer it to the identified peer
-             */
-
-            /* payload of message contains file path */
-
-            FileTransfer request = new FileTransfer(fileToUpload.getName(),
-                    Files.readAllBytes(fileToUpload.toPath()));
-            connection.getTCPSenderThread().sendData(request.getBytes());
-            isSuccessful = true;
-            return isSuccessful;
-        } catch (IOException | InterruptedException e) {
-            System.out.println("Error occurred while sending file to peer: " + e.getMessage());
-            e.printStackTrace();
-            isSuccessful = false;
-            return isSuccessful;
+            connection = peer.getConnectionPool().getConnection(address, port);
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(null);
         }
-
+        return connection.timedRequest(new GetPredecessor(peer.getIPAddress(), peer.getPort())).thenAccept(response -> {
+            GetPredecessorResponse answer = (GetPredecessorResponse) response;
+            for (Entry holder : replicaHolders(answer.getProcess(), successorsOf(answer))) {
+                if (holder.getProcess() == peer.getStorageID()
+                        || peer.localNode(holder.getAddress(), holder.getPort()) != null) {
+                    return;
+                }
+            }
+            long ownerID = RingId.of(address + ":" + port);
+            long predecessorID = RingId.of(answer.getConnectionReadable());
+            int dropped = 0;
+            for (long key : keys) {
+                if (!fingerTable.isWithinRing(key, predecessorID, ownerID)) {
+                    continue;
+                }
+                for (String fileName : namesByKey.get(key)) {
+                    try {
+                        replicas.remove(fileName);
+                        Files.deleteIfExists(peer.getReplicaDirectory().resolve(fileName));
+                        dropped++;
+                    } catch (IOException e) {
+                        System.out.println("Error occurred while dropping the copy of " + fileName + ": "
+                                + e.getMessage());
+                    }
+                }
+            }
+            if (dropped > 0) {
+                System.out.println("Dropped " + dropped + " copies no longer held for " + address + ":" + port);
+            }
+        }).exceptionally(e -> null);
     }
 
-    public synchronized void handleFixFingers(IdentifiedSuccessor message,
-            TCPConnection connection) {
-        /*
-         * payload contains the index of fingertable
-         * check the node at that index and see if its same with the identified
-         * successor
-         * if its same no need to update
-         * else update with new successor
-         */
-        int index = Integer.valueOf(message.getPayload());
-        Entry existingEntry = fingerTable.getTable().get(index);
-
-        if (!existingEntry.getEntryString().equals(message.getConnectionReadable())) {
-            Entry newEntry = new Entry(existingEntry.getRingPosition(), message.getIPAddress(), message.getPort());
-            fingerTable.getTable().add(index, newEntry);
+    /*
+     * a predecessor only moves back when the one before failed or left; the
+     * keys between the two are this node's now, while a predecessor moving
+     * forward, e.g. as the ring settles after a join, takes nothing over
+     */
+    private List<Map.Entry<String, Long>> promoteReplicas() {
+        Entry predecessor = fingerTable.getPredecessor();
+        if (predecessor.hasAddress(peer.getIPAddress(), peer.getPort())) {
+            // not joined yet, or the predecessor failed and no other one notified this node yet
+            return Collections.emptyList();
         }
-        try {
-            connection.close();
+        Entry previous;
+        synchronized (this) {
+            previous = lastPredecessor;
+            lastPredecessor = predecessor;
+        }
+        if (previous == null || previous.hasAddress(predecessor.getAddress(), predecessor.getPort())
+                || !fingerTable.isWithinRing(previous.getHashCode(), predecessor.getHashCode(), peer.getPeerID())) {
+            return Collections.emptyList();
+        }
+        List<Map.Entry<String, Long>> promoted = new ArrayList<>();
+        for (Map.Entry<String, Long> copy : replicas.between(predecessor.getHashCode(), previous.getHashCode())) {
+            String fileName = copy.getKey();
+            Path replica = peer.getReplicaDirectory().resolve(fileName);
+            Path file = peer.getStorageDirectory().resolve(fileName);
+            try {
+                if (!Files.exists(file)) {
+                    Files.createDirectories(file.getParent());
+                    // a link keeps the copy valid until the file is on record
+                    Files.createLink(file, replica);
+                    fileIndex.put(fileName, copy.getValue());
+                    promoted.add(copy);
+                }
+                replicas.remove(fileName);
+                Files.deleteIfExists(replica);
+            } catch (IOException e) {
+                System.out.println("Error occurred while taking over the copy of " + fileName + ": " + e.getMessage());
+            }
+        }
+        if (!promoted.isEmpty()) {
+            System.out.println("Took over " + promoted.size() + " files from the copies kept for "
+                    + previous.getEntryString());
+        }
+        return promoted;
+    }
 
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
-            e.printStackTrace();
+    /* waits for handoffs started by joins, so a leaving node does not send those files twice */
+    private void awaitHandoffs() {
+        synchronized (handingOff) {
+            while (!handingOff.isEmpty()) {
+                try {
+                    handingOff.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
         }
+    }
 
+    /*
+     * a virtual node of this process shares the storage directory, so only
+     * the index entry moves; sending the file would overwrite and then delete
+     * the copy the other node just received
+     */
+    private boolean handOverLocally(Entry target, List<Map.Entry<String, Long>> files) {
+        Peer node = peer.localNode(target.getAddress(), target.getPort());
+        if (node == null || node == peer) {
+            return false;
+        }
+        for (Map.Entry<String, Long> file : files) {
+            fileIndex.handOver(file.getKey(), node.getUtilities().getFileIndex());
+        }
+        System.out.println("Handed " + files.size() + " files over to virtual node " + target.getEntryString());
+        return true;
     }
 
+    /* a file being received and the connection it arrives on */
+    private static final class Incoming {
+        final TCPConnection connection;
+        final FileReceiver receiver;
+
+        Incoming(TCPConnection connection, FileReceiver receiver) {
+            this.connection = connection;
+            this.receiver = receiver;
+        }
+    }
 }
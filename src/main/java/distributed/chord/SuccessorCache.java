@@ -0,0 +1,110 @@
+package distributed.chord;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import distributed.utils.Configuration;
+import distributed.utils.Entry;
+import distributed.utils.RingId;
+
+/*
+ * remembers which peer answered a lookup: if peer P is the successor of key
+ * k, no peer lies between k and P, so P is responsible for every key in
+ * [k, P]; entries are kept by the ID of P, expire after ROUTE_CACHE_TTL_SECONDS
+ * and are dropped as soon as P turns out to be no longer responsible
+ */
+class SuccessorCache {
+
+    private final long ttlNanos = TimeUnit.SECONDS.toNanos(Configuration.ROUTE_CACHE_TTL_SECONDS);
+
+    /* by the ID of the responsible peer, i.e. the end of the range it covers; guarded by this */
+    private final TreeMap<Long, Range> ranges = new TreeMap<>();
+
+    private static final class Range {
+        final long start;
+        final Entry peer;
+        final long expires;
+
+        Range(long start, Entry peer, long expires) {
+            this.start = start;
+            this.peer = peer;
+            this.expires = expires;
+        }
+
+        long width(long end) {
+            return (end - start) & RingId.MASK;
+        }
+    }
+
+    /**
+     * Returns the peer last found responsible for a key.
+     *
+     * @param key The key being looked up.
+     * @return The cached peer, or null if none is cached or it expired.
+     */
+    synchronized Entry get(long key) {
+        Map.Entry<Long, Range> found = ranges.ceilingEntry(key);
+        if (found == null) {
+            // a range reaching over the top of the ring ends at the lowest ID
+            found = ranges.firstEntry();
+        }
+        if (found == null) {
+            return null;
+        }
+        Range range = found.getValue();
+        if (System.nanoTime() - range.expires > 0) {
+            ranges.remove(found.getKey());
+            return null;
+        }
+        long end = found.getKey();
+        return ((end - key) & RingId.MASK) <= range.width(end) ? range.peer : null;
+    }
+
+    /**
+     * Records that a peer was found to be the successor of a key.
+     *
+     * @param key  The key that was looked up.
+     * @param peer The peer responsible for it.
+     */
+    synchronized void put(long key, Entry peer) {
+        if (Configuration.ROUTE_CACHE_SIZE <= 0) {
+            return;
+        }
+        long end = peer.getHashCode();
+        Range range = new Range(key, peer, System.nanoTime() + ttlNanos);
+        Range known = ranges.get(end);
+        if (known != null && known.peer.hasAddress(peer.getAddress(), peer.getPort())
+                && known.width(end) > range.width(end)) {
+            // keep the wider range, only refresh its expiry
+            range = new Range(known.start, peer, range.expires);
+        }
+        ranges.put(end, range);
+        if (ranges.size() > Configuration.ROUTE_CACHE_SIZE) {
+            evictOldest();
+        }
+    }
+
+    /**
+     * Forgets every range a peer was responsible for, e.g. because it failed
+     * or named another peer as responsible.
+     *
+     * @param peer The peer to forget.
+     */
+    synchronized void invalidate(Entry peer) {
+        ranges.values().removeIf(range -> range.peer.hasAddress(peer.getAddress(), peer.getPort()));
+    }
+
+    private void evictOldest() {
+        Long oldest = null;
+        long oldestExpiry = 0;
+        for (Map.Entry<Long, Range> entry : ranges.entrySet()) {
+            long expires = entry.getValue().expires;
+            if (oldest == null || expires - oldestExpiry < 0) {
+                oldest = entry.getKey();
+                oldestExpiry = expires;
+            }
+        }
+        ranges.remove(oldest);
+    }
+}
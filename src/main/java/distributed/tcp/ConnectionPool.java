@@ -0,0 +1,149 @@
+package distributed.tcp;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import distributed.chord.Node;
+
+/**
+ * Keeps one long-lived outgoing connection per remote ip:port so routing hops,
+ * file transfers and notifications to the same peer share a socket instead of
+ * opening a new one per message.
+ */
+public class ConnectionPool {
+
+    private final Node node;
+    private final long idleTimeoutMillis;
+    private final Map<String, PooledConnection> connections = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+
+    /*
+     * a pool slot, replaced once the connection in it has been evicted; guarded
+     * by a lock rather than synchronized so a virtual thread connecting here
+     * does not pin its carrier thread
+     */
+    private static class PooledConnection {
+        final ReentrantLock lock = new ReentrantLock();
+        // written under the lock, read without it for round-trip lookups
+        volatile TCPConnection connection;
+        volatile long lastUsed;
+        boolean evicted;
+    }
+
+    /**
+     * Constructs a pool whose connections deliver incoming events to the given
+     * node.
+     *
+     * @param node               The node handling events on pooled connections.
+     * @param idleTimeoutSeconds Idle time after which a connection is closed.
+     */
+    public ConnectionPool(Node node, int idleTimeoutSeconds) {
+        this.node = node;
+        this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeoutSeconds);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleTimeoutSeconds / 2);
+        this.sweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns a started connection to the given peer, reusing the pooled one if
+     * it is still healthy.
+     *
+     * @param host The address of the remote peer.
+     * @param port The listening port of the remote peer.
+     * @return A started connection to the peer.
+     * @throws IOException If a new connection cannot be opened.
+     */
+    public TCPConnection getConnection(String host, int port) throws IOException {
+        String key = host + ":" + port;
+        while (true) {
+            PooledConnection pooled = connections.computeIfAbsent(key, k -> new PooledConnection());
+            pooled.lock.lock();
+            try {
+                if (pooled.evicted) {
+                    // lost a race with the sweeper, pick up the replacement slot
+                    continue;
+                }
+                if (pooled.connection == null || !pooled.connection.isOpen()) {
+                    pooled.connection = TCPConnection.connect(node, host, port);
+                    pooled.connection.start();
+                }
+                pooled.lastUsed = System.currentTimeMillis();
+                return pooled.connection;
+            } finally {
+                pooled.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the round trip measured on the pooled connection to a peer,
+     * without opening one.
+     *
+     * @param host The address of the remote peer.
+     * @param port The listening port of the remote peer.
+     * @return The round trip in nanoseconds, or -1 if unknown.
+     */
+    public long getRoundTripNanos(String host, int port) {
+        PooledConnection pooled = connections.get(host + ":" + port);
+        TCPConnection connection = pooled == null ? null : pooled.connection;
+        return connection == null ? -1 : connection.getRoundTripNanos();
+    }
+
+    /**
+     * Drops and closes the pooled connection to a peer, e.g. after a send to it
+     * failed.
+     *
+     * @param host The address of the remote peer.
+     * @param port The listening port of the remote peer.
+     */
+    public void evict(String host, int port) {
+        PooledConnection pooled = connections.remove(host + ":" + port);
+        if (pooled != null) {
+            pooled.lock.lock();
+            try {
+                pooled.evicted = true;
+                closeQuietly(pooled.connection);
+            } finally {
+                pooled.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Closes connections that are broken or have been idle for longer than the
+     * idle timeout.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, PooledConnection> entry : connections.entrySet()) {
+            PooledConnection pooled = entry.getValue();
+            pooled.lock.lock();
+            try {
+                boolean broken = pooled.connection == null || !pooled.connection.isOpen();
+                if (broken || now - pooled.lastUsed > idleTimeoutMillis) {
+                    pooled.evicted = true;
+                    connections.remove(entry.getKey(), pooled);
+                    closeQuietly(pooled.connection);
+                }
+            } finally {
+                pooled.lock.unlock();
+            }
+        }
+    }
+
+    private void closeQuietly(TCPConnection connection) {
+        if (connection != null && connection.isOpen()) {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package distributed.tcp;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import distributed.utils.Configuration;
+
+/**
+ * Decides which kind of thread runs connection senders, receivers and event
+ * handlers. In virtual mode every one of them gets its own virtual thread, and
+ * the number of handlers running at once on this peer is bounded.
+ */
+public final class ExecutionMode {
+
+    private static final ThreadFactory VIRTUAL_THREADS = createVirtualThreadFactory();
+
+    private static final Semaphore HANDLER_PERMITS = new Semaphore(Configuration.MAX_CONCURRENT_HANDLERS);
+
+    // private constructor to prevent instantiation
+    private ExecutionMode() {
+    }
+
+    /*
+     * virtual threads need Java 21; they are looked up reflectively so the code
+     * still builds and runs on older JDKs, falling back to platform threads
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+        if (!Configuration.useVirtualThreads()) {
+            return null;
+        }
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Virtual threads are not available on this JVM, using platform threads.");
+            return null;
+        }
+    }
+
+    public static boolean isVirtual() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    /**
+     * Creates an unstarted thread of the configured kind.
+     *
+     * @param task The task the thread will run.
+     * @return The new thread.
+     */
+    public static Thread newThread(Runnable task) {
+        if (VIRTUAL_THREADS != null) {
+            return VIRTUAL_THREADS.newThread(task);
+        }
+        return new Thread(task);
+    }
+
+    /**
+     * Returns the executor that runs event handlers in nio mode: a virtual thread
+     * per task in virtual mode, otherwise the given platform pool.
+     *
+     * @param platformPool The pool used when virtual threads are off.
+     * @return The executor for handler tasks.
+     */
+    public static Executor handlerExecutor(Executor platformPool) {
+        if (VIRTUAL_THREADS != null) {
+            return task -> VIRTUAL_THREADS.newThread(task).start();
+        }
+        return platformPool;
+    }
+
+    /**
+     * Runs an event handler, waiting for a free slot first in virtual mode so
+     * a burst of events cannot start an unbounded number of handlers.
+     *
+     * @param handler The handler to run.
+     */
+    public static void runHandler(Runnable handler) {
+        if (VIRTUAL_THREADS == null) {
+            handler.run();
+            return;
+        }
+        HANDLER_PERMITS.acquireUninterruptibly();
+        try {
+            handler.run();
+        } finally {
+            HANDLER_PERMITS.release();
+        }
+    }
+}
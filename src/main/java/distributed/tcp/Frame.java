@@ -0,0 +1,60 @@
+package distributed.tcp;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * One frame waiting in a sender queue, sent as
+ * [int payload length][int request id][payload]. The payload is the in-memory
+ * bytes, optionally followed by a region of a file that is copied to the socket
+ * by the kernel instead of through the heap.
+ *
+ * The request id is 0 for one-way messages, positive for a request sent with
+ * TCPConnection.request and the negated request id for its response.
+ */
+final class Frame {
+
+    static final int HEADER_BYTES = 2 * Integer.BYTES;
+
+    final byte[] data;
+    final int requestId;
+    final FileChannel file;
+    final long position;
+    final int count;
+
+    Frame(byte[] data) {
+        this(data, 0);
+    }
+
+    Frame(byte[] data, int requestId) {
+        this.data = data;
+        this.requestId = requestId;
+        this.file = null;
+        this.position = 0;
+        this.count = 0;
+    }
+
+    Frame(byte[] data, FileChannel file, long position, int count) {
+        this.data = data;
+        this.requestId = 0;
+        this.file = file;
+        this.position = position;
+        this.count = count;
+    }
+
+    int length() {
+        return data.length + count;
+    }
+
+    /* the frame header and the in-memory part of the payload */
+    ByteBuffer header() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + data.length);
+        writeTo(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(length()).putInt(requestId).put(data);
+    }
+}
@@ -0,0 +1,125 @@
+package distributed.tcp;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread that reads and writes frames for every connection
+ * registered with it.
+ */
+public class NIOEventLoop implements Runnable {
+
+    private final Selector selector;
+
+    // connections waiting to be registered with the selector
+    private final Queue<TCPConnection> registrations = new ConcurrentLinkedQueue<>();
+
+    // connections whose sender queue received data since the last select
+    private final Queue<TCPConnection> writeRequests = new ConcurrentLinkedQueue<>();
+
+    public NIOEventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hands a connection to this loop. The channel is registered on the loop
+     * thread since registering from another thread blocks on select().
+     *
+     * @param connection The connection to register.
+     */
+    public void register(TCPConnection connection) {
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to start watching the connection for writability.
+     *
+     * @param connection The connection with pending outgoing data.
+     */
+    public void requestWrite(TCPConnection connection) {
+        writeRequests.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the selector loop until the selector is closed.
+     */
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+                processRegistrations();
+                processWriteRequests();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+            } catch (IOException e) {
+                System.out.println("Error in selector loop: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void processRegistrations() {
+        TCPConnection connection;
+        while ((connection = registrations.poll()) != null) {
+            try {
+                int interest = SelectionKey.OP_READ;
+                if (connection.getTCPSenderThread().hasPendingData()) {
+                    interest |= SelectionKey.OP_WRITE;
+                }
+                connection.getChannel().register(selector, interest, connection);
+            } catch (IOException e) {
+                System.out.println("Error registering connection with selector: " + e.getMessage());
+                connection.release();
+            }
+        }
+    }
+
+    private void processWriteRequests() {
+        TCPConnection connection;
+        while ((connection = writeRequests.poll()) != null) {
+            SelectionKey key = connection.getChannel().keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        TCPConnection connection = (TCPConnection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                if (!connection.getReceiver().readFrom(channel)) {
+                    // peer closed the connection
+                    connection.release();
+                    return;
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                boolean drained = connection.getTCPSenderThread().writeTo(channel);
+                if (drained) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+            }
+        } catch (IOException e) {
+            // in case of error, stop listening to the channel
+            connection.release();
+        } catch (RuntimeException e) {
+            // one malformed connection must not stop the loop every other one shares
+            System.out.println("Closing connection after an error: " + e);
+            connection.release();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package distributed.tcp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import distributed.utils.Configuration;
+
+/**
+ * NIOEventLoopGroup is a singleton holding the fixed set of selector threads
+ * and the handler pool shared by every connection in nio mode.
+ */
+public class NIOEventLoopGroup {
+    private static NIOEventLoopGroup group;
+
+    private final NIOEventLoop[] loops;
+    private final ExecutorService handlers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    private NIOEventLoopGroup(int loopCount, int handlerThreads) throws IOException {
+        this.loops = new NIOEventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new NIOEventLoop();
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        this.handlers = Executors.newFixedThreadPool(handlerThreads);
+    }
+
+    /**
+     * Returns the singleton instance, starting the selector threads on first
+     * use.
+     *
+     * @return The NIOEventLoopGroup instance.
+     */
+    public static synchronized NIOEventLoopGroup getInstance() {
+        if (group == null) {
+            try {
+                group = new NIOEventLoopGroup(Configuration.EVENT_LOOPS, Configuration.HANDLER_THREADS);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to open selectors", e);
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Picks the loop for a new connection in round-robin order.
+     *
+     * @return The event loop the connection should be registered with.
+     */
+    public NIOEventLoop next() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * Returns the pool running event handlers, so slow handlers never block a
+     * selector thread.
+     *
+     * @return The handler executor.
+     */
+    public ExecutorService getHandlers() {
+        return handlers;
+    }
+}
@@ -0,0 +1,47 @@
+package distributed.tcp;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import distributed.chord.Node;
+
+/**
+ * Represents a server thread that accepts incoming connections and hands them
+ * to the selector threads instead of starting threads per connection.
+ */
+public class NIOServer implements Runnable {
+    private Node node;
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * Constructs a NIOServer object with the given node and bound server channel.
+     *
+     * @param node          The node associated with this server.
+     * @param serverChannel The server channel for accepting connections.
+     */
+    public NIOServer(Node node, ServerSocketChannel serverChannel) {
+        this.node = node;
+        this.serverChannel = serverChannel;
+    }
+
+    /**
+     * Run the server thread to accept incoming connections.
+     */
+    public void run() {
+        while (serverChannel != null && serverChannel.isOpen()) {
+            try {
+                // accepting stays blocking, only the accepted channels are multiplexed
+                SocketChannel incomingChannel = serverChannel.accept();
+
+                TCPConnection newConnection = new TCPConnection(node, incomingChannel);
+
+                newConnection.start();
+            } catch (IOException e) {
+                System.out.println("Error accepting incoming connection: " + e.getMessage());
+                e.printStackTrace();
+                break;
+            }
+        }
+    }
+}
@@ -1,35 +1,94 @@
 package distributed.tcp;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import distributed.chord.Node;;
+import distributed.chord.Node;
+import distributed.utils.Configuration;
+import distributed.wireformats.Event;
 
 /**
  * Represents a TCP connection between nodes for sending and receiving
  * messages.
  */
 public class TCPConnection {
+    // how long a closing connection waits for the remote end before dropping it
+    private static final int CLOSE_TIMEOUT_SECONDS = 5;
+
     private Socket socket;
     private TCPSender sender;
     private TCPReceiver receiver;
 
+    /* only set when the connection is served by the selector threads */
+    private SocketChannel channel;
+    private NIOEventLoop eventLoop;
+
+    private Thread senderThread;
+
+    /* requests sent on this connection that are waiting for their response */
+    private final Map<Integer, CompletableFuture<Event>> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicInteger lastRequestId = new AtomicInteger();
+
+    /* smoothed round trip of timed requests in nanoseconds, -1 until one completes */
+    private volatile long roundTripNanos = -1;
+
     /**
      * Construct a new TCPConnection for the given node and socket.
-     * 
+     *
      * @param node   The node associated with this TCP connection.
      * @param socket The socket for the connection.
      */
     public TCPConnection(Node node, Socket socket) throws IOException {
         this.socket = socket;
-        this.sender = new TCPSender(this.socket);
+        // TCPSender coalesces frames itself, Nagle would only delay small requests and acks
+        this.socket.setTcpNoDelay(true);
+        this.sender = new TCPSender(this.socket, this);
         this.receiver = new TCPReceiver(node, this.socket, this);
     }
 
+    /**
+     * Construct a new TCPConnection served by the selector threads.
+     *
+     * @param node    The node associated with this TCP connection.
+     * @param channel The connected socket channel.
+     */
+    public TCPConnection(Node node, SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.socket.setTcpNoDelay(true);
+        this.sender = new TCPSender(this);
+        this.receiver = new TCPReceiver(node, this);
+    }
+
+    /**
+     * Opens a connection to the given address using the transport selected at
+     * startup. The connection still has to be started.
+     *
+     * @param node The node that will handle events arriving on the connection.
+     * @param host The address of the remote node.
+     * @param port The port of the remote node.
+     * @return The new connection.
+     */
+    public static TCPConnection connect(Node node, String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        if (Configuration.useSelectorTransport()) {
+            return new TCPConnection(node, channel);
+        }
+        // a blocking channel's socket, so file regions can be sent with sendfile
+        return new TCPConnection(node, channel.socket());
+    }
+
     /**
      * Retrieves the socket associated with this TCP connection.
-     * 
+     *
      * @return The socket object.
      */
     public Socket getSocket() {
@@ -38,7 +97,7 @@ public class TCPConnection {
 
     /**
      * Retrieves the sender thread associated with this TCP connection.
-     * 
+     *
      * @return The TCPSender object.
      */
     public TCPSender getTCPSenderThread() {
@@ -46,25 +105,191 @@ public class TCPConnection {
     }
 
     /**
-     * Starts the sender and receiver threads for sending and receiving messages.
+     * Checks whether the connection can still be used for sending.
+     *
+     * @return false once either side has closed or started closing the
+     *         connection.
+     */
+    public boolean isOpen() {
+        if (this.sender.isShuttingDown()) {
+            return false;
+        }
+        if (this.channel != null) {
+            return this.channel.isOpen();
+        }
+        return !this.socket.isClosed();
+    }
+
+    SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    TCPReceiver getReceiver() {
+        return this.receiver;
+    }
+
+    /* lets the selector know there is data queued for this connection */
+    void requestWrite() {
+        if (this.eventLoop != null) {
+            this.eventLoop.requestWrite(this);
+        }
+    }
+
+    /**
+     * Sends an event as a request and returns a future for the response. The
+     * request carries an id that the remote peer copies into its response, so
+     * any number of requests can be in flight on the connection and answered
+     * in any order. The future fails if no response arrives within
+     * chord.rpcTimeoutSeconds or the connection is closed first.
+     *
+     * @param request The event to send.
+     * @return A future completed with the response event.
+     */
+    public CompletableFuture<Event> request(Event request) {
+        int requestId = lastRequestId.updateAndGet(id -> id == Integer.MAX_VALUE ? 1 : id + 1);
+        CompletableFuture<Event> response = new CompletableFuture<>();
+        pendingRequests.put(requestId, response);
+        response.orTimeout(Configuration.RPC_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .whenComplete((event, error) -> pendingRequests.remove(requestId));
+        try {
+            this.sender.send(new Frame(request.getBytes(), requestId));
+        } catch (IOException e) {
+            response.completeExceptionally(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    /**
+     * Sends a request the remote peer answers without asking anyone else, and
+     * uses the time to its response as a round-trip sample for this
+     * connection.
+     *
+     * @param request The event to send.
+     * @return A future completed with the response event.
+     */
+    public CompletableFuture<Event> timedRequest(Event request) {
+        long sent = System.nanoTime();
+        return request(request).whenComplete((response, error) -> {
+            if (error == null) {
+                long sample = System.nanoTime() - sent;
+                long current = roundTripNanos;
+                // weighted 1/8 like TCP's smoothed RTT; a sample lost to a race does not matter
+                roundTripNanos = current < 0 ? sample : current + (sample - current) / 8;
+            }
+        });
+    }
+
+    /**
+     * Returns the smoothed round trip measured by timed requests.
+     *
+     * @return The round trip in nanoseconds, or -1 if none was measured yet.
+     */
+    public long getRoundTripNanos() {
+        return roundTripNanos;
+    }
+
+    /* completes a request with the response the remote peer sent for it */
+    void completeRequest(int requestId, Event response) {
+        CompletableFuture<Event> pending = pendingRequests.remove(requestId);
+        if (pending == null) {
+            // timed out already
+            return;
+        }
+        if (response == null) {
+            pending.completeExceptionally(new IOException("Remote peer could not answer request " + requestId));
+        } else {
+            pending.complete(response);
+        }
+    }
+
+    /*
+     * sends the event the node answered a request with, once it is ready;
+     * failures are reported to the requester as an empty response
+     */
+    void respond(int requestId, CompletableFuture<? extends Event> answer) {
+        answer.whenComplete((response, error) -> {
+            byte[] data = new byte[0];
+            if (error != null) {
+                System.out.println("Error answering request " + requestId + ": " + error.getMessage());
+            } else if (response != null) {
+                try {
+                    data = response.getBytes();
+                } catch (IOException e) {
+                    System.out.println("Error marshalling response " + requestId + ": " + e.getMessage());
+                }
+            }
+            try {
+                this.sender.send(new Frame(data, -requestId));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /**
+     * Starts the sender and receiver threads for sending and receiving messages,
+     * or registers the channel with a selector thread in nio mode. The threads
+     * are virtual when -Dchord.threads=virtual is set.
      */
     public void start() {
-        (new Thread(this.receiver)).start();
-        (new Thread(this.sender)).start();
+        if (this.channel != null) {
+            this.eventLoop = NIOEventLoopGroup.getInstance().next();
+            this.eventLoop.register(this);
+            return;
+        }
+        this.senderThread = ExecutionMode.newThread(this.sender);
+        ExecutionMode.newThread(this.receiver).start();
+        this.senderThread.start();
     }
 
     /**
-     * Closes the TCP connection, including sender and receiver threads,
-     * with a 5-second sleep to ensure all remaining messages are sent.
-     * 
-     * @throws IOException          If an I/O error occurs.
-     * @throws InterruptedException If the sleep is interrupted.
+     * Closes the TCP connection gracefully without blocking the caller. Messages
+     * already queued are still sent, then the output side is half-closed; the
+     * socket is fully closed once the remote end closes its side, or after a
+     * timeout.
+     *
+     * @return A future completed once the queued messages have been flushed.
+     */
+    public CompletableFuture<Void> close() {
+        if (this.senderThread == null && this.eventLoop == null) {
+            // never started, nothing can be queued for sending
+            release();
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> drained = this.sender.shutdown();
+        CompletableFuture.runAsync(this::release,
+                CompletableFuture.delayedExecutor(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return drained;
+    }
+
+    /*
+     * closes the socket without waiting and stops the sender thread, which
+     * would otherwise stay blocked on its empty queue
      */
-    public void close() throws IOException, InterruptedException {
-        TimeUnit.SECONDS.sleep(5);
-        this.socket.close();
-        this.sender.dout.close();
-        this.receiver.din.close();
+    void release() {
+        try {
+            if (this.channel != null) {
+                this.channel.close();
+            } else {
+                this.socket.close();
+            }
+        } catch (IOException e) {
+            // socket is unusable either way
+        }
+        if (this.senderThread != null) {
+            this.senderThread.interrupt();
+        }
+        this.sender.failShutdown(new IOException("Connection closed before queued data was sent"));
+        IOException closed = new IOException("Connection closed before a response arrived");
+        for (Integer requestId : pendingRequests.keySet()) {
+            CompletableFuture<Event> pending = pendingRequests.remove(requestId);
+            if (pending != null) {
+                pending.completeExceptionally(closed);
+            }
+        }
     }
 
 }
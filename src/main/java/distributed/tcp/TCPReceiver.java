@@ -3,9 +3,17 @@ package distributed.tcp;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import distributed.chord.Node;
+import distributed.utils.Configuration;
 import distributed.wireformats.Event;
+import distributed.wireformats.UnknownMessageException;
 import distributed.wireformats.WireFormatGenerator;
 
 /**
@@ -14,15 +22,24 @@ import distributed.wireformats.WireFormatGenerator;
  */
 public class TCPReceiver implements Runnable {
 
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
     private Socket socket;
     private Node node;
     private TCPConnection connection;
 
     protected DataInputStream din;
+    // thread mode: reused for every frame, decoders copy what they keep
+    private byte[] frameData = new byte[INITIAL_BUFFER_SIZE];
+
+    /* nio mode: partially read frames and events waiting for a handler thread */
+    private ByteBuffer readBuffer;
+    private final Queue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
 
     /**
      * Constructs a TCPReceiver object with the given node, socket, and connection.
-     * 
+     *
      * @param node       The node associated with this receiver.
      * @param socket     The socket for the connection.
      * @param connection The TCP connection.
@@ -34,6 +51,18 @@ public class TCPReceiver implements Runnable {
         this.din = new DataInputStream(socket.getInputStream());
     }
 
+    /**
+     * Constructs a TCPReceiver fed by a selector thread.
+     *
+     * @param node       The node associated with this receiver.
+     * @param connection The TCP connection owning the channel.
+     */
+    public TCPReceiver(Node node, TCPConnection connection) {
+        this.node = node;
+        this.connection = connection;
+        this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    }
+
     /**
      * Runs the receiver thread to continuously read incoming data from the socket
      * input stream.
@@ -41,24 +70,141 @@ public class TCPReceiver implements Runnable {
     public void run() {
         while (socket != null) {
             try {
-                // first read the length of data
-                int len = din.readInt();
-
-                byte[] data = new byte[len];
-                din.readFully(data, 0, len);
+                // first read the length of data and the request id
+                int len = checkFrameLength(din.readInt());
+                int requestId = din.readInt();
 
-                // create a message generator from the read data
-                WireFormatGenerator messageGenerator = WireFormatGenerator.getInstance();
-                Event event = messageGenerator.createMessage(data);
+                if (frameData.length < len) {
+                    frameData = new byte[Math.max(len, frameData.length * 2)];
+                }
+                din.readFully(frameData, 0, len);
 
-                node.handleIncomingEvent(event, connection);
+                Runnable handler = createHandler(requestId, ByteBuffer.wrap(frameData, 0, len));
+                if (handler != null) {
+                    ExecutionMode.runHandler(handler);
+                }
 
             } catch (IOException e) {
-                // TODO: handle exception
                 // in case of error, stop listening to the socket
                 // System.out.println("Connection Closed." + e.getMessage());
+                connection.release();
                 break;
+            } catch (RuntimeException e) {
+                // a malformed frame, the stream can no longer be trusted
+                System.out.println("Closing connection after a malformed message: " + e);
+                connection.release();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads whatever is available on the channel and dispatches every complete
+     * [int length][int request id][payload] frame. Only called from the owning
+     * selector thread.
+     *
+     * @param channel The non-blocking channel to read from.
+     * @return false once the remote end has closed the connection.
+     */
+    boolean readFrom(SocketChannel channel) throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            return false;
+        }
+        readBuffer.flip();
+        while (readBuffer.remaining() >= Frame.HEADER_BYTES) {
+            int len = checkFrameLength(readBuffer.getInt(readBuffer.position()));
+            if (readBuffer.remaining() < Frame.HEADER_BYTES + len) {
+                if (readBuffer.capacity() < Frame.HEADER_BYTES + len) {
+                    // frame is larger than the buffer, grow it and keep reading
+                    ByteBuffer larger = ByteBuffer.allocate(Frame.HEADER_BYTES + len);
+                    larger.put(readBuffer);
+                    readBuffer = larger;
+                    return true;
+                }
+                break;
+            }
+            readBuffer.getInt();
+            int requestId = readBuffer.getInt();
+            // decode straight from the read buffer, limited to this frame
+            int limit = readBuffer.limit();
+            int end = readBuffer.position() + len;
+            readBuffer.limit(end);
+            Runnable handler;
+            try {
+                handler = createHandler(requestId, readBuffer);
+            } finally {
+                readBuffer.limit(limit).position(end);
+            }
+            if (handler != null) {
+                deliver(handler);
+            }
+        }
+        readBuffer.compact();
+        return true;
+    }
+
+    /* a length the sender could not have meant would desynchronize or exhaust the reader */
+    private static int checkFrameLength(int len) throws IOException {
+        if (len < 0 || len > Configuration.MAX_FRAME_BYTES) {
+            throw new IOException("Frame length " + len + " is out of range");
+        }
+        return len;
+    }
+
+    /*
+     * decodes a frame into the work of handling it: a one-way event goes to
+     * the node, a request is answered with the event the node returns, and a
+     * response completes the request it belongs to
+     */
+    private Runnable createHandler(int requestId, ByteBuffer payload) throws IOException {
+        WireFormatGenerator messageGenerator = WireFormatGenerator.getInstance();
+        Event event;
+        try {
+            // an empty response means the remote peer could not answer
+            event = requestId < 0 && !payload.hasRemaining() ? null : messageGenerator.createMessage(payload);
+        } catch (UnknownMessageException e) {
+            // the frame is skipped, a request is answered as failed right away
+            System.out.println("Rejected message: " + e.getMessage());
+            if (requestId > 0) {
+                return () -> connection.respond(requestId, CompletableFuture.completedFuture(null));
             }
+            if (requestId < 0) {
+                return () -> connection.completeRequest(-requestId, null);
+            }
+            return null;
+        }
+        if (requestId < 0) {
+            return () -> connection.completeRequest(-requestId, event);
+        }
+        if (requestId > 0) {
+            return () -> connection.respond(requestId, node.handleIncomingRequest(event, connection));
+        }
+        return () -> node.handleIncomingEvent(event, connection);
+    }
+
+    /*
+     * handlers may block, so they run on the handler pool; events of one
+     * connection are still handled one at a time and in arrival order
+     */
+    private void deliver(Runnable handler) {
+        inbox.add(handler);
+        if (draining.compareAndSet(false, true)) {
+            ExecutionMode.handlerExecutor(NIOEventLoopGroup.getInstance().getHandlers()).execute(this::drainInbox);
         }
     }
+
+    private void drainInbox() {
+        do {
+            Runnable handler;
+            while ((handler = inbox.poll()) != null) {
+                try {
+                    ExecutionMode.runHandler(handler);
+                } catch (RuntimeException e) {
+                    System.out.println("Error handling event: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+            draining.set(false);
+        } while (!inbox.isEmpty() && draining.compareAndSet(false, true));
+    }
 }
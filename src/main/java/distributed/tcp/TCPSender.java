@@ -1,64 +1,316 @@
 package distributed.tcp;
 
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.DataOutputStream;
+
+import distributed.utils.Configuration;
 
 /**
  * TCPSender class represents a sender thread for sending data over a TCP
- * connection.
+ * connection. Queued messages are copied into one reusable buffer and written
+ * to the socket together, so a burst of small messages costs a single write.
  */
 public class TCPSender implements Runnable {
 
+    private static final int QUEUE_SIZE = 1000;
+
+    // how long the sender thread waits for more messages before writing a batch
+    private static final long LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(Configuration.BATCH_LINGER_MICROS);
+
+    // queued by shutdown() only to wake up an idle sender thread
+    private static final Frame WAKE_UP = new Frame(new byte[0]);
+
     // LinkedBlockingQueue provides thread-safe blocking operations
-    private LinkedBlockingQueue<byte[]> queue;
+    private LinkedBlockingQueue<Frame> queue;
+
+    private Socket socket;
+
+    /* thread mode: where batches and file regions are written */
+    private WritableByteChannel out;
+
+    /* the owning connection, released when a write fails in thread mode */
+    private TCPConnection connection;
+
+    /* set once the sender thread stopped on a failed write; later frames are dropped */
+    private volatile boolean failed;
+
+    /*
+     * the batch being written; only touched by the sender thread, or by the
+     * selector thread owning the channel in nio mode
+     */
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(Configuration.MAX_BATCH_BYTES);
+    // a frame taken off the queue that did not fit into the last batch
+    private Frame carry;
+    // a frame too large for the batch buffer, written on its own
+    private ByteBuffer oversized;
+    // a file region to be sent right after the batch
+    private Frame region;
+    private long regionPosition;
 
-    protected DataOutputStream dout;
+    /* set once the connection is closing, completed after the queue is flushed */
+    private volatile CompletableFuture<Void> drained;
 
     /**
      * Construct a TCPSender object with the given socket.
-     * 
-     * @param socket The socket for the connection.
+     *
+     * @param socket     The socket for the connection.
+     * @param connection The connection owning the socket.
      */
-    public TCPSender(Socket socket) throws IOException {
-        final int queueSize = 1000;
-        this.queue = new LinkedBlockingQueue<>(queueSize);
-        this.dout = new DataOutputStream(socket.getOutputStream());
+    public TCPSender(Socket socket, TCPConnection connection) throws IOException {
+        this.queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+        this.socket = socket;
+        this.connection = connection;
+        // sockets opened through a channel can hand file regions to sendfile
+        this.out = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+        this.batch.flip();
+    }
+
+    /**
+     * Construct a TCPSender whose queue is drained by a selector thread.
+     *
+     * @param connection The connection owning the channel.
+     */
+    public TCPSender(TCPConnection connection) {
+        this.queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+        this.connection = connection;
+        this.batch.flip();
     }
 
     /**
      * Adds data to the sender's queue for sending.
-     * 
+     *
      * @param data The data to be sent.
      */
     public void sendData(final byte[] data) throws InterruptedException {
-        this.queue.put(data);
+        send(new Frame(data));
+    }
+
+    /**
+     * Adds a frame whose payload is the given header followed by a region of a
+     * file. The region is copied from the file to the socket with transferTo,
+     * so it never passes through the heap. The file must stay open until the
+     * frame has been written.
+     *
+     * @param header   The in-memory start of the payload.
+     * @param file     The file holding the rest of the payload.
+     * @param position The offset of the region in the file.
+     * @param count    The number of bytes of the region.
+     */
+    public void sendFileRegion(final byte[] header, FileChannel file, long position, int count)
+            throws InterruptedException {
+        send(new Frame(header, file, position, count));
+    }
+
+    void send(Frame frame) throws InterruptedException {
+        if (failed) {
+            // nothing drains the queue any more, requests on it time out
+            return;
+        }
+        this.queue.put(frame);
+        if (out == null) {
+            connection.requestWrite();
+        }
+    }
+
+    boolean hasPendingData() {
+        return batch.hasRemaining() || oversized != null || region != null || carry != null || !queue.isEmpty();
+    }
+
+    boolean isShuttingDown() {
+        return drained != null;
+    }
+
+    /**
+     * Asks the sender to stop once everything already queued has been written.
+     * The output side of the socket is then half-closed so the remote receiver
+     * sees the end of the stream.
+     *
+     * @return A future completed once the queue is flushed and output is shut.
+     */
+    synchronized CompletableFuture<Void> shutdown() {
+        if (drained == null) {
+            drained = new CompletableFuture<>();
+            if (out == null) {
+                connection.requestWrite();
+            } else {
+                // a full queue means the thread is busy and will see the flag anyway
+                queue.offer(WAKE_UP);
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Writes as many queued frames as the channel accepts without blocking.
+     * Only called from the selector thread owning the channel.
+     *
+     * @param channel The non-blocking channel to write to.
+     * @return true if the queue was fully drained.
+     */
+    boolean writeTo(SocketChannel channel) throws IOException {
+        while (true) {
+            if (!writeBatch(channel)) {
+                // socket buffer is full, wait for the next OP_WRITE
+                return false;
+            }
+            try {
+                fillBatch(0);
+            } catch (InterruptedException e) {
+                // only a lingering fill blocks, the selector thread never lingers
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (!batch.hasRemaining() && oversized == null && region == null) {
+                if (drained != null && !drained.isDone()) {
+                    channel.shutdownOutput();
+                    drained.complete(null);
+                }
+                return true;
+            }
+        }
     }
 
     /**
      * Continuously sends data from the queue to the receiver through the
      * connection.
-     * send data to receiver through the connection thread using data output stream
-     * keeps running and takes whatever is in the queue, writes the length and the
-     * data
+     * blocks until a message is queued, then collects whatever else is queued
+     * (waiting up to the configured linger for more) and writes it all at once
      */
     public void run() {
-        while (true) {
+        while (!socket.isClosed()) {
             try {
                 // method will block on this until there is data on the queue
-                byte[] data = queue.take();
-                int len = data.length;
-
-                // First write the length and the data to the output stream
-                dout.writeInt(len);
-                dout.write(data, 0, len);
-                dout.flush();
-                // no need to close the data output stream
-            } catch (IOException | InterruptedException e) {
+                if (carry == null) {
+                    carry = queue.take();
+                }
+                fillBatch(LINGER_NANOS);
+                while (!writeBatch(out)) {
+                    // a blocking channel only stops short while a file region is copied
+                }
+
+                if (drained != null && carry == null && queue.isEmpty()) {
+                    socket.shutdownOutput();
+                    drained.complete(null);
+                    break;
+                }
+            } catch (IOException e) {
+                // a frame may be half written, so the stream is unusable
                 System.out.println("Error at TCPSender Thread:" + e.getMessage());
-                e.printStackTrace();
+                failed = true;
+                failShutdown(e);
+                // closed, the pool replaces it instead of handing out a connection nobody sends on
+                connection.release();
+                queue.clear();
+                break;
+            } catch (InterruptedException e) {
+                failShutdown(e);
+                break;
+            }
+        }
+    }
+
+    /*
+     * moves queued frames into the batch buffer until it is full, the queue is
+     * empty and the linger has passed, or a file region has to follow
+     */
+    private void fillBatch(long lingerNanos) throws InterruptedException {
+        batch.clear();
+        long deadline = System.nanoTime() + lingerNanos;
+        while (true) {
+            Frame frame = carry != null ? carry : queue.poll();
+            carry = null;
+            if (frame == null && lingerNanos > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining > 0) {
+                    frame = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                }
+            }
+            if (frame == null) {
+                break;
+            }
+            if (frame == WAKE_UP) {
+                continue;
+            }
+            if (Frame.HEADER_BYTES + frame.data.length > batch.remaining()) {
+                if (batch.position() > 0) {
+                    carry = frame;
+                } else {
+                    oversized = frame.header();
+                    startRegion(frame);
+                }
+                break;
+            }
+            frame.writeTo(batch);
+            if (frame.file != null) {
+                startRegion(frame);
+                break;
+            }
+        }
+        batch.flip();
+    }
+
+    private void startRegion(Frame frame) {
+        if (frame.file != null) {
+            region = frame;
+            regionPosition = frame.position;
+        }
+    }
+
+    /*
+     * writes the current batch, then any oversized frame and file region
+     * following it; returns false if the channel did not take all of it
+     */
+    private boolean writeBatch(WritableByteChannel channel) throws IOException {
+        if (batch.hasRemaining()) {
+            channel.write(batch);
+            if (batch.hasRemaining()) {
+                return false;
+            }
+        }
+        if (oversized != null) {
+            channel.write(oversized);
+            if (oversized.hasRemaining()) {
+                return false;
             }
+            oversized = null;
+        }
+        if (region != null) {
+            long end = region.position + region.count;
+            while (regionPosition < end) {
+                long written = region.file.transferTo(regionPosition, end - regionPosition, channel);
+                if (written == 0) {
+                    checkNotTruncated(region, regionPosition);
+                    return false;
+                }
+                regionPosition += written;
+            }
+            region = null;
+        }
+        return true;
+    }
+
+    /*
+     * transferTo also returns 0 at the end of the file; the frame length has
+     * already been sent, so a file that shrank leaves the stream unusable
+     */
+    private void checkNotTruncated(Frame frame, long position) throws IOException {
+        if (position >= frame.file.size()) {
+            throw new EOFException("File was truncated while it was being sent");
+        }
+    }
+
+    void failShutdown(Throwable cause) {
+        if (drained != null) {
+            drained.completeExceptionally(cause);
         }
     }
 
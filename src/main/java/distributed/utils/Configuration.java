@@ -0,0 +1,117 @@
+package distributed.utils;
+
+/**
+ * Startup settings shared by the discovery and peer processes.
+ * Every value can be overridden with a JVM system property, e.g.
+ * java -Dchord.transport=nio distributed.chord.Peer discovery-ip discovery-port
+ */
+public final class Configuration {
+
+    /* "threads" uses a sender and receiver thread per connection, "nio" uses selectors */
+    public static final String TRANSPORT = System.getProperty("chord.transport", "threads");
+
+    /* number of selector threads shared by all connections in nio mode */
+    public static final int EVENT_LOOPS = Integer.getInteger("chord.eventLoops",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    /* number of threads running event handlers in nio mode */
+    public static final int HANDLER_THREADS = Integer.getInteger("chord.handlerThreads",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    /* "platform" or "virtual" threads for senders, receivers and event handlers */
+    public static final String THREADS = System.getProperty("chord.threads", "platform");
+
+    /* upper bound on event handlers running at once on this peer in virtual mode */
+    public static final int MAX_CONCURRENT_HANDLERS = Integer.getInteger("chord.maxConcurrentHandlers", 1024);
+
+    /* pooled peer connections unused for this long are closed */
+    public static final int POOL_IDLE_SECONDS = Integer.getInteger("chord.poolIdleSeconds", 60);
+
+    /* size in bytes of each piece a file is split into when it is transferred */
+    public static final int CHUNK_SIZE = Integer.getInteger("chord.chunkSize", 64 * 1024);
+
+    /* largest frame payload accepted from the wire, a peer sending more is disconnected */
+    public static final int MAX_FRAME_BYTES = Math.max(CHUNK_SIZE + 1024,
+            Integer.getInteger("chord.maxFrameBytes", 16 * 1024 * 1024));
+
+    /* chunks a sender may have in flight before it waits for an acknowledgement */
+    public static final int CHUNK_WINDOW = Integer.getInteger("chord.chunkWindow", 4);
+
+    /* files a range handoff streams to the same peer at once */
+    public static final int HANDOFF_FILES = Math.max(1, Integer.getInteger("chord.handoffFiles", 8));
+
+    /* size of the buffer queued messages are gathered into before one socket write */
+    public static final int MAX_BATCH_BYTES = Integer.getInteger("chord.maxBatchBytes", 64 * 1024);
+
+    /* how long a sender thread waits for more messages to join a batch, 0 to write right away */
+    public static final int BATCH_LINGER_MICROS = Integer.getInteger("chord.batchLingerMicros", 0);
+
+    /* requests sent with TCPConnection.request fail when unanswered for this long */
+    public static final int RPC_TIMEOUT_SECONDS = Integer.getInteger("chord.rpcTimeoutSeconds", 10);
+
+    /* successors each peer keeps, so lookups can skip a failed successor */
+    public static final int SUCCESSOR_LIST_SIZE = Math.max(1, Integer.getInteger("chord.successorListSize", 3));
+
+    /* copies kept of every stored file, the owner's and one on each of its next successors */
+    public static final int REPLICATION_FACTOR = Math.max(1, Integer.getInteger("chord.replicationFactor", 1));
+
+    /* stabilization runs this often right after a change to the ring */
+    public static final int STABILIZE_MIN_MILLIS = Integer.getInteger("chord.stabilizeMinMillis", 250);
+
+    /* and backs off, doubling each quiet round, to at most this interval */
+    public static final int STABILIZE_MAX_MILLIS = Integer.getInteger("chord.stabilizeMaxMillis", 8000);
+
+    /* every finger is refreshed, in one batched lookup, this often */
+    public static final int FIX_FINGERS_MILLIS = Integer.getInteger("chord.fixFingersMillis", 5000);
+
+    /* "recursive" lookups are relayed hop by hop, "iterative" ones are driven by the asking peer */
+    public static final String LOOKUP = System.getProperty("chord.lookup", "recursive");
+
+    /* peers an iterative lookup asks in parallel at each step */
+    public static final int LOOKUP_ALPHA = Math.max(1, Integer.getInteger("chord.lookupAlpha", 3));
+
+    /* peers kept per finger row to route through the nearest of; 1 keeps only the exact finger */
+    public static final int FINGER_CANDIDATES = Math.max(1, Integer.getInteger("chord.fingerCandidates", 3));
+
+    /* key ranges whose responsible peer is remembered from earlier lookups, 0 to disable */
+    public static final int ROUTE_CACHE_SIZE = Integer.getInteger("chord.routeCacheSize", 1024);
+
+    /* and for how long */
+    public static final int ROUTE_CACHE_TTL_SECONDS = Integer.getInteger("chord.routeCacheTtlSeconds", 30);
+
+    /* "sha1" or "murmur3", hashes peer addresses and file names onto the ring; must match on every peer */
+    public static final String ID_HASH = System.getProperty("chord.idHash", "sha1");
+
+    /* ring positions a machine of capacity 1 takes, each a virtual node with its own port */
+    public static final int VIRTUAL_NODES = Math.max(1, Integer.getInteger("chord.virtualNodes", 1));
+
+    /* this machine's capacity relative to the others, scaling its number of virtual nodes */
+    public static final double CAPACITY = Double.parseDouble(System.getProperty("chord.capacity", "1"));
+
+    /* port of the first virtual node, the others take the ports after it; 0 picks free ports */
+    public static final int PORT = Integer.getInteger("chord.port", 0);
+
+    // private constructor to prevent instantiation
+    private Configuration() {
+    }
+
+    public static boolean useSelectorTransport() {
+        return "nio".equalsIgnoreCase(TRANSPORT);
+    }
+
+    public static boolean useIterativeLookup() {
+        return "iterative".equalsIgnoreCase(LOOKUP);
+    }
+
+    public static int virtualNodeCount() {
+        return Math.max(1, (int) Math.round(VIRTUAL_NODES * CAPACITY));
+    }
+
+    public static boolean useMurmur3Ids() {
+        return "murmur3".equalsIgnoreCase(ID_HASH);
+    }
+
+    public static boolean useVirtualThreads() {
+        return "virtual".equalsIgnoreCase(THREADS);
+    }
+}
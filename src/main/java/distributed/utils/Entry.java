@@ -1,26 +1,71 @@
 package distributed.utils;
 
+/*
+ * a peer's address paired with a ring position; immutable, so an entry can be
+ * handed out without copying. The peer ID is hashed on first use and kept, so
+ * an entry that only carries an address never pays for the hash
+ */
 public class Entry {
     /* this is the ring position */
-    long start;
+    final long start;
+
+    final String ipAddress;
+
+    final int port;
 
     /* ipAddress:port string */
-    String ipAddress;
+    private final String entryString;
 
-    int port;
+    /* -1 until first asked for; IDs are never negative */
+    private volatile long peerID;
+
+    /* storage ID of the process the peer runs in, shared by its virtual nodes; -1 if unknown */
+    private final long process;
 
     public Entry(long start, String ipAddress, int port) {
+        this(start, ipAddress, port, -1);
+    }
+
+    /* for a peer whose ID is already known, e.g. a copy of another entry */
+    public Entry(long start, String ipAddress, int port, long peerID) {
+        this(start, ipAddress, port, peerID, -1);
+    }
+
+    private Entry(long start, String ipAddress, int port, long peerID, long process) {
         this.start = start;
         this.ipAddress = ipAddress;
         this.port = port;
+        this.entryString = ipAddress + ":" + port;
+        this.peerID = peerID;
+        this.process = process;
+    }
+
+    /**
+     * Returns this entry with the process the peer runs in.
+     *
+     * @param process The storage ID of the peer's process, -1 if unknown.
+     * @return An entry for the same peer and ring position.
+     */
+    public Entry inProcess(long process) {
+        return process == this.process ? this : new Entry(start, ipAddress, port, peerID, process);
+    }
+
+    public long getProcess() {
+        return process;
     }
 
     public String getEntryString() {
-        return ipAddress + ":" + port;
+        return entryString;
     }
 
-    public int getHashCode() {
-        return Math.abs(getEntryString().hashCode());
+    public long getHashCode() {
+        long id = peerID;
+        if (id < 0) {
+            // racing threads compute the same value, so the race is harmless
+            id = RingId.of(entryString);
+            peerID = id;
+        }
+        return id;
     }
 
     public String getAddress() {
@@ -31,9 +76,8 @@ public class Entry {
         return port;
     }
 
-    public void updateEntry(String ipAddress, int port) {
-        this.ipAddress = ipAddress;
-        this.port = port;
+    public boolean hasAddress(String ipAddress, int port) {
+        return this.port == port && this.ipAddress.equals(ipAddress);
     }
 
     public long getRingPosition() {
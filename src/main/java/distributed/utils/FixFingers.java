@@ -1,25 +1,45 @@
 package distributed.utils;
 
-import java.util.Random;
-import java.net.ConnectException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import distributed.chord.FingerTable;
 import distributed.chord.Peer;
 import distributed.tcp.TCPConnection;
 import distributed.wireformats.FindSuccessorTypes;
-import distributed.wireformats.RequestSuccessor;
-
-import java.net.Socket;
-import java.io.IOException;
+import distributed.wireformats.GetPredecessor;
+import distributed.wireformats.GetPredecessorResponse;
+import distributed.wireformats.SuccessorsFound;
 
+/*
+ * refreshes the whole finger table every round: rows starting between this
+ * node and its successor are set locally, all other starts are resolved by a
+ * single batched lookup instead of one lookup per finger; rows whose finger
+ * failed since the last round go first, in a batch of their own, so they are
+ * fixed even if the full batch is slow; with several candidates per finger,
+ * every finger is then probed so routing can pick the nearest
+ */
 public class FixFingers extends Thread {
 
     FingerTable fingerTable;
     Peer peer;
-    boolean isAlive;
-    Random random = new Random();
+    volatile boolean isAlive;
+
+    // set by speedUp() to cut the current wait short
+    private boolean refreshNow;
+
+    // rows whose finger was found unreachable since the last round; guarded by this
+    private final BitSet failedRows = new BitSet();
 
     public FixFingers(FingerTable fingerTable, Peer peer) {
+        super("fix-fingers");
+        setDaemon(true);
         this.fingerTable = fingerTable;
         this.peer = peer;
         this.isAlive = true;
@@ -27,36 +47,153 @@ public class FixFingers extends Thread {
 
     @Override
     public void run() {
-        // isAlive = false;
         while (isAlive) {
-            int i = random.nextInt(30) + 1;
-            Entry entry = fingerTable.getTable().get(i);
-            /*
-             * send find successor request for the ith finger table entry
-             * create a new type for this request FIX_FINGERS, it will have value of i as
-             * payload
-             */
             try {
-                RequestSuccessor request = new RequestSuccessor(FindSuccessorTypes.FIX_FINGERS, String.valueOf(i),
-                        entry.getRingPosition(), peer.getIPAddress(), peer.getPort());
-
-                Socket socketToPeer = new Socket(entry.getAddress(), entry.getPort());
-                TCPConnection connection = new TCPConnection(peer, socketToPeer);
-                connection.getTCPSenderThread().sendData(request.getBytes());
-                connection.start();
-                Thread.sleep(5000);
-            } catch (ConnectException e) {
-                // do nothing
-                System.out.println("No connection");
-            } catch (IOException | InterruptedException e) {
-                System.out.println(
-                        "Error occurred while sending find successor for fix fingers routine: " + e.getMessage());
-                e.printStackTrace();
+                refresh();
+                if (Configuration.FINGER_CANDIDATES > 1) {
+                    probeFingers();
+                }
+            } catch (ExecutionException | TimeoutException e) {
+                System.out.println("Error occurred during fix fingers routine: " + e.getMessage());
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            try {
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + Configuration.FIX_FINGERS_MILLIS;
+                    long remaining = Configuration.FIX_FINGERS_MILLIS;
+                    while (isAlive && !refreshNow && remaining > 0) {
+                        wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                    refreshNow = false;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private void refresh() throws InterruptedException, ExecutionException, TimeoutException {
+        BitSet failed;
+        synchronized (this) {
+            failed = (BitSet) failedRows.clone();
+            failedRows.clear();
+        }
+        if (!failed.isEmpty()) {
+            resolve(failed);
+        }
+        BitSet rest = new BitSet();
+        rest.set(0, fingerTable.size());
+        rest.andNot(failed);
+        resolve(rest);
+    }
+
+    private void resolve(BitSet rows) throws InterruptedException, ExecutionException, TimeoutException {
+        FingerTable.Routing routing = fingerTable.snapshot();
+        Entry successor = routing.getSuccessor();
+
+        long[] keys = new long[rows.cardinality()];
+        int count = 0;
+        for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1)) {
+            long start = routing.getStart(i);
+            if (fingerTable.isWithinRing(start, peer.getPeerID(), successor.getHashCode())) {
+                // no peer lies between this node and its successor
+                fingerTable.updateFinger(i, successor.getAddress(), successor.getPort());
+            } else {
+                keys[count++] = start;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+
+        SuccessorsFound found = peer.findSuccessors(FindSuccessorTypes.FIX_FINGERS, Arrays.copyOf(keys, count))
+                .get(Configuration.RPC_TIMEOUT_SECONDS + 1, TimeUnit.SECONDS);
+        for (int p = 0; p < found.getPeerCount(); p++) {
+            for (long key : found.getKeys(p)) {
+                int row = rowOf(routing, key);
+                if (row >= 0) {
+                    fingerTable.updateFinger(row, found.getIPAddress(p), found.getPort(p));
+                }
+            }
+        }
+    }
+
+    /*
+     * asks every finger and alternative for its successor list: the answer
+     * times the round trip to that peer, and the successors that fall in a
+     * row's interval become alternatives for that row
+     */
+    private void probeFingers() {
+        FingerTable.Routing routing = fingerTable.snapshot();
+        Set<String> probed = new HashSet<>();
+        for (int i = 0; i < fingerTable.size(); i++) {
+            probe(routing.getFinger(i), probed);
+            for (Entry alternate : routing.getAlternates(i)) {
+                probe(alternate, probed);
+            }
+        }
+    }
+
+    private void probe(Entry finger, Set<String> probed) {
+        if (finger.hasAddress(peer.getIPAddress(), peer.getPort()) || !probed.add(finger.getEntryString())) {
+            return;
+        }
+        try {
+            TCPConnection connection = peer.getConnectionPool().getConnection(finger.getAddress(), finger.getPort());
+            connection.timedRequest(new GetPredecessor(peer.getIPAddress(), peer.getPort()))
+                    .thenAccept(response -> {
+                        GetPredecessorResponse answer = (GetPredecessorResponse) response;
+                        fingerTable.addCandidates(answer.getSuccessorAddresses(), answer.getSuccessorPorts());
+                    });
+        } catch (IOException e) {
+            System.out.println("Could not probe finger " + finger.getEntryString() + ": " + e.getMessage());
+            peer.dropUnreachablePeer(finger);
+        }
+    }
+
+    /* the row starting at key; -1 if the answer belongs to an older peer id */
+    private int rowOf(FingerTable.Routing routing, long key) {
+        if (routing.getSelf() != fingerTable.snapshot().getSelf()) {
+            return -1;
+        }
+        for (int i = 0; i < fingerTable.size(); i++) {
+            if (routing.getStart(i) == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Marks the rows a failed peer was the finger of, so the next round, which
+     * starts right away, resolves them before the rest of the table.
+     *
+     * @param failed The peer that could not be reached.
+     */
+    public synchronized void fingerFailed(Entry failed) {
+        FingerTable.Routing routing = fingerTable.snapshot();
+        for (int i = 0; i < fingerTable.size(); i++) {
+            if (routing.getFinger(i).hasAddress(failed.getAddress(), failed.getPort())) {
+                failedRows.set(i);
             }
         }
+        speedUp();
+    }
+
+    /**
+     * Starts the next refresh right away, e.g. after a neighbor joined, left
+     * or failed.
+     */
+    public synchronized void speedUp() {
+        refreshNow = true;
+        notifyAll();
     }
 
-    public void stopRoutine() {
+    public synchronized void stopRoutine() {
         isAlive = false;
+        notifyAll();
     }
 }
@@ -0,0 +1,121 @@
+package distributed.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.ToLongFunction;
+
+/*
+ * places peer addresses and file names on the ring; every ID is the low 63
+ * bits of a 64-bit hash, so IDs stay non-negative longs, the ring is
+ * [0, 2^63) and positions still compare with plain < and >
+ */
+public final class RingId {
+
+    /* the ring has 2^BITS positions, one finger row per bit */
+    public static final int BITS = 63;
+
+    public static final long MASK = Long.MAX_VALUE;
+
+    private static final ToLongFunction<byte[]> HASH = Configuration.useMurmur3Ids() ? RingId::murmur3
+            : RingId::sha1;
+
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    });
+
+    // private constructor to prevent instantiation
+    private RingId() {
+    }
+
+    /**
+     * Returns the ring position of a peer address (ip:port) or a file name.
+     * Every peer must be started with the same chord.idHash.
+     *
+     * @param name The address or file name.
+     * @return The ID, between 0 and 2^63 - 1.
+     */
+    public static long of(String name) {
+        return HASH.applyAsLong(name.getBytes(StandardCharsets.UTF_8)) & MASK;
+    }
+
+    /* the first 64 bits of the SHA-1 digest */
+    static long sha1(byte[] data) {
+        MessageDigest digest = SHA1.get();
+        digest.reset();
+        return ByteBuffer.wrap(digest.digest(data)).getLong();
+    }
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    /* the first half of MurmurHash3 x64_128 with seed 0 */
+    static long murmur3(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int blocks = data.length / 16;
+        long h1 = 0;
+        long h2 = 0;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = buffer.getLong(i * 16);
+            long k2 = buffer.getLong(i * 16 + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        int tail = blocks * 16;
+        int remaining = data.length & 15;
+        for (int i = remaining - 1; i >= 0; i--) {
+            long b = data[tail + i] & 0xffL;
+            if (i >= 8) {
+                k2 ^= b << ((i - 8) * 8);
+            } else {
+                k1 ^= b << (i * 8);
+            }
+        }
+        if (remaining > 8) {
+            h2 ^= mixK2(k2);
+        }
+        if (remaining > 0) {
+            h1 ^= mixK1(k1);
+        }
+
+        h1 ^= data.length;
+        h2 ^= data.length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        return h1 + h2;
+    }
+
+    private static long mixK1(long k1) {
+        return Long.rotateLeft(k1 * C1, 31) * C2;
+    }
+
+    private static long mixK2(long k2) {
+        return Long.rotateLeft(k2 * C2, 33) * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,89 @@
+package distributed.utils;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import distributed.chord.FingerTable;
+import distributed.chord.Peer;
+
+/*
+ * runs Peer.stabilize periodically; the interval starts at the minimum, doubles
+ * after every round that leaves the routing state unchanged and drops back to
+ * the minimum as soon as a round, a notification or a failure changes it
+ */
+public class Stabilizer extends Thread {
+
+    FingerTable fingerTable;
+    Peer peer;
+    volatile boolean isAlive;
+
+    private long interval = Configuration.STABILIZE_MIN_MILLIS;
+
+    // set by speedUp() to cut the current wait short
+    private boolean churn;
+
+    public Stabilizer(FingerTable fingerTable, Peer peer) {
+        super("stabilizer");
+        setDaemon(true);
+        this.fingerTable = fingerTable;
+        this.peer = peer;
+        this.isAlive = true;
+    }
+
+    @Override
+    public void run() {
+        FingerTable.Routing lastSeen = fingerTable.snapshot();
+        while (isAlive) {
+            try {
+                peer.stabilize().get(Configuration.RPC_TIMEOUT_SECONDS + 1, TimeUnit.SECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                System.out.println("Error occurred during stabilization: " + e.getMessage());
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            /* any writer replaces the snapshot, so a new one means the ring changed */
+            FingerTable.Routing current = fingerTable.snapshot();
+            boolean changed = current != lastSeen;
+            lastSeen = current;
+            if (changed) {
+                // a new predecessor or successor can move the copies of files
+                peer.maintainReplicas();
+            }
+
+            try {
+                synchronized (this) {
+                    if (changed || churn) {
+                        interval = Configuration.STABILIZE_MIN_MILLIS;
+                    } else {
+                        interval = Math.min(Configuration.STABILIZE_MAX_MILLIS, interval * 2);
+                    }
+                    churn = false;
+                    long deadline = System.currentTimeMillis() + interval;
+                    long remaining = interval;
+                    while (isAlive && !churn && remaining > 0) {
+                        wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Starts the next round right away and resets the interval, e.g. after a
+     * neighbor joined or left.
+     */
+    public synchronized void speedUp() {
+        churn = true;
+        notifyAll();
+    }
+
+    public synchronized void stopRoutine() {
+        isAlive = false;
+        notifyAll();
+    }
+}
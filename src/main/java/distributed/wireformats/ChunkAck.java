@@ -0,0 +1,67 @@
+package distributed.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sent by the receiver of a chunked transfer with the number of bytes it has
+ * written so far; used both as the resume point and for flow control.
+ */
+public class ChunkAck implements Event {
+
+    private int type;
+    private int purpose;
+    private String fileName;
+    private long offset;
+
+    public ChunkAck(int purpose, String fileName, long offset) {
+        this.type = Protocol.CHUNK_ACK;
+        this.purpose = purpose;
+        this.fileName = fileName;
+        this.offset = offset;
+    }
+
+    public ChunkAck(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
+
+    public ChunkAck(ByteBuffer buffer) {
+        this.type = buffer.getInt();
+
+        this.purpose = buffer.getInt();
+
+        this.fileName = WireCodec.readString(buffer);
+
+        this.offset = buffer.getLong();
+    }
+
+    public byte[] getBytes() throws IOException {
+        return WireCodec.marshal(this::encode);
+    }
+
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
+
+        buffer.putInt(purpose);
+
+        WireCodec.writeString(buffer, fileName);
+
+        buffer.putLong(offset);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getPurpose() {
+        return purpose;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+}
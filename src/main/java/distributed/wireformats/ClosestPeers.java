@@ -0,0 +1,81 @@
+package distributed.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Answers FindClosestPeers. If the responder knows the successor of the key,
+ * found is set and the only peer listed is that successor; otherwise the
+ * peers are the responder's fingers preceding the key, closest to it first.
+ */
+public class ClosestPeers implements Event {
+    private int type;
+
+    private boolean found;
+
+    private String[] ipAddresses;
+    private int[] ports;
+
+    public ClosestPeers(boolean found, String[] ipAddresses, int[] ports) {
+        this.type = Protocol.CLOSEST_PEERS;
+        this.found = found;
+        this.ipAddresses = ipAddresses;
+        this.ports = ports;
+    }
+
+    public ClosestPeers(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
+
+    public ClosestPeers(ByteBuffer buffer) {
+        this.type = buffer.getInt();
+
+        this.found = WireCodec.readBoolean(buffer);
+
+        // an address and a port per peer
+        int peers = WireCodec.readCount(buffer, 2 * Integer.BYTES);
+        this.ipAddresses = new String[peers];
+        this.ports = new int[peers];
+        for (int i = 0; i < peers; i++) {
+            ipAddresses[i] = WireCodec.readString(buffer);
+            ports[i] = buffer.getInt();
+        }
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public byte[] getBytes() throws IOException {
+        return WireCodec.marshal(this::encode);
+    }
+
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
+
+        WireCodec.writeBoolean(buffer, found);
+
+        buffer.putInt(ipAddresses.length);
+        for (int i = 0; i < ipAddresses.length; i++) {
+            WireCodec.writeString(buffer, ipAddresses[i]);
+            buffer.putInt(ports[i]);
+        }
+    }
+
+    public boolean isFound() {
+        return found;
+    }
+
+    public int getPeerCount() {
+        return ipAddresses.length;
+    }
+
+    public String getIPAddress(int peer) {
+        return ipAddresses[peer];
+    }
+
+    public int getPort(int peer) {
+        return ports[peer];
+    }
+
+}
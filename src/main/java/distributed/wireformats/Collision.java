@@ -1,12 +1,7 @@
 package distributed.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class Collision implements Event {
     private int type;
@@ -15,29 +10,20 @@ public class Collision implements Event {
         this.type = Protocol.COLLISION;
     }
 
-    public Collision(byte[] marshalledData) throws IOException {
-        ByteArrayInputStream inputData = new ByteArrayInputStream(marshalledData);
-        DataInputStream din = new DataInputStream(new BufferedInputStream(inputData));
-
-        this.type = din.readInt();
+    public Collision(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
 
-        inputData.close();
-        din.close();
+    public Collision(ByteBuffer buffer) {
+        this.type = buffer.getInt();
     }
 
     public byte[] getBytes() throws IOException {
-        ByteArrayOutputStream opStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(opStream));
-
-        dout.writeInt(type);
-
-        // making sure data from buffer is flushed
-        dout.flush();
-        byte[] marshalledData = opStream.toByteArray();
+        return WireCodec.marshal(this::encode);
+    }
 
-        opStream.close();
-        dout.close();
-        return marshalledData;
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
     }
 
     public int getType() {
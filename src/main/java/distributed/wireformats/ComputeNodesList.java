@@ -1,12 +1,7 @@
 package distributed.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -27,26 +22,22 @@ public class ComputeNodesList implements Event {
         this.overlaySize = overlaySize;
     }
 
-    public ComputeNodesList(byte[] marshalledData) throws IOException {
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(marshalledData);
-        DataInputStream din = new DataInputStream(new BufferedInputStream(inputStream));
+    public ComputeNodesList(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
+
+    public ComputeNodesList(ByteBuffer buffer) {
+        this.type = buffer.getInt();
 
-        this.type = din.readInt();
-        this.threadPoolSize = din.readInt();
-        this.numberOfPeers = din.readInt();
+        this.threadPoolSize = buffer.getInt();
 
+        this.numberOfPeers = buffer.getInt();
         this.peers = new ArrayList<String>(this.numberOfPeers);
         for (int i = 0; i < this.numberOfPeers; i++) {
-            int len = din.readInt();
-            byte[] bytes = new byte[len];
-            din.readFully(bytes);
-            this.peers.add(new String(bytes));
+            this.peers.add(WireCodec.readString(buffer));
         }
 
-        this.overlaySize = din.readInt();
-
-        inputStream.close();
-        din.close();
+        this.overlaySize = buffer.getInt();
     }
 
     public int getType() {
@@ -54,30 +45,21 @@ public class ComputeNodesList implements Event {
     }
 
     public byte[] getBytes() throws IOException {
-        ByteArrayOutputStream opStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(opStream));
-
-        dout.writeInt(type);
-        dout.writeInt(threadPoolSize);
-        dout.writeInt(numberOfPeers);
-
-        for (String peer : peers) {
-            byte[] bytes = peer.getBytes();
-            dout.writeInt(bytes.length);
-            dout.write(bytes);
-        }
+        return WireCodec.marshal(this::encode);
+    }
 
-        dout.writeInt(overlaySize);
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
 
-        // make sure buffer is flushed
-        dout.flush();
+        buffer.putInt(threadPoolSize);
 
-        byte[] marshalledData = opStream.toByteArray();
+        buffer.putInt(numberOfPeers);
 
-        opStream.close();
-        dout.close();
+        for (String peer : peers) {
+            WireCodec.writeString(buffer, peer);
+        }
 
-        return marshalledData;
+        buffer.putInt(overlaySize);
     }
 
     public int getNumberOfPeers() {
@@ -1,83 +1,55 @@
 package distributed.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 public class DownloadRequest implements Event {
 
     private String fileName;
     private int type;
     private int hopsCount = 0;
-    private List<Integer> hops = new ArrayList<>();
+    private long[] hops = new long[0];
+    /* bytes of the file the requester already has from an interrupted download */
+    private long offset;
 
-    public DownloadRequest(String fileName, int hopsCount, List<Integer> hops) {
+    public DownloadRequest(String fileName, int hopsCount, long[] hops, long offset) {
         this.type = Protocol.DOWNLOAD_REQUEST;
         this.fileName = fileName;
         this.hopsCount = hopsCount;
         this.hops = hops;
+        this.offset = offset;
     }
 
-    public DownloadRequest(byte[] marshalledData) throws IOException {
-        ByteArrayInputStream inputData = new ByteArrayInputStream(marshalledData);
-
-        DataInputStream din = new DataInputStream(new BufferedInputStream(inputData));
-
-        this.type = din.readInt();
-
-        this.hopsCount = din.readInt();
+    public DownloadRequest(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
 
-        int hopsListLen = din.readInt();
-        List<Integer> hopsList = new ArrayList<>(hopsListLen);
-        int hop;
-        for (int i = 0; i < hopsListLen; i++) {
-            hop = din.readInt();
-            hopsList.add(hop);
-        }
+    public DownloadRequest(ByteBuffer buffer) {
+        this.type = buffer.getInt();
 
-        this.hops = hopsList;
+        this.hopsCount = buffer.getInt();
 
-        int len = din.readInt();
-        byte[] data = new byte[len];
-        din.readFully(data);
-        this.fileName = new String(data);
+        this.hops = WireCodec.readLongs(buffer);
 
-        inputData.close();
-        din.close();
+        this.fileName = WireCodec.readString(buffer);
 
+        this.offset = buffer.getLong();
     }
 
     public byte[] getBytes() throws IOException {
-        byte[] marshalledData;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(outputStream));
-
-        dout.writeInt(type);
-
-        dout.writeInt(hopsCount);
-
-        dout.writeInt(hops.size());
+        return WireCodec.marshal(this::encode);
+    }
 
-        for (int element : hops) {
-            dout.writeInt(element);
-        }
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
 
-        dout.writeInt(fileName.getBytes().length);
-        dout.write(fileName.getBytes());
+        buffer.putInt(hopsCount);
 
-        dout.flush();
-        marshalledData = outputStream.toByteArray();
+        WireCodec.writeLongs(buffer, hops);
 
-        outputStream.close();
-        dout.close();
+        WireCodec.writeString(buffer, fileName);
 
-        return marshalledData;
+        buffer.putLong(offset);
     }
 
     public String getFileName() {
@@ -92,7 +64,11 @@ public class DownloadRequest implements Event {
         return hopsCount;
     }
 
-    public List<Integer> getHopList() {
+    public long[] getHops() {
         return hops;
     }
+
+    public long getOffset() {
+        return offset;
+    }
 }
@@ -1,6 +1,7 @@
 package distributed.wireformats;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /* Interface with method definitions that will be implemented by all wireformats */
 public interface Event {
@@ -8,4 +9,7 @@ public interface Event {
 
     public byte[] getBytes() throws IOException;
 
+    /* writes the same bytes getBytes() returns into the buffer */
+    public void encode(ByteBuffer buffer);
+
 }
@@ -0,0 +1,20 @@
+package distributed.wireformats;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds an event from a received frame. Registered with WireFormatGenerator
+ * for one message type.
+ */
+@FunctionalInterface
+public interface EventDecoder {
+    /**
+     * Decodes an event starting at the buffer's position. The buffer is only
+     * valid for the duration of the call, so every field has to be copied out
+     * of it.
+     *
+     * @param buffer The frame payload, limited to this message.
+     * @return The decoded event.
+     */
+    Event decode(ByteBuffer buffer);
+}
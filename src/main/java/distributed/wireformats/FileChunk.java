@@ -0,0 +1,114 @@
+package distributed.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * One piece of a file sent as a sequence of chunks. An empty chunk at offset 0
+ * opens a transfer and asks the receiver where to resume from.
+ */
+public class FileChunk implements Event {
+
+    private int type;
+    private int purpose;
+    private String fileName;
+    private long totalSize;
+    private long offset;
+    private int length;
+    private byte[] data;
+
+    public FileChunk(int purpose, String fileName, long totalSize, long offset, byte[] data) {
+        this.type = Protocol.FILE_CHUNK;
+        this.purpose = purpose;
+        this.fileName = fileName;
+        this.totalSize = totalSize;
+        this.offset = offset;
+        this.length = data.length;
+        this.data = data;
+    }
+
+    /**
+     * Creates a chunk whose data is not held in memory; its header is sent with
+     * getHeaderBytes() and the data is appended from the file by the sender.
+     */
+    public FileChunk(int purpose, String fileName, long totalSize, long offset, int length) {
+        this.type = Protocol.FILE_CHUNK;
+        this.purpose = purpose;
+        this.fileName = fileName;
+        this.totalSize = totalSize;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public FileChunk(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
+
+    public FileChunk(ByteBuffer buffer) {
+        this.type = buffer.getInt();
+
+        this.purpose = buffer.getInt();
+
+        this.fileName = WireCodec.readString(buffer);
+
+        this.totalSize = buffer.getLong();
+
+        this.offset = buffer.getLong();
+
+        this.data = WireCodec.readBytes(buffer);
+        this.length = data.length;
+    }
+
+    public byte[] getBytes() throws IOException {
+        return WireCodec.marshal(this::encode);
+    }
+
+    /* everything up to and including the data length, without the data */
+    public byte[] getHeaderBytes() throws IOException {
+        return WireCodec.marshal(this::encodeHeader);
+    }
+
+    public void encode(ByteBuffer buffer) {
+        encodeHeader(buffer);
+        buffer.put(data);
+    }
+
+    private void encodeHeader(ByteBuffer buffer) {
+        buffer.putInt(type);
+
+        buffer.putInt(purpose);
+
+        WireCodec.writeString(buffer, fileName);
+
+        buffer.putLong(totalSize);
+
+        buffer.putLong(offset);
+
+        // chunk data goes last so the body can be streamed after the header
+        buffer.putInt(length);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getPurpose() {
+        return purpose;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -1,58 +1,49 @@
 package distributed.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class FileNotFound implements Event {
     private int type;
+    private String fileName;
     private String message;
 
-    public FileNotFound(String message) {
+    public FileNotFound(String fileName, String message) {
         this.type = Protocol.FILE_NOT_FOUND;
+        this.fileName = fileName;
         this.message = message;
     }
 
-    public FileNotFound(byte[] marshalledData) throws IOException {
-        ByteArrayInputStream inputData = new ByteArrayInputStream(marshalledData);
-        DataInputStream din = new DataInputStream(new BufferedInputStream(inputData));
+    public FileNotFound(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
 
-        this.type = din.readInt();
-        int len = din.readInt();
-        byte[] infoData = new byte[len];
-        din.readFully(infoData, 0, len);
-        this.message = new String(infoData);
+    public FileNotFound(ByteBuffer buffer) {
+        this.type = buffer.getInt();
 
-        inputData.close();
-        din.close();
+        this.fileName = WireCodec.readString(buffer);
+        this.message = WireCodec.readString(buffer);
     }
 
     public byte[] getBytes() throws IOException {
-        ByteArrayOutputStream opStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(opStream));
-
-        dout.writeInt(type);
-        byte[] infoData = message.getBytes();
-        dout.writeInt(infoData.length);
-        dout.write(infoData);
+        return WireCodec.marshal(this::encode);
+    }
 
-        // making sure data from buffer is flushed
-        dout.flush();
-        byte[] marshalledData = opStream.toByteArray();
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
 
-        opStream.close();
-        dout.close();
-        return marshalledData;
+        WireCodec.writeString(buffer, fileName);
+        WireCodec.writeString(buffer, message);
     }
 
     public int getType() {
         return type;
     }
 
+    public String getFileName() {
+        return fileName;
+    }
+
     public String getMessage() {
         return message;
     }
@@ -0,0 +1,61 @@
+package distributed.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * One step of an iterative lookup: asks a peer whether it knows the successor
+ * of a key and, if not, for the fingers it knows closest before the key. The
+ * asking peer picks the next peers to ask itself.
+ */
+public class FindClosestPeers implements Event {
+    private int type;
+
+    private long lookupKey;
+
+    /* how many candidates the asking peer wants back */
+    private int count;
+
+    public FindClosestPeers(long lookupKey, int count) {
+        this.type = Protocol.FIND_CLOSEST_PEERS;
+        this.lookupKey = lookupKey;
+        this.count = count;
+    }
+
+    public FindClosestPeers(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
+
+    public FindClosestPeers(ByteBuffer buffer) {
+        this.type = buffer.getInt();
+
+        this.lookupKey = buffer.getLong();
+
+        this.count = buffer.getInt();
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public byte[] getBytes() throws IOException {
+        return WireCodec.marshal(this::encode);
+    }
+
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
+
+        buffer.putLong(lookupKey);
+
+        buffer.putInt(count);
+    }
+
+    public long getLookupKey() {
+        return lookupKey;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+}
@@ -0,0 +1,71 @@
+package distributed.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Looks up the successors of many keys at once. Every peer on the way answers
+ * for the keys it is responsible for and passes the rest on, split by next
+ * hop, so keys heading the same way travel in one message.
+ */
+public class FindSuccessors implements Event {
+    private int type;
+
+    private int purpose;
+
+    private int hopsCount;
+
+    private long[] keys;
+
+    public FindSuccessors(int purpose, long[] keys, int hopsCount) {
+        this.type = Protocol.FIND_SUCCESSORS;
+        this.purpose = purpose;
+        this.keys = keys;
+        this.hopsCount = hopsCount;
+    }
+
+    public FindSuccessors(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
+
+    public FindSuccessors(ByteBuffer buffer) {
+        this.type = buffer.getInt();
+
+        this.purpose = buffer.getInt();
+
+        this.hopsCount = buffer.getInt();
+
+        this.keys = WireCodec.readLongs(buffer);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public byte[] getBytes() throws IOException {
+        return WireCodec.marshal(this::encode);
+    }
+
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
+
+        buffer.putInt(purpose);
+
+        buffer.putInt(hopsCount);
+
+        WireCodec.writeLongs(buffer, keys);
+    }
+
+    public int getPurpose() {
+        return purpose;
+    }
+
+    public int getHopsCount() {
+        return hopsCount;
+    }
+
+    public long[] getKeys() {
+        return keys;
+    }
+
+}
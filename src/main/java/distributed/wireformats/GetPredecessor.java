@@ -1,12 +1,7 @@
 package distributed.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Register class represents a message for registering or deregistering a node.
@@ -23,26 +18,16 @@ public class GetPredecessor implements Event {
         this.port = port;
     }
 
-    public GetPredecessor(byte[] marshalledData) throws IOException {
-        // creating input stream to read byte data sent over network connection
-        ByteArrayInputStream inputData = new ByteArrayInputStream(marshalledData);
-
-        // wrap internal bytes array with data input stream
-        DataInputStream din = new DataInputStream(new BufferedInputStream(inputData));
-
-        this.type = din.readInt();
-
-        int len = din.readInt();
-
-        byte[] ipData = new byte[len];
-        din.readFully(ipData, 0, len);
+    public GetPredecessor(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
 
-        this.ipAddress = new String(ipData);
+    public GetPredecessor(ByteBuffer buffer) {
+        this.type = buffer.getInt();
 
-        this.port = din.readInt();
+        this.ipAddress = WireCodec.readString(buffer);
 
-        inputData.close();
-        din.close();
+        this.port = buffer.getInt();
     }
 
     public int getType() {
@@ -50,25 +35,15 @@ public class GetPredecessor implements Event {
     }
 
     public byte[] getBytes() throws IOException {
-        byte[] marshalledData;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(outputStream));
-
-        dout.writeInt(type);
-
-        byte[] ipBytes = ipAddress.getBytes();
-        dout.writeInt(ipBytes.length);
-        dout.write(ipBytes);
-
-        dout.writeInt(port);
+        return WireCodec.marshal(this::encode);
+    }
 
-        dout.flush();
-        marshalledData = outputStream.toByteArray();
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
 
-        outputStream.close();
-        dout.close();
-        return marshalledData;
+        WireCodec.writeString(buffer, ipAddress);
 
+        buffer.putInt(port);
     }
 
     public String getConnectionReadable() {
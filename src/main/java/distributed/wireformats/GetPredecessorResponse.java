@@ -1,15 +1,13 @@
 package distributed.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
- * Register class represents a message for registering or deregistering a node.
+ * Answers GetPredecessor with the responder's predecessor, and piggybacks the
+ * responder's successor list so the asking peer can build its own. The
+ * responder and each successor come with the storage ID of their process, so
+ * replicas can be kept on distinct processes.
  */
 public class GetPredecessorResponse implements Event {
     private int type;
@@ -17,32 +15,48 @@ public class GetPredecessorResponse implements Event {
     private String ipAddress;
     private int port;
 
-    public GetPredecessorResponse(String ipAddress, int port) {
+    /* the responder's process */
+    private long process;
+
+    /* the responder's successors, nearest first, with their processes or -1 if unknown */
+    private String[] successorAddresses;
+    private int[] successorPorts;
+    private long[] successorProcesses;
+
+    public GetPredecessorResponse(String ipAddress, int port, long process, String[] successorAddresses,
+            int[] successorPorts, long[] successorProcesses) {
         this.type = Protocol.GET_PREDECESSOR_RESPONSE;
         this.ipAddress = ipAddress;
         this.port = port;
+        this.process = process;
+        this.successorAddresses = successorAddresses;
+        this.successorPorts = successorPorts;
+        this.successorProcesses = successorProcesses;
     }
 
-    public GetPredecessorResponse(byte[] marshalledData) throws IOException {
-        // creating input stream to read byte data sent over network connection
-        ByteArrayInputStream inputData = new ByteArrayInputStream(marshalledData);
-
-        // wrap internal bytes array with data input stream
-        DataInputStream din = new DataInputStream(new BufferedInputStream(inputData));
-
-        this.type = din.readInt();
+    public GetPredecessorResponse(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
 
-        int len = din.readInt();
+    public GetPredecessorResponse(ByteBuffer buffer) {
+        this.type = buffer.getInt();
 
-        byte[] ipData = new byte[len];
-        din.readFully(ipData, 0, len);
+        this.ipAddress = WireCodec.readString(buffer);
 
-        this.ipAddress = new String(ipData);
+        this.port = buffer.getInt();
 
-        this.port = din.readInt();
+        this.process = buffer.getLong();
 
-        inputData.close();
-        din.close();
+        // an address, a port and a process per successor
+        int successors = WireCodec.readCount(buffer, 2 * Integer.BYTES + Long.BYTES);
+        this.successorAddresses = new String[successors];
+        this.successorPorts = new int[successors];
+        this.successorProcesses = new long[successors];
+        for (int i = 0; i < successors; i++) {
+            successorAddresses[i] = WireCodec.readString(buffer);
+            successorPorts[i] = buffer.getInt();
+            successorProcesses[i] = buffer.getLong();
+        }
     }
 
     public int getType() {
@@ -50,25 +64,24 @@ public class GetPredecessorResponse implements Event {
     }
 
     public byte[] getBytes() throws IOException {
-        byte[] marshalledData;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(outputStream));
-
-        dout.writeInt(type);
+        return WireCodec.marshal(this::encode);
+    }
 
-        byte[] ipBytes = ipAddress.getBytes();
-        dout.writeInt(ipBytes.length);
-        dout.write(ipBytes);
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
 
-        dout.writeInt(port);
+        WireCodec.writeString(buffer, ipAddress);
 
-        dout.flush();
-        marshalledData = outputStream.toByteArray();
+        buffer.putInt(port);
 
-        outputStream.close();
-        dout.close();
-        return marshalledData;
+        buffer.putLong(process);
 
+        buffer.putInt(successorAddresses.length);
+        for (int i = 0; i < successorAddresses.length; i++) {
+            WireCodec.writeString(buffer, successorAddresses[i]);
+            buffer.putInt(successorPorts[i]);
+            buffer.putLong(successorProcesses[i]);
+        }
     }
 
     public String getConnectionReadable() {
@@ -83,4 +96,20 @@ public class GetPredecessorResponse implements Event {
         return port;
     }
 
+    public String[] getSuccessorAddresses() {
+        return successorAddresses;
+    }
+
+    public int[] getSuccessorPorts() {
+        return successorPorts;
+    }
+
+    public long getProcess() {
+        return process;
+    }
+
+    public long[] getSuccessorProcesses() {
+        return successorProcesses;
+    }
+
 }
\ No newline at end of file
@@ -1,14 +1,7 @@
 package distributed.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 public class IdentifiedSuccessor implements Event {
 
@@ -19,10 +12,10 @@ public class IdentifiedSuccessor implements Event {
     private String payload;
 
     private int hopsCount = 0;
-    private List<Integer> hops = new ArrayList<>();
+    private long[] hops = new long[0];
 
     public IdentifiedSuccessor(String ipAddress, int port, int purpose, String payload, int hopsCount,
-            List<Integer> hops) {
+            long[] hops) {
         this.type = Protocol.SUCCESSOR_IDENTIFIED;
         this.ipAddress = ipAddress;
         this.port = port;
@@ -32,45 +25,24 @@ public class IdentifiedSuccessor implements Event {
         this.hops = hops;
     }
 
-    public IdentifiedSuccessor(byte[] marshalledData) throws IOException {
-        // creating input stream to read byte data sent over network connection
-        ByteArrayInputStream inputData = new ByteArrayInputStream(marshalledData);
-
-        // wrap internal bytes array with data input stream
-        DataInputStream din = new DataInputStream(new BufferedInputStream(inputData));
-
-        this.type = din.readInt();
-
-        int len = din.readInt();
-
-        byte[] ipData = new byte[len];
-        din.readFully(ipData, 0, len);
-
-        this.ipAddress = new String(ipData);
+    public IdentifiedSuccessor(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
 
-        this.port = din.readInt();
+    public IdentifiedSuccessor(ByteBuffer buffer) {
+        this.type = buffer.getInt();
 
-        this.purpose = din.readInt();
+        this.ipAddress = WireCodec.readString(buffer);
 
-        len = din.readInt();
-        byte[] data = new byte[len];
-        din.readFully(data);
-        this.payload = new String(data);
+        this.port = buffer.getInt();
 
-        this.hopsCount = din.readInt();
+        this.purpose = buffer.getInt();
 
-        int hopsListLen = din.readInt();
-        List<Integer> hopsList = new ArrayList<>(hopsListLen);
-        int hop;
-        for (int i = 0; i < hopsListLen; i++) {
-            hop = din.readInt();
-            hopsList.add(hop);
-        }
+        this.payload = WireCodec.readString(buffer);
 
-        this.hops = hopsList;
+        this.hopsCount = buffer.getInt();
 
-        inputData.close();
-        din.close();
+        this.hops = WireCodec.readLongs(buffer);
     }
 
     public int getType() {
@@ -84,39 +56,23 @@ public class IdentifiedSuccessor implements Event {
      * @throws IOException If an I/O error occurs.
      */
     public byte[] getBytes() throws IOException {
-        byte[] marshalledData;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(outputStream));
-
-        dout.writeInt(type);
-
-        byte[] ipBytes = ipAddress.getBytes();
-        dout.writeInt(ipBytes.length);
-        dout.write(ipBytes);
-
-        dout.writeInt(port);
-
-        dout.writeInt(purpose);
+        return WireCodec.marshal(this::encode);
+    }
 
-        byte[] payloadBytes = payload.getBytes();
-        dout.writeInt(payloadBytes.length);
-        dout.write(payloadBytes);
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
 
-        dout.writeInt(hopsCount);
+        WireCodec.writeString(buffer, ipAddress);
 
-        dout.writeInt(hops.size());
+        buffer.putInt(port);
 
-        for (int element : hops) {
-            dout.writeInt(element);
-        }
+        buffer.putInt(purpose);
 
-        dout.flush();
-        marshalledData = outputStream.toByteArray();
+        WireCodec.writeString(buffer, payload);
 
-        outputStream.close();
-        dout.close();
-        return marshalledData;
+        buffer.putInt(hopsCount);
 
+        WireCodec.writeLongs(buffer, hops);
     }
 
     public String getConnectionReadable() {
@@ -143,7 +99,7 @@ public class IdentifiedSuccessor implements Event {
         return hopsCount;
     }
 
-    public List<Integer> getHopList() {
+    public long[] getHops() {
         return hops;
     }
 
@@ -1,12 +1,7 @@
 package distributed.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Register class represents a message for registering or deregistering a node.
@@ -26,28 +21,18 @@ public class NotifyYourPredecessor implements Event {
         this.exit = exit;
     }
 
-    public NotifyYourPredecessor(byte[] marshalledData) throws IOException {
-        // creating input stream to read byte data sent over network connection
-        ByteArrayInputStream inputData = new ByteArrayInputStream(marshalledData);
-
-        // wrap internal bytes array with data input stream
-        DataInputStream din = new DataInputStream(new BufferedInputStream(inputData));
-
-        this.type = din.readInt();
-
-        int len = din.readInt();
-
-        byte[] ipData = new byte[len];
-        din.readFully(ipData, 0, len);
+    public NotifyYourPredecessor(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
 
-        this.ipAddress = new String(ipData);
+    public NotifyYourPredecessor(ByteBuffer buffer) {
+        this.type = buffer.getInt();
 
-        this.port = din.readInt();
+        this.ipAddress = WireCodec.readString(buffer);
 
-        this.exit = din.readBoolean();
+        this.port = buffer.getInt();
 
-        inputData.close();
-        din.close();
+        this.exit = WireCodec.readBoolean(buffer);
     }
 
     public int getType() {
@@ -55,27 +40,17 @@ public class NotifyYourPredecessor implements Event {
     }
 
     public byte[] getBytes() throws IOException {
-        byte[] marshalledData;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(outputStream));
-
-        dout.writeInt(type);
-
-        byte[] ipBytes = ipAddress.getBytes();
-        dout.writeInt(ipBytes.length);
-        dout.write(ipBytes);
-
-        dout.writeInt(port);
+        return WireCodec.marshal(this::encode);
+    }
 
-        dout.writeBoolean(exit);
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
 
-        dout.flush();
-        marshalledData = outputStream.toByteArray();
+        WireCodec.writeString(buffer, ipAddress);
 
-        outputStream.close();
-        dout.close();
-        return marshalledData;
+        buffer.putInt(port);
 
+        WireCodec.writeBoolean(buffer, exit);
     }
 
     public String getConnectionReadable() {
@@ -11,7 +11,7 @@ public interface Protocol {
     final int DEREGISTER_REQUEST = 2;
     final int MESSAGING_NODES_LIST = 3;
     final int SUCCESSOR_IDENTIFIED = 4;
-    final int FILE_TRANSFER = 5;
+    final int FILE_CHUNK = 5;
 
     final int NOTIFY_SUCCESSOR = 6;
     final int NOTIFY_PREDECESSOR = 7;
@@ -22,12 +22,18 @@ public interface Protocol {
     final int FILE_TRANSFER_RESPONSE = 10;
     final int DOWNLOAD_REQUEST = 11;
     final int FILE_NOT_FOUND = 12;
-    final int DOWNLOAD_RESPONSE = 13;
+    final int CHUNK_ACK = 13;
     final int COLLISION = 14;
     final int REQUEST_SUCCESSOR = 15;
 
     final int SETUP_CHORD = 16;
 
+    final int FIND_SUCCESSORS = 17;
+    final int SUCCESSORS_FOUND = 18;
+
+    final int FIND_CLOSEST_PEERS = 19;
+    final int CLOSEST_PEERS = 20;
+
     final byte SUCCESS = (byte) 200;
     final byte FAILURE = (byte) 500;
 }
@@ -1,13 +1,7 @@
 package distributed.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /**
  * Register class represents a message for registering or deregistering a node.
@@ -18,9 +12,9 @@ public class Register implements Event {
     private String ipAddress;
     private int port;
     private String hostName;
-    private int peerID;
+    private long peerID;
 
-    public Register(int type, String ipAddress, int port, String hostName, int peerID) {
+    public Register(int type, String ipAddress, int port, String hostName, long peerID) {
         this.type = type;
         this.ipAddress = ipAddress;
         this.port = port;
@@ -33,40 +27,20 @@ public class Register implements Event {
      * 
      * @param marshalledData The marshalled byte array containing the data.
      */
-    public Register(byte[] marshalledData) throws IOException {
-        // creating input stream to read byte data sent over network connection
-        // ByteArrayInputStream bis = new ByteArrayInputStream(marshalledData);
-        // ObjectInputStream in = new ObjectInputStream(bis);
-        // Register newObject = (Register) in.readObject();
-        // copyRegister(newObject);
-
-        ByteArrayInputStream inputData = new ByteArrayInputStream(marshalledData);
-
-        // wrap internal bytes array with data input stream
-        DataInputStream din = new DataInputStream(new BufferedInputStream(inputData));
-
-        this.type = din.readInt();
-
-        int len = din.readInt();
-
-        byte[] ipData = new byte[len];
-        din.readFully(ipData, 0, len);
-
-        this.ipAddress = new String(ipData);
-
-        this.port = din.readInt();
+    public Register(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
 
-        len = din.readInt();
+    public Register(ByteBuffer buffer) {
+        this.type = buffer.getInt();
 
-        byte[] nameData = new byte[len];
-        din.readFully(ipData, 0, len);
+        this.ipAddress = WireCodec.readString(buffer);
 
-        this.hostName = new String(nameData);
+        this.port = buffer.getInt();
 
-        this.peerID = din.readInt();
+        this.hostName = WireCodec.readString(buffer);
 
-        inputData.close();
-        din.close();
+        this.peerID = buffer.getLong();
     }
 
     public int getType() {
@@ -80,31 +54,19 @@ public class Register implements Event {
      * @throws IOException If an I/O error occurs.
      */
     public byte[] getBytes() throws IOException {
-        byte[] marshalledData;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(outputStream));
-
-        dout.writeInt(type);
-
-        byte[] ipBytes = ipAddress.getBytes();
-        dout.writeInt(ipBytes.length);
-        dout.write(ipBytes);
-
-        dout.writeInt(port);
+        return WireCodec.marshal(this::encode);
+    }
 
-        byte[] nameBytes = hostName.getBytes();
-        dout.writeInt(nameBytes.length);
-        dout.write(nameBytes);
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
 
-        dout.writeInt(peerID);
+        WireCodec.writeString(buffer, ipAddress);
 
-        dout.flush();
-        marshalledData = outputStream.toByteArray();
+        buffer.putInt(port);
 
-        outputStream.close();
-        dout.close();
-        return marshalledData;
+        WireCodec.writeString(buffer, hostName);
 
+        buffer.putLong(peerID);
     }
 
     /**
@@ -125,7 +87,7 @@ public class Register implements Event {
         return this.ipAddress + ":" + Integer.toString(this.port);
     }
 
-    public int getPeerID() {
+    public long getPeerID() {
         return peerID;
     }
 
@@ -1,12 +1,7 @@
 package distributed.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class RegisterResponse implements Event {
 
@@ -20,19 +15,16 @@ public class RegisterResponse implements Event {
         this.info = info;
     }
 
-    public RegisterResponse(byte[] marshalledData) throws IOException {
-        ByteArrayInputStream inputData = new ByteArrayInputStream(marshalledData);
-        DataInputStream din = new DataInputStream(new BufferedInputStream(inputData));
+    public RegisterResponse(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
+
+    public RegisterResponse(ByteBuffer buffer) {
+        this.type = buffer.getInt();
 
-        this.type = din.readInt();
-        this.status = din.readByte();
-        int len = din.readInt();
-        byte[] infoData = new byte[len];
-        din.readFully(infoData, 0, len);
-        this.info = new String(infoData);
+        this.status = buffer.get();
 
-        inputData.close();
-        din.close();
+        this.info = WireCodec.readString(buffer);
     }
 
     public int getType() {
@@ -40,22 +32,15 @@ public class RegisterResponse implements Event {
     }
 
     public byte[] getBytes() throws IOException {
-        ByteArrayOutputStream opStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(opStream));
+        return WireCodec.marshal(this::encode);
+    }
 
-        dout.writeInt(type);
-        dout.writeByte(status);
-        byte[] infoData = info.getBytes();
-        dout.writeInt(infoData.length);
-        dout.write(infoData);
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
 
-        // making sure data from buffer is flushed
-        dout.flush();
-        byte[] marshalledData = opStream.toByteArray();
+        buffer.put(status);
 
-        opStream.close();
-        dout.close();
-        return marshalledData;
+        WireCodec.writeString(buffer, info);
     }
 
     public String toString() {
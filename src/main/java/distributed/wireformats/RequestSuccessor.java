@@ -1,14 +1,8 @@
 package distributed.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Request successor to a random live peer when a node is joining the chord.
@@ -28,7 +22,7 @@ public class RequestSuccessor implements Event {
 
     private int hopsCount = 0;
 
-    private List<Integer> hops = new ArrayList<>();
+    private long[] hops = new long[0];
 
     /* TODO: add address and port of the one that is requesting */
 
@@ -41,45 +35,26 @@ public class RequestSuccessor implements Event {
         this.payload = payload;
     }
 
-    public RequestSuccessor(byte[] marshalledData) throws IOException {
-
-        ByteArrayInputStream inputData = new ByteArrayInputStream(marshalledData);
-
-        // wrap internal bytes array with data input stream
-        DataInputStream din = new DataInputStream(new BufferedInputStream(inputData));
-
-        this.type = din.readInt();
-
-        int len = din.readInt();
-        byte[] data = new byte[len];
-        din.readFully(data);
-        this.payload = new String(data);
+    public RequestSuccessor(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
 
-        this.lookupKey = din.readLong();
+    public RequestSuccessor(ByteBuffer buffer) {
+        this.type = buffer.getInt();
 
-        int ipLen = din.readInt();
-        byte[] ipData = new byte[ipLen];
-        din.readFully(ipData);
-        this.sourceIP = new String(ipData);
+        this.payload = WireCodec.readString(buffer);
 
-        this.sourcePort = din.readInt();
+        this.lookupKey = buffer.getLong();
 
-        this.purpose = din.readInt();
+        this.sourceIP = WireCodec.readString(buffer);
 
-        this.hopsCount = din.readInt();
+        this.sourcePort = buffer.getInt();
 
-        int hopsListLen = din.readInt();
-        List<Integer> hopsList = new ArrayList<>(hopsListLen);
-        int hop;
-        for (int i = 0; i < hopsListLen; i++) {
-            hop = din.readInt();
-            hopsList.add(hop);
-        }
+        this.purpose = buffer.getInt();
 
-        this.hops = hopsList;
+        this.hopsCount = buffer.getInt();
 
-        inputData.close();
-        din.close();
+        this.hops = WireCodec.readLongs(buffer);
     }
 
     public int getType() {
@@ -87,41 +62,25 @@ public class RequestSuccessor implements Event {
     }
 
     public byte[] getBytes() throws IOException {
-        byte[] marshalledData;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(outputStream));
-
-        dout.writeInt(type);
-
-        byte[] payloadBytes = payload.getBytes();
-        dout.writeInt(payloadBytes.length);
-        dout.write(payloadBytes);
-
-        dout.writeLong(lookupKey);
-
-        byte[] ipBytes = sourceIP.getBytes();
-        dout.writeInt(ipBytes.length);
-        dout.write(ipBytes);
+        return WireCodec.marshal(this::encode);
+    }
 
-        dout.writeInt(sourcePort);
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
 
-        dout.writeInt(purpose);
+        WireCodec.writeString(buffer, payload);
 
-        dout.writeInt(hopsCount);
+        buffer.putLong(lookupKey);
 
-        dout.writeInt(hops.size());
+        WireCodec.writeString(buffer, sourceIP);
 
-        for (int element : hops) {
-            dout.writeInt(element);
-        }
+        buffer.putInt(sourcePort);
 
-        dout.flush();
-        marshalledData = outputStream.toByteArray();
+        buffer.putInt(purpose);
 
-        outputStream.close();
-        dout.close();
-        return marshalledData;
+        buffer.putInt(hopsCount);
 
+        WireCodec.writeLongs(buffer, hops);
     }
 
     public String getAddress() {
@@ -148,11 +107,12 @@ public class RequestSuccessor implements Event {
         return payload;
     }
 
-    public void addPeerToHops(int peerID) {
-        hops.add(peerID);
+    public void addPeerToHops(long peerID) {
+        hops = Arrays.copyOf(hops, hops.length + 1);
+        hops[hops.length - 1] = peerID;
     }
 
-    public List<Integer> getHopsList() {
+    public long[] getHops() {
         return hops;
     }
 
@@ -0,0 +1,80 @@
+package distributed.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Answers FindSuccessors with one group per responsible peer: the peer's
+ * address and the keys it is the successor of.
+ */
+public class SuccessorsFound implements Event {
+    private int type;
+
+    private String[] ipAddresses;
+
+    private int[] ports;
+
+    private long[][] keys;
+
+    public SuccessorsFound(String[] ipAddresses, int[] ports, long[][] keys) {
+        this.type = Protocol.SUCCESSORS_FOUND;
+        this.ipAddresses = ipAddresses;
+        this.ports = ports;
+        this.keys = keys;
+    }
+
+    public SuccessorsFound(byte[] marshalledData) {
+        this(ByteBuffer.wrap(marshalledData));
+    }
+
+    public SuccessorsFound(ByteBuffer buffer) {
+        this.type = buffer.getInt();
+
+        // an address, a port and a key count per peer
+        int peers = WireCodec.readCount(buffer, 3 * Integer.BYTES);
+        this.ipAddresses = new String[peers];
+        this.ports = new int[peers];
+        this.keys = new long[peers][];
+        for (int i = 0; i < peers; i++) {
+            ipAddresses[i] = WireCodec.readString(buffer);
+            ports[i] = buffer.getInt();
+            keys[i] = WireCodec.readLongs(buffer);
+        }
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public byte[] getBytes() throws IOException {
+        return WireCodec.marshal(this::encode);
+    }
+
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(type);
+
+        buffer.putInt(ipAddresses.length);
+        for (int i = 0; i < ipAddresses.length; i++) {
+            WireCodec.writeString(buffer, ipAddresses[i]);
+            buffer.putInt(ports[i]);
+            WireCodec.writeLongs(buffer, keys[i]);
+        }
+    }
+
+    public int getPeerCount() {
+        return ipAddresses.length;
+    }
+
+    public String getIPAddress(int peer) {
+        return ipAddresses[peer];
+    }
+
+    public int getPort(int peer) {
+        return ports[peer];
+    }
+
+    public long[] getKeys(int peer) {
+        return keys[peer];
+    }
+
+}
@@ -0,0 +1,13 @@
+package distributed.wireformats;
+
+/* Where the receiver of a chunked file transfer puts the file */
+public interface TransferTypes {
+    /* stored under /tmp/<peerID>/ and added to the file index */
+    final int STORE = 0;
+    /* written to the current working directory of the downloading peer */
+    final int DOWNLOAD = 1;
+    /* stored like STORE, sent by a peer leaving the ring whose keys the receiver takes over */
+    final int LEAVE = 2;
+    /* kept under /tmp/<peerID>.replicas/ as a copy for the peer owning the file */
+    final int REPLICA = 3;
+}
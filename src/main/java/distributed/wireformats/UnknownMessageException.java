@@ -0,0 +1,23 @@
+package distributed.wireformats;
+
+import java.io.IOException;
+
+/**
+ * Thrown for a frame whose message type has no registered decoder. The frame
+ * itself is intact, so the connection it arrived on remains usable.
+ */
+public class UnknownMessageException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int type;
+
+    public UnknownMessageException(int type) {
+        super("No decoder registered for message type " + type);
+        this.type = type;
+    }
+
+    public int getMessageType() {
+        return type;
+    }
+}
@@ -0,0 +1,168 @@
+package distributed.wireformats;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Reads and writes event fields directly on ByteBuffers. The layout is the one
+ * DataOutputStream produced: big-endian ints and longs, one byte for booleans,
+ * strings as [int length][UTF-8 bytes] and int and long arrays as
+ * [int count][values].
+ */
+public final class WireCodec {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    // larger buffers are used once and not kept by the thread
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+    /* addresses, file names and the like are marshalled over and over */
+    private static final int MAX_CACHED_STRING_LENGTH = 64;
+    private static final int MAX_CACHED_STRINGS = 1024;
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal
+            .withInitial(() -> ByteBuffer.allocate(INITIAL_BUFFER_SIZE));
+
+    private static final Map<String, byte[]> UTF8_CACHE = new ConcurrentHashMap<>();
+
+    // private constructor to prevent instantiation
+    private WireCodec() {
+    }
+
+    /**
+     * Encodes an event into the calling thread's scratch buffer and returns a
+     * copy of exactly the encoded bytes.
+     *
+     * @param encoder Writes the event's fields into the buffer.
+     * @return The marshalled bytes.
+     */
+    public static byte[] marshal(Consumer<ByteBuffer> encoder) {
+        ByteBuffer buffer = BUFFERS.get();
+        while (true) {
+            buffer.clear();
+            try {
+                encoder.accept(buffer);
+                break;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                if (buffer.capacity() <= MAX_POOLED_BUFFER_SIZE) {
+                    BUFFERS.set(buffer);
+                }
+            }
+        }
+        byte[] marshalledData = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(marshalledData);
+        return marshalledData;
+    }
+
+    public static void writeString(ByteBuffer buffer, String value) {
+        byte[] bytes = utf8(value);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    public static String readString(ByteBuffer buffer) {
+        int len = readCount(buffer, 1);
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), len,
+                    StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + len);
+        } else {
+            byte[] bytes = new byte[len];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    public static void writeBytes(ByteBuffer buffer, byte[] value) {
+        buffer.putInt(value.length);
+        buffer.put(value);
+    }
+
+    public static byte[] readBytes(ByteBuffer buffer) {
+        byte[] value = new byte[readCount(buffer, 1)];
+        buffer.get(value);
+        return value;
+    }
+
+    public static void writeInts(ByteBuffer buffer, int[] values) {
+        buffer.putInt(values.length);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+    }
+
+    public static int[] readInts(ByteBuffer buffer) {
+        int[] values = new int[readCount(buffer, Integer.BYTES)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = buffer.getInt();
+        }
+        return values;
+    }
+
+    public static void writeLongs(ByteBuffer buffer, long[] values) {
+        buffer.putInt(values.length);
+        for (long value : values) {
+            buffer.putLong(value);
+        }
+    }
+
+    public static long[] readLongs(ByteBuffer buffer) {
+        long[] values = new long[readCount(buffer, Long.BYTES)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = buffer.getLong();
+        }
+        return values;
+    }
+
+    /**
+     * Reads the count in front of a string, array or list of entries and
+     * checks that the rest of the message can hold that many, so a damaged
+     * or hostile count fails like a short message instead of allocating
+     * whatever it asks for.
+     *
+     * @param buffer       The message, positioned at the count.
+     * @param elementBytes The fewest bytes one element takes on the wire.
+     * @return The count.
+     * @throws BufferUnderflowException If the count is negative or too large.
+     */
+    public static int readCount(ByteBuffer buffer, int elementBytes) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / elementBytes) {
+            throw new BufferUnderflowException();
+        }
+        return count;
+    }
+
+    public static void writeBoolean(ByteBuffer buffer, boolean value) {
+        buffer.put((byte) (value ? 1 : 0));
+    }
+
+    public static boolean readBoolean(ByteBuffer buffer) {
+        return buffer.get() != 0;
+    }
+
+    /* the returned array may be shared and must not be modified */
+    private static byte[] utf8(String value) {
+        if (value.length() > MAX_CACHED_STRING_LENGTH) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] bytes = UTF8_CACHE.get(value);
+        if (bytes == null) {
+            if (UTF8_CACHE.size() >= MAX_CACHED_STRINGS) {
+                UTF8_CACHE.clear();
+            }
+            bytes = value.getBytes(StandardCharsets.UTF_8);
+            UTF8_CACHE.put(value, bytes);
+        }
+        return bytes;
+    }
+}
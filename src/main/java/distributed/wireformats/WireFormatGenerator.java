@@ -1,92 +1,121 @@
 package distributed.wireformats;
 
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * WireFormatGenerator is a singleton class responsible for generating messages
- * of different types.
+ * of different types. Decoders are kept in an array indexed by message type,
+ * so new message types are added by registering a decoder for them.
  */
 public class WireFormatGenerator {
     private static final WireFormatGenerator messageGenerator = new WireFormatGenerator();
 
+    /*
+     * replaced as a whole on registration, so decoding reads it without
+     * locking
+     */
+    private volatile EventDecoder[] decoders = new EventDecoder[Protocol.CLOSEST_PEERS + 1];
+
+    // frames dropped because nothing could decode their type
+    private final AtomicLong unknownMessages = new AtomicLong();
+
     // private constructor to prevent instantiation
     private WireFormatGenerator() {
+        registerDecoder(Protocol.REGISTER_REQUEST, Register::new);
+        registerDecoder(Protocol.REGISTER_RESPONSE, RegisterResponse::new);
+        registerDecoder(Protocol.DEREGISTER_REQUEST, Register::new);
+        registerDecoder(Protocol.MESSAGING_NODES_LIST, ComputeNodesList::new);
+        registerDecoder(Protocol.SETUP_CHORD, SetupChord::new);
+        registerDecoder(Protocol.REQUEST_SUCCESSOR, RequestSuccessor::new);
+        registerDecoder(Protocol.SUCCESSOR_IDENTIFIED, IdentifiedSuccessor::new);
+        registerDecoder(Protocol.NOTIFY_SUCCESSOR, NotifyYourSuccessor::new);
+        registerDecoder(Protocol.NOTIFY_PREDECESSOR, NotifyYourPredecessor::new);
+        registerDecoder(Protocol.GET_PREDECESSOR, GetPredecessor::new);
+        registerDecoder(Protocol.GET_PREDECESSOR_RESPONSE, GetPredecessorResponse::new);
+        registerDecoder(Protocol.FILE_CHUNK, FileChunk::new);
+        registerDecoder(Protocol.FILE_TRANSFER_RESPONSE, FileTransferResponse::new);
+        registerDecoder(Protocol.DOWNLOAD_REQUEST, DownloadRequest::new);
+        registerDecoder(Protocol.CHUNK_ACK, ChunkAck::new);
+        registerDecoder(Protocol.FILE_NOT_FOUND, FileNotFound::new);
+        registerDecoder(Protocol.COLLISION, Collision::new);
+        registerDecoder(Protocol.FIND_SUCCESSORS, FindSuccessors::new);
+        registerDecoder(Protocol.SUCCESSORS_FOUND, SuccessorsFound::new);
+        registerDecoder(Protocol.FIND_CLOSEST_PEERS, FindClosestPeers::new);
+        registerDecoder(Protocol.CLOSEST_PEERS, ClosestPeers::new);
     }
 
     /**
      * Returns the singleton instance of WireFormatGenerator.
-     * 
+     *
      * @return The WireFormatGenerator instance.
      */
     public static WireFormatGenerator getInstance() {
         return messageGenerator;
     }
 
+    /**
+     * Registers the decoder for a message type, replacing any decoder the type
+     * already had.
+     *
+     * @param type    The message type, as written first in the payload.
+     * @param decoder Builds the event from a received frame.
+     */
+    public synchronized void registerDecoder(int type, EventDecoder decoder) {
+        if (type < 0) {
+            throw new IllegalArgumentException("Message types must not be negative: " + type);
+        }
+        EventDecoder[] updated = Arrays.copyOf(decoders, Math.max(decoders.length, type + 1));
+        updated[type] = decoder;
+        decoders = updated;
+    }
+
+    /**
+     * Returns how many received frames had a type without a decoder.
+     *
+     * @return The number of rejected frames.
+     */
+    public long getUnknownMessageCount() {
+        return unknownMessages.get();
+    }
+
     /**
      * Creates a wireformat message from the received marshaled bytes.
-     * 
+     *
      * @param marshalledData The marshaled bytes representing the event.
      * @return The Event object created from the marshaled bytes.
      */
     /* Create message wireformats from received marshalled bytes */
     public Event createMessage(byte[] marshalledData) throws IOException {
-        int type = ByteBuffer.wrap(marshalledData).getInt();
-        switch (type) {
-            case Protocol.REGISTER_REQUEST:
-                return new Register(marshalledData);
-
-            case Protocol.REGISTER_RESPONSE:
-                return new RegisterResponse(marshalledData);
-
-            case Protocol.DEREGISTER_REQUEST:
-                return new Register(marshalledData);
-
-            case Protocol.MESSAGING_NODES_LIST:
-                return new ComputeNodesList(marshalledData);
-
-            case Protocol.SETUP_CHORD:
-                return new SetupChord(marshalledData);
-
-            case Protocol.REQUEST_SUCCESSOR:
-                return new RequestSuccessor(marshalledData);
-
-            case Protocol.SUCCESSOR_IDENTIFIED:
-                return new IdentifiedSuccessor(marshalledData);
-
-            case Protocol.NOTIFY_SUCCESSOR:
-                return new NotifyYourSuccessor(marshalledData);
-
-            case Protocol.NOTIFY_PREDECESSOR:
-                return new NotifyYourPredecessor(marshalledData);
-
-            case Protocol.GET_PREDECESSOR:
-                return new GetPredecessor(marshalledData);
-
-            case Protocol.GET_PREDECESSOR_RESPONSE:
-                return new GetPredecessorResponse(marshalledData);
-
-            case Protocol.FILE_TRANSFER:
-                return new FileTransfer(marshalledData);
-
-            case Protocol.FILE_TRANSFER_RESPONSE:
-                return new FileTransferResponse(marshalledData);
-
-            case Protocol.DOWNLOAD_REQUEST:
-                return new DownloadRequest(marshalledData);
-
-            case Protocol.DOWNLOAD_RESPONSE:
-                return new DownloadResponse(marshalledData);
-
-            case Protocol.FILE_NOT_FOUND:
-                return new FileNotFound(marshalledData);
-
-            case Protocol.COLLISION:
-                return new Collision(marshalledData);
+        return createMessage(ByteBuffer.wrap(marshalledData));
+    }
 
-            default:
-                System.out.println("Error: WireFormat could not be generated. " + type);
-                return null;
+    /**
+     * Creates a wireformat message from a frame payload, reading it in place.
+     * Every field is copied out, so the buffer may be reused once this returns.
+     *
+     * @param buffer The payload, from its position up to its limit.
+     * @return The Event object decoded from the buffer.
+     * @throws UnknownMessageException If no decoder is registered for the type.
+     */
+    public Event createMessage(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Integer.BYTES) {
+            throw new IOException("Message is too short to hold a type");
+        }
+        int type = buffer.getInt(buffer.position());
+        EventDecoder[] table = decoders;
+        EventDecoder decoder = type >= 0 && type < table.length ? table[type] : null;
+        if (decoder == null) {
+            unknownMessages.incrementAndGet();
+            throw new UnknownMessageException(type);
+        }
+        try {
+            return decoder.decode(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Message is shorter than its fields", e);
         }
     }
 }